@@ -0,0 +1,64 @@
+package com.crispy.database;
+
+import com.crispy.db.ChangeEvent;
+import com.crispy.db.ChangeFeed;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes writes made through Insert, Update and Delete to the
+ * {@link ChangeFeed}.
+ */
+class Changes {
+
+    private Changes() {
+    }
+
+    /**
+     * Run an UPDATE or DELETE, capturing it through
+     * {@link ChangeFeed#write} while the table has change listeners.
+     */
+    static int write(Connection con, String table, PreparedStatement pstmt, Where where, ChangeEvent.Type type,
+                     Map<String, Object> written) throws SQLException {
+        Metadata m = DB.getMetadata(table);
+        if (!ChangeFeed.hasListeners(table) || m == null || m.primary == null)
+            return pstmt.executeUpdate();
+        WherePlan plan = where.hasChildren() ? where.compile(table) : null;
+        return ChangeFeed.write(con, table, m.primary.columns, plan == null ? null : plan.sql(), plan == null ? new
+                Object[0] : plan.values(), pstmt, type, written, null);
+    }
+
+    /**
+     * Publish an inserted row. MySQL reports 1 for a new row, 2 for a row
+     * updated through ON DUPLICATE KEY UPDATE and 0 when nothing changed,
+     * but with found rows an update writing the same values also counts 1,
+     * so upserts pass the key of the row they hit. An upsert hitting a row
+     * publishes an update even if nothing changed.
+     *
+     * @param generated value of the auto increment column, or null
+     * @param existing  key of the row an upsert updated, or null
+     */
+    static void inserted(String table, int count, Map<String, Object> written, Object generated,
+                         Map<String, Object> existing) {
+        if ((count == 0 && existing == null) || !ChangeFeed.hasListeners(table))
+            return;
+        Metadata m = DB.getMetadata(table);
+        Map<String, Object> key = existing;
+        if (key == null) {
+            key = new HashMap<>();
+            if (generated != null) {
+                key.put(m.getAutoGeneratedColumn(), generated);
+            } else if (m.primary != null) {
+                for (String column : m.primary.columns) {
+                    key.put(column, written.get(column));
+                }
+            }
+        }
+        ChangeFeed.publish(new ChangeEvent(table, (existing == null && count == 1) ? ChangeEvent.Type.INSERT :
+                ChangeEvent.Type.UPDATE, key, written));
+    }
+}
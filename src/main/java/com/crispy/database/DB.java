@@ -1,5 +1,6 @@
 package com.crispy.database;
 
+import com.crispy.db.QueryStats;
 import com.crispy.log.Log;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.json.JSONArray;
@@ -210,7 +211,9 @@ public class DB {
 
     public static Connection getConnection() {
         try {
-            return INSTANCE.mDS.getConnection();
+            long start = System.nanoTime();
+            Connection con = INSTANCE.mDS.getConnection();
+            return QueryStats.wrap(con, System.nanoTime() - start);
         } catch (Throwable t) {
             LOG.error("Couldn't retrieve connection from datastore", t);
             return null;
@@ -254,7 +257,6 @@ public class DB {
 
     public static void updateQuery(String sql, Object... args)
             throws SQLException {
-        System.out.println(sql);
         Connection con = getConnection();
         try {
             updateQuery(con, sql, args);
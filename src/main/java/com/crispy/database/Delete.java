@@ -1,5 +1,6 @@
 package com.crispy.database;
 
+import com.crispy.db.ChangeEvent;
 import com.crispy.log.Log;
 
 import java.sql.Connection;
@@ -35,17 +36,16 @@ public class Delete {
         try {
             StringBuilder sb = new StringBuilder();
             sb.append("DELETE FROM `" + table + "`");
-            if (rootWhere.hasChildren()) {
-                sb.append(" WHERE " + rootWhere.exp());
+            WherePlan plan = rootWhere.hasChildren() ? rootWhere.compile(table) : null;
+            if (plan != null) {
+                sb.append(" WHERE " + plan.sql());
             }
             PreparedStatement pstmt = con.prepareStatement(sb.toString());
-            if (rootWhere.hasChildren()) {
-                Object[] values = rootWhere.values(Collections.singletonList(table));
-                for (int i = 0; i < values.length; i++) {
-                    pstmt.setObject(i + 1, values[i]);
-                }
+            if (plan != null) {
+                plan.bind(pstmt, 1);
             }
-            int ret = pstmt.executeUpdate();
+            int ret = Changes.write(con, table, pstmt, rootWhere, ChangeEvent.Type.DELETE, Collections.<String,
+                    Object>emptyMap());
             pstmt.close();
             return ret;
         } catch (SQLException e) {
@@ -28,6 +28,8 @@ public class Index {
 	}
 	private IndexType indexType;
 	CopyOnWriteArrayList<String> columns;
+	// Set for unique indexes read back from the database
+	boolean unique;
 	
 	public static Index create(String column) {
 		return new Index(column, column);
@@ -73,6 +75,7 @@ public class Index {
 	public void process(ResultSet results) throws SQLException {
 		String column = results.getString("COLUMN_NAME");
 		int ordinal = results.getShort("ORDINAL_POSITION");
+		unique = !results.getBoolean("NON_UNIQUE");
 
 		while (this.columns.size() < ordinal) {
 			this.columns.add(null);
@@ -1,5 +1,6 @@
 package com.crispy.database;
 
+import com.crispy.db.ChangeFeed;
 import com.crispy.log.Log;
 import org.apache.commons.lang.StringUtils;
 
@@ -7,7 +8,9 @@ import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by harsh on 2/9/16.
@@ -20,6 +23,8 @@ public class Insert {
     private ArrayList<Value> values;
     private boolean ignore;
     private ArrayList<String> overwriteColumns;
+    // Key of the row the last upsert updated, while the table has listeners
+    private Map<String, Object> updatedKey;
 
     public static Insert withTable(String table) {
         Insert i = new Insert();
@@ -121,14 +126,56 @@ public class Insert {
         }
     }
 
+    private Map<String, Object> written() {
+        Map<String, Object> ret = new HashMap<>();
+        for (String column : columnNames) {
+            ret.put(column, valueForColumn(column));
+        }
+        return ret;
+    }
+
+    /**
+     * Run the statement. For an upsert on a table with change listeners,
+     * the row it collides with is locked and read first in the same
+     * transaction, so the event can tell an update from an insert.
+     */
+    private int executeUpdate(Connection con, PreparedStatement pstmt) throws SQLException {
+        updatedKey = null;
+        Metadata m = DB.getMetadata(table);
+        if (overwriteColumns.isEmpty() || !ChangeFeed.hasListeners(table) || m.primary == null)
+            return pstmt.executeUpdate();
+        con.setAutoCommit(false);
+        try {
+            updatedKey = ChangeFeed.lockExisting(con, table, m.primary.columns, m.uniqueKeys(), written());
+            int ret = pstmt.executeUpdate();
+            con.commit();
+            return ret;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
     public int execute() {
         validate();
         Connection con = DB.getConnection();
         try {
             String q = createQuery();
-            PreparedStatement pstmt = con.prepareStatement(q);
+            PreparedStatement pstmt = con.prepareStatement(q, Statement.RETURN_GENERATED_KEYS);
             setValues(pstmt);
-            return pstmt.executeUpdate();
+            int ret = executeUpdate(con, pstmt);
+            Object generatedKey = null;
+            if (ChangeFeed.hasListeners(table)) {
+                ResultSet generated = pstmt.getGeneratedKeys();
+                if (generated.next())
+                    generatedKey = generated.getObject(1);
+                generated.close();
+            }
+            pstmt.close();
+            Changes.inserted(table, ret, written(), generatedKey, updatedKey);
+            return ret;
         } catch (SQLException e) {
             throw new IllegalStateException(e);
         } finally {
@@ -146,17 +193,20 @@ public class Insert {
         try {
             PreparedStatement pstmt = con.prepareStatement(createQuery(), Statement.RETURN_GENERATED_KEYS);
             setValues(pstmt);
-            pstmt.executeUpdate();
+            int count = executeUpdate(con, pstmt);
             Row ret = null;
+            Object generatedKey = null;
             try {
                 ResultSet generated = pstmt.getGeneratedKeys();
                 if (generated.next()) {
+                    generatedKey = generated.getObject(1);
                     ret = new Row(generated);
                 }
                 generated.close();
             } catch (Exception e) {
                 LOG.warn("Possibly missing primary key field");
             }
+            Changes.inserted(table, count, written(), generatedKey, updatedKey);
 
             return ret;
         } catch (SQLException e) {
@@ -53,6 +53,18 @@ public class Metadata {
 		return primary;
 	}
 
+	/**
+	 * Columns of each unique index other than the primary key.
+	 */
+	List<List<String>> uniqueKeys() {
+		List<List<String>> ret = new ArrayList<List<String>>();
+		for (Index index : indexes) {
+			if (index.unique)
+				ret.add(index.columns);
+		}
+		return ret;
+	}
+
 	public JSONObject toJSONObject() throws JSONException {
 		JSONObject o = new JSONObject();
 		o.put("name", name);
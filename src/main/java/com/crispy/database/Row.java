@@ -54,6 +54,18 @@ public class Row {
         return null;
     }
 
+    /**
+     * Value of a column, by name or alias, or null if the row doesn't have it.
+     */
+    Value find(String table, String name) {
+        if (table != null)
+            return byFullName(table, name);
+        int i = columnNames.indexOf(name);
+        if (i == -1)
+            i = columnAlias.indexOf(name);
+        return (i == -1) ? null : byIndex(i);
+    }
+
     public Value byIndex(int i) {
         return Value.create(values.get(i));
     }
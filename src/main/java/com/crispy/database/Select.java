@@ -1,5 +1,6 @@
 package com.crispy.database;
 
+import com.crispy.db.RowMapper;
 import com.crispy.log.Log;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -10,6 +11,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by harsh on 1/18/16.
@@ -242,16 +244,13 @@ public class Select {
 
     private void whereStatement(StringBuilder sb) {
         if (rootWhere.hasChildren()) {
-            sb.append(" WHERE " + rootWhere.exp());
+            sb.append(" WHERE " + rootWhere.compile(tables).sql());
         }
     }
 
     private int whereValues(PreparedStatement pstmt, int ctr) throws SQLException {
         if (rootWhere.hasChildren()) {
-            Object[] values = rootWhere.values(tables);
-            for (Object value : values) {
-                pstmt.setObject(ctr++, value);
-            }
+            ctr = rootWhere.compile(tables).bind(pstmt, ctr);
         }
         return ctr;
     }
@@ -282,6 +281,28 @@ public class Select {
         }
     }
 
+    /**
+     * Rows mapped to instances of a class, see {@link RowMapper}.
+     */
+    public <T> List<T> rows(Class<T> c) {
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = createSelectStatement(con);
+            List<T> ret = RowMapper.mapAll(c, pstmt.executeQuery());
+            pstmt.close();
+            return ret;
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new IllegalStateException(t);
+        } finally {
+            try {
+                assert con != null;
+                con.close();
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
     public Row row() {
         Connection con = DB.getConnection();
         try {
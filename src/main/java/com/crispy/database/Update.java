@@ -1,5 +1,6 @@
 package com.crispy.database;
 
+import com.crispy.db.ChangeEvent;
 import com.crispy.log.Log;
 import org.apache.commons.lang.StringUtils;
 
@@ -7,7 +8,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by harsh on 4/10/16.
@@ -56,7 +58,13 @@ public class Update {
             String q = createQuery();
             PreparedStatement pstmt = con.prepareStatement(q);
             setValues(pstmt);
-            return pstmt.executeUpdate();
+            Map<String, Object> written = new HashMap<>();
+            for (String column : columnNames) {
+                written.put(column, valueForColumn(column));
+            }
+            int ret = Changes.write(con, table, pstmt, whereRoot, ChangeEvent.Type.UPDATE, written);
+            pstmt.close();
+            return ret;
         } catch (SQLException e) {
             throw new IllegalStateException(e);
         } finally {
@@ -88,10 +96,7 @@ public class Update {
             pstmt.setObject(c++, valueForColumn(column));
         }
         if (whereRoot.hasChildren()) {
-            Object[] values = whereRoot.values(Collections.singletonList(table));
-            for (Object value : values) {
-                pstmt.setObject(c++, value);
-            }
+            whereRoot.compile(table).bind(pstmt, c);
         }
     }
 
@@ -105,7 +110,7 @@ public class Update {
         sb.append(StringUtils.join(setConditions, ","));
         if (whereRoot.hasChildren()) {
             sb.append(" WHERE ");
-            sb.append(whereRoot.exp());
+            sb.append(whereRoot.compile(table).sql());
         }
         return sb.toString();
     }
@@ -6,17 +6,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by harsh on 2/6/16.
  */
 public class Where {
+    private static final AtomicLong STAMPS = new AtomicLong();
+
     private WhereOp op;
     private String table;
     private String column;
     private String function;
     private Value value[];
     private ArrayList<Where> children;
+    private long stamp;
+    private WherePlan plan;
 
     public static Where equals() {
         return operator(WhereOp.EQUALS);
@@ -59,16 +64,19 @@ public class Where {
 
     public Where column(String column) {
         this.column = column;
+        touch();
         return this;
     }
 
     public Where table(String table) {
         this.table = table;
+        touch();
         return this;
     }
 
     public Where function(String fn) {
         this.function = fn;
+        touch();
         return this;
     }
 
@@ -109,6 +117,7 @@ public class Where {
             default:
                 break;
         }
+        touch();
         return this;
     }
 
@@ -117,11 +126,13 @@ public class Where {
         for (int i = 0; i < values.length; i++) {
             this.value[i] = Value.create(values[i]);
         }
+        touch();
         return this;
     }
 
     public Where where(Where w) {
         children.add(w);
+        touch();
         return this;
     }
 
@@ -129,34 +140,96 @@ public class Where {
         return children.size() > 0;
     }
 
-    String exp() {
+    private void touch() {
+        stamp = STAMPS.incrementAndGet();
+    }
+
+    private long lastChange() {
+        long ret = stamp;
         if (children != null) {
-            List<String> childExps = new ArrayList<>();
             for (Where child : children) {
-                childExps.add(child.exp());
+                ret = Math.max(ret, child.lastChange());
+            }
+        }
+        return ret;
+    }
+
+    public WherePlan compile(String... tables) {
+        return compile(Arrays.asList(tables));
+    }
+
+    /**
+     * Compiles the tree for a query on these tables. The plan is kept and
+     * reused until the tree or the tables change.
+     */
+    public WherePlan compile(List<String> tables) {
+        WherePlan ret = plan;
+        long last = lastChange();
+        if (ret == null || ret.stamp < last || !ret.tables.equals(tables)) {
+            ret = new WherePlan(this, tables, last);
+            plan = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Appends the SQL and parameters of this node and returns its in-memory
+     * form.
+     */
+    WherePlan.Term term(List<String> tables, StringBuilder sb, List<Object> values) {
+        if (children != null) {
+            if (children.isEmpty()) {
+                sb.append(op == WhereOp.OR ? "1=0" : "1=1");
+                return new WherePlan.Term(op, new WherePlan.Term[0]);
             }
-            return "(" + StringUtils.join(childExps, " " + op.sqlOp + " ") + ")";
+            WherePlan.Term[] terms = new WherePlan.Term[children.size()];
+            sb.append("(");
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0)
+                    sb.append(" " + op.sqlOp + " ");
+                terms[i] = children.get(i).term(tables, sb, values);
+            }
+            sb.append(")");
+            return new WherePlan.Term(op, terms);
         }
+        String left = leftExpr();
         switch (op) {
             case EQUALS:
             case NOT_EQUALS:
             case GREATER_THAN:
             case GREATER_THAN_EQUALS:
             case LESS_THAN:
-            case LIKE:    
+            case LIKE:
             case LESS_THAN_EQUALS:
-                return StringUtils.join(Collections.nCopies(value.length, leftExpr() + op.sqlOp + "?"), " AND ");
+                if (value.length == 0)
+                    sb.append("1=1");
+                sb.append(StringUtils.join(Collections.nCopies(value.length, left + op.sqlOp + "?"), " AND "));
+                break;
             case IN:
             case NOT_IN:
-                return leftExpr() + " " + op.sqlOp + " (" + StringUtils.join(Collections.nCopies
-                        (value.length,
-                        "?"), ",") + ")";
+                sb.append(WherePlan.in(left, op, value.length));
+                break;
             case IS_NULL:
             case IS_NOT_NULL:
-                return leftExpr();
+                sb.append(left);
+                break;
             default:
-                return null;
+                throw new UnsupportedOperationException("Operator " + op + " is not supported");
         }
+        SimpleType type = null;
+        Object[] converted = null;
+        if (value != null) {
+            type = detectType(tables);
+            converted = new Object[value.length];
+            for (int i = 0; i < converted.length; i++) {
+                converted[i] = value[i].convert(type);
+            }
+            values.addAll(Arrays.asList(converted));
+        }
+        String unsupported = null;
+        if (function != null && (function.equals("SUM") || function.equals("AVG") || function.equals("COUNT")))
+            unsupported = function;
+        return new WherePlan.Term(op, table, column, type, converted, null, unsupported);
     }
 
     private String leftExpr() {
@@ -170,25 +243,6 @@ public class Where {
         return ret;
     }
 
-    Object[] values(List<String> tables) {
-        if (children != null) {
-            ArrayList<Object> ret = new ArrayList<>();
-            for (Where child : children) {
-                ret.addAll(Arrays.asList(child.values(tables)));
-            }
-            return ret.toArray();
-        }
-        if (value == null) {
-            return new Object[0];
-        }
-        SimpleType type = detectType(tables);
-        Object[] ret = new Object[value.length];
-        for (int i = 0; i < ret.length; i++) {
-            ret[i] = value[i].convert(type);
-        }
-        return ret;
-    }
-
     private SimpleType detectType(List<String> tables) {
         SimpleType type = columnType(tables);
         if (function == null) {
@@ -0,0 +1,285 @@
+package com.crispy.database;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A {@link Where} tree compiled once against the tables it runs on: the SQL
+ * fragment, the converted parameters in slot order, and a predicate that
+ * evaluates the same condition on rows already in memory.
+ * <p>
+ * In memory, comparisons follow MySQL's defaults: text compares case
+ * insensitively and any comparison with NULL is false. Aggregate functions
+ * (SUM, AVG, COUNT) can only run in the database; plans using them are not
+ * {@link #isEvaluable() evaluable} and refuse to test rows. MATCH isn't
+ * supported in plans at all.
+ */
+public final class WherePlan implements Predicate<Row> {
+    final List<String> tables;
+    final long stamp;
+    private final String sql;
+    private final Object[] values;
+    private final Term root;
+
+    WherePlan(Where where, List<String> tables, long stamp) {
+        this.tables = new ArrayList<>(tables);
+        this.stamp = stamp;
+        StringBuilder sb = new StringBuilder();
+        List<Object> values = new ArrayList<>();
+        this.root = where.term(tables, sb, values);
+        this.sql = sb.toString();
+        this.values = values.toArray();
+    }
+
+    /**
+     * SQL fragment with a ? per parameter slot.
+     */
+    public String sql() {
+        return sql;
+    }
+
+    public Object[] values() {
+        return values.clone();
+    }
+
+    /**
+     * Sets the parameters starting at slot {@code start}.
+     *
+     * @return the next free slot
+     */
+    public int bind(PreparedStatement pstmt, int start) throws SQLException {
+        for (Object value : values) {
+            pstmt.setObject(start++, value);
+        }
+        return start;
+    }
+
+    /**
+     * Whether the condition can be evaluated on rows in memory.
+     */
+    public boolean isEvaluable() {
+        return root.rejected == null;
+    }
+
+    @Override
+    public boolean test(Row row) {
+        checkEvaluable();
+        return root.test(row);
+    }
+
+    public Rows filter(Rows rows) {
+        checkEvaluable();
+        Rows ret = new Rows();
+        for (Row row : rows.getRows()) {
+            if (root.test(row))
+                ret.addRow(row);
+        }
+        return ret;
+    }
+
+    private void checkEvaluable() {
+        if (root.rejected != null)
+            throw new UnsupportedOperationException(root.rejected);
+    }
+
+    /**
+     * SQL for an IN or NOT IN list of count placeholders. An empty list,
+     * which MySQL rejects, is always false for IN and true for NOT IN.
+     */
+    static String in(String left, WhereOp op, int count) {
+        if (count == 0)
+            return (op == WhereOp.IN) ? "1=0" : "1=1";
+        return left + " " + op.sqlOp + " (" + StringUtils.join(Collections.nCopies(count, "?"), ",") + ")";
+    }
+
+    /**
+     * One node of the compiled tree.
+     */
+    static final class Term {
+        private final WhereOp op;
+        private final String table;
+        private final String column;
+        private final SimpleType type;
+        private final Object[] values;
+        private final Set<Object> set;
+        private final Pattern[] like;
+        private final Term[] children;
+        // Why the node can't be evaluated in memory, null if it can
+        final String rejected;
+
+        Term(WhereOp op, Term[] children) {
+            this(op, null, null, null, null, children, null);
+        }
+
+        Term(WhereOp op, String table, String column, SimpleType type, Object[] values, Term[] children,
+             String unsupported) {
+            this.op = op;
+            this.table = table;
+            this.column = column;
+            this.type = type;
+            this.values = values;
+            this.children = children;
+            this.rejected = rejected(op, children, unsupported);
+            if ((op == WhereOp.IN || op == WhereOp.NOT_IN) && values != null) {
+                set = new HashSet<>();
+                for (Object value : values) {
+                    set.add(key(value));
+                }
+            } else {
+                set = null;
+            }
+            if (op == WhereOp.LIKE && values != null) {
+                like = new Pattern[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    like[i] = (values[i] == null) ? null : like(values[i].toString());
+                }
+            } else {
+                like = null;
+            }
+        }
+
+        private static String rejected(WhereOp op, Term[] children, String unsupported) {
+            if (unsupported != null)
+                return unsupported + " can't be evaluated in memory";
+            switch (op) {
+                case AND:
+                case OR:
+                    for (Term child : children) {
+                        if (child.rejected != null)
+                            return child.rejected;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        boolean test(Row row) {
+            switch (op) {
+                case AND:
+                    for (Term child : children) {
+                        if (!child.test(row))
+                            return false;
+                    }
+                    return true;
+                case OR:
+                    for (Term child : children) {
+                        if (child.test(row))
+                            return true;
+                    }
+                    return false;
+                default:
+                    break;
+            }
+            Value v = row.find(table, column);
+            if (v == null)
+                throw new IllegalStateException("Column " + column + " is not in the row");
+            Object actual = v.isNull() ? null : (type == null) ? v.asObject() : v.convert(type);
+            switch (op) {
+                case IS_NULL:
+                    return actual == null;
+                case IS_NOT_NULL:
+                    return actual != null;
+                case IN:
+                    return actual != null && set.contains(key(actual));
+                case NOT_IN:
+                    return actual != null && !set.contains(key(actual)) && !set.contains(null);
+                case LIKE:
+                    if (actual == null)
+                        return false;
+                    for (Pattern p : like) {
+                        if (p == null || !p.matcher(actual.toString()).matches())
+                            return false;
+                    }
+                    return true;
+                default:
+                    break;
+            }
+            if (actual == null)
+                return false;
+            for (Object value : values) {
+                if (value == null)
+                    return false;
+                int c = compare(actual, value);
+                boolean ok;
+                switch (op) {
+                    case EQUALS:
+                        ok = c == 0;
+                        break;
+                    case NOT_EQUALS:
+                        ok = c != 0;
+                        break;
+                    case GREATER_THAN:
+                        ok = c > 0;
+                        break;
+                    case GREATER_THAN_EQUALS:
+                        ok = c >= 0;
+                        break;
+                    case LESS_THAN:
+                        ok = c < 0;
+                        break;
+                    case LESS_THAN_EQUALS:
+                        ok = c <= 0;
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(op + " can't be evaluated in memory");
+                }
+                if (!ok)
+                    return false;
+            }
+            return true;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static int compare(Object a, Object b) {
+            if (a instanceof String && b instanceof String)
+                return ((String) a).compareToIgnoreCase((String) b);
+            if (a instanceof byte[] && b instanceof byte[])
+                return ByteBuffer.wrap((byte[]) a).compareTo(ByteBuffer.wrap((byte[]) b));
+            if (a instanceof Comparable && a.getClass() == b.getClass())
+                return ((Comparable) a).compareTo(b);
+            throw new IllegalStateException("Can't compare " + a.getClass().getSimpleName() + " with " + b.getClass()
+                    .getSimpleName());
+        }
+
+        private static Object key(Object value) {
+            if (value instanceof String)
+                return ((String) value).toLowerCase(Locale.ROOT);
+            if (value instanceof byte[])
+                return ByteBuffer.wrap((byte[]) value);
+            return value;
+        }
+
+        /**
+         * LIKE pattern as a regular expression: % and _ are wildcards, \
+         * escapes the next character.
+         */
+        static Pattern like(String pattern) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char ch = pattern.charAt(i);
+                if (ch == '\\' && i + 1 < pattern.length()) {
+                    sb.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (ch == '%') {
+                    sb.append(".*");
+                } else if (ch == '_') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(ch)));
+                }
+            }
+            return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+        }
+    }
+}
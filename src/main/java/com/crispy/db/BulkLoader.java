@@ -0,0 +1,414 @@
+package com.crispy.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.crispy.log.Log;
+
+/**
+ * Loads CSV or NDJSON input into a table with LOAD DATA LOCAL INFILE.
+ * <p>
+ * One thread splits the input into batches of records, a pool of workers
+ * converts them with the column converters and validators and encodes them
+ * in LOAD DATA's tab separated format, and the calling thread streams the
+ * encoded batches to MySQL straight from memory. Records that fail
+ * conversion are reported instead of aborting the load. Every
+ * ROWS_PER_STATEMENT rows a new LOAD DATA statement is started so that a
+ * single transaction doesn't grow without bounds.
+ */
+class BulkLoader {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int BATCH_RECORDS = 1000;
+    private static final long ROWS_PER_STATEMENT = 500000;
+    private static final int MAX_WARNINGS = 100;
+    private static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Future<Chunk> END = CompletableFuture.completedFuture(null);
+
+    private final String table;
+    private final DataFormat format;
+    private final String duplicates;
+    private final Map<String, Predicate<Object>> validators;
+    private List<String> columns;
+    private Column[] targets;
+
+    BulkLoader(String table, DataFormat format, List<String> columns, String duplicates, Map<String,
+            Predicate<Object>> validators) {
+        this.table = table;
+        this.format = format;
+        this.columns = columns;
+        this.duplicates = duplicates;
+        this.validators = validators;
+    }
+
+    LoadResult load(InputStream in) throws Exception {
+        Metadata m = DB.getMetadata(table);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + table);
+        if (format == DataFormat.BINARY)
+            throw new IllegalArgumentException("Bulk loads read CSV or NDJSON");
+        final Records records = new Records(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        Record first = null;
+        if (columns == null) {
+            first = records.next();
+            if (first == null)
+                return new LoadResult(0, 0, new ArrayList<LoadResult.Rejection>(), new ArrayList<String>());
+            if (format == DataFormat.CSV) {
+                columns = parseCsv(first.text);
+                first = null;
+            } else {
+                String[] names = JSONObject.getNames(new JSONObject(first.text));
+                columns = (names == null) ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(names));
+            }
+        }
+        targets = new Column[columns.size()];
+        for (int c = 0; c < targets.length; c++) {
+            targets[c] = m.getColumn(columns.get(c));
+            if (targets[c] == null)
+                throw new IllegalArgumentException("No column " + columns.get(c) + " in table " + table);
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final BlockingQueue<Future<Chunk>> queue = new ArrayBlockingQueue<Future<Chunk>>(threads * 4);
+        final Record pending = first;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Record> batch = new ArrayList<Record>(BATCH_RECORDS);
+                    if (pending != null)
+                        batch.add(pending);
+                    Record r;
+                    while ((r = records.next()) != null) {
+                        batch.add(r);
+                        if (batch.size() == BATCH_RECORDS) {
+                            queue.put(workers.submit(convert(batch)));
+                            batch = new ArrayList<Record>(BATCH_RECORDS);
+                        }
+                    }
+                    if (batch.size() > 0)
+                        queue.put(workers.submit(convert(batch)));
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                } catch (Throwable t) {
+                    CompletableFuture<Chunk> failed = new CompletableFuture<Chunk>();
+                    failed.completeExceptionally(t);
+                    try {
+                        queue.put(failed);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        }, "bulk-load-" + table);
+        reader.setDaemon(true);
+        reader.start();
+
+        String sql = "LOAD DATA LOCAL INFILE 'stream' " + duplicates + " INTO TABLE `" + table + "` CHARACTER SET " +
+                "utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (`" + StringUtils
+                .join(columns, "`,`") + "`)";
+        long accepted = 0;
+        long affected = 0;
+        List<LoadResult.Rejection> rejected = new ArrayList<LoadResult.Rejection>();
+        List<String> warnings = new ArrayList<String>();
+        Connection con = DB.loadConnection();
+        try {
+            ChunkStream stream;
+            do {
+                stream = new ChunkStream(queue);
+                Statement stmt = con.createStatement();
+                stmt.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(stream);
+                affected += stmt.executeUpdate(sql);
+                for (SQLWarning w = stmt.getWarnings(); w != null && warnings.size() < MAX_WARNINGS; w = w
+                        .getNextWarning()) {
+                    warnings.add(w.getMessage());
+                }
+                stmt.close();
+                accepted += stream.rows;
+                rejected.addAll(stream.rejected);
+                LOG.info("Bulk load into " + table + " accepted=" + accepted + " rejected=" + rejected.size());
+            } while (!stream.ended);
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+        return new LoadResult(accepted, affected, rejected, warnings);
+    }
+
+    private Callable<Chunk> convert(final List<Record> batch) {
+        return new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws Exception {
+                Chunk chunk = new Chunk();
+                StringBuilder sb = new StringBuilder(batch.size() * 64);
+                Object[] values = new Object[targets.length];
+                for (Record r : batch) {
+                    try {
+                        parse(r.text, values);
+                    } catch (Exception e) {
+                        chunk.rejected.add(new LoadResult.Rejection(r.line, r.text, e.getMessage()));
+                        continue;
+                    }
+                    for (int c = 0; c < values.length; c++) {
+                        if (c > 0)
+                            sb.append('\t');
+                        encode(sb, values[c]);
+                    }
+                    sb.append('\n');
+                    chunk.rows++;
+                }
+                chunk.data = sb.toString().getBytes(StandardCharsets.UTF_8);
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * Convert one record into column values, throwing if any of them can't
+     * be converted or fails its validator.
+     */
+    private void parse(String text, Object[] values) {
+        if (format == DataFormat.CSV) {
+            List<String> fields = parseCsv(text);
+            if (fields.size() != targets.length)
+                throw new IllegalArgumentException("Expected " + targets.length + " fields, got " + fields.size());
+            for (int c = 0; c < targets.length; c++) {
+                values[c] = convert(targets[c], fields.get(c));
+            }
+        } else {
+            JSONObject o = new JSONObject(text);
+            for (int c = 0; c < targets.length; c++) {
+                Object value = o.opt(targets[c].name);
+                if (value == JSONObject.NULL)
+                    value = null;
+                else if (value instanceof JSONObject || value instanceof JSONArray)
+                    value = value.toString();
+                values[c] = convert(targets[c], value);
+            }
+        }
+    }
+
+    private Object convert(Column column, Object value) {
+        Object parsed = column.parseObject(value);
+        Predicate<Object> validator = validators.get(column.name);
+        if (validator != null && !validator.test(parsed))
+            throw new IllegalArgumentException("Invalid value for " + column.name + " = " + value);
+        return parsed;
+    }
+
+    /**
+     * Append a value in LOAD DATA's default text format: \N for NULL and
+     * backslash escapes for the separators.
+     */
+    private static void encode(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("\\N");
+            return;
+        }
+        String s;
+        if (value instanceof Boolean) {
+            s = ((Boolean) value) ? "1" : "0";
+        } else if (value instanceof Timestamp) {
+            s = ((Timestamp) value).toLocalDateTime().format(DATETIME);
+        } else if (value instanceof java.sql.Date || value instanceof java.sql.Time) {
+            s = value.toString();
+        } else if (value instanceof java.util.Date) {
+            s = LocalDateTime.ofInstant(((java.util.Date) value).toInstant(), ZoneId.systemDefault()).format(DATETIME);
+        } else {
+            s = value.toString();
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\0':
+                    sb.append("\\0");
+                    break;
+                default:
+                    sb.append(ch);
+            }
+        }
+    }
+
+    /**
+     * Split an RFC 4180 record. Fields may be quoted with double quotes, and
+     * a doubled quote inside a quoted field stands for one quote.
+     */
+    static List<String> parseCsv(String record) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char ch = record.charAt(i);
+            if (quoted) {
+                if (ch == '"') {
+                    if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(ch);
+                }
+            } else if (ch == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (ch == '"') {
+                quoted = true;
+            } else {
+                field.append(ch);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class Record {
+        final long line;
+        final String text;
+
+        Record(long line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Reads records line by line. A CSV record with an open quote continues
+     * on the next line.
+     */
+    private class Records {
+        private final BufferedReader reader;
+        private long line;
+
+        Records(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        Record next() throws IOException {
+            String text;
+            do {
+                text = reader.readLine();
+                line++;
+                if (text == null)
+                    return null;
+            } while (text.trim().length() == 0);
+            long start = line;
+            if (format == DataFormat.CSV) {
+                while (StringUtils.countMatches(text, "\"") % 2 == 1) {
+                    String more = reader.readLine();
+                    if (more == null)
+                        break;
+                    line++;
+                    text = text + "\n" + more;
+                }
+            }
+            return new Record(start, text);
+        }
+    }
+
+    private static class Chunk {
+        byte[] data;
+        int rows;
+        List<LoadResult.Rejection> rejected = new ArrayList<LoadResult.Rejection>();
+    }
+
+    /**
+     * The encoded chunks of one LOAD DATA statement, read by the driver
+     * while the statement executes. Ends after ROWS_PER_STATEMENT rows or
+     * at the end of the input.
+     */
+    private static class ChunkStream extends InputStream {
+        private final BlockingQueue<Future<Chunk>> queue;
+        private byte[] current;
+        private int pos;
+        long rows;
+        boolean ended;
+        List<LoadResult.Rejection> rejected = new ArrayList<LoadResult.Rejection>();
+
+        ChunkStream(BlockingQueue<Future<Chunk>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current == null || pos == current.length) {
+                if (ended || rows >= ROWS_PER_STATEMENT)
+                    return -1;
+                next();
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private void next() throws IOException {
+            try {
+                Future<Chunk> f = queue.take();
+                if (f == END) {
+                    ended = true;
+                    current = null;
+                    return;
+                }
+                Chunk chunk = f.get();
+                rows += chunk.rows;
+                rejected.addAll(chunk.rejected);
+                current = chunk.data;
+                pos = 0;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.crispy.db;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * One row inserted, updated or deleted in a table.
+ */
+public class ChangeEvent implements IJSONConvertible {
+    public enum Type {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final String table;
+    private final Type type;
+    private final Map<String, Object> key;
+    private final Map<String, Object> values;
+    private final long time;
+
+    /**
+     * @param table  table the row belongs to
+     * @param type   kind of change
+     * @param key    primary key columns of the row, empty if unknown
+     * @param values new values of the columns written, empty for deletes
+     */
+    public ChangeEvent(String table, Type type, Map<String, Object> key, Map<String, Object> values) {
+        this.table = table;
+        this.type = type;
+        this.key = Collections.unmodifiableMap(key);
+        this.values = Collections.unmodifiableMap(values);
+        this.time = System.currentTimeMillis();
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Map<String, Object> getKey() {
+        return key;
+    }
+
+    /**
+     * Values written by the statement. Columns changed by an expression,
+     * like increments, are not included.
+     */
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject o = new JSONObject();
+        o.put("table", table);
+        o.put("type", type.name());
+        o.put("key", new JSONObject(key));
+        o.put("values", new JSONObject(values));
+        o.put("time", time);
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + table + " " + key;
+    }
+}
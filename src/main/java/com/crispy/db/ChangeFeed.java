@@ -0,0 +1,259 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * Publishes the inserts, updates and deletes made through this process to
+ * listeners registered per table, so caches and indexes can update
+ * incrementally instead of polling.
+ * <p>
+ * Writes through {@link Table} and through the Insert, Update and Delete
+ * classes of com.crispy.database are captured automatically. For updates,
+ * deletes and upserts the affected primary keys are read in the same
+ * transaction first, which only happens while the table has listeners. Changes made
+ * elsewhere, for example by another process, can be fed in with
+ * {@link #publish(ChangeEvent)}.
+ * <p>
+ * Events are delivered asynchronously on a small pool, in batches of up to
+ * BATCH_SIZE, in the order they were published for each table.
+ */
+public class ChangeFeed {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int BATCH_SIZE = 500;
+    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<ChangeListener>> LISTENERS = new
+            ConcurrentHashMap<String, CopyOnWriteArrayList<ChangeListener>>();
+    private static final ConcurrentHashMap<String, TableQueue> QUEUES = new ConcurrentHashMap<String, TableQueue>();
+    private static ExecutorService background;
+
+    private ChangeFeed() {
+    }
+
+    public static void listen(String table, ChangeListener listener) {
+        LISTENERS.computeIfAbsent(table, t -> new CopyOnWriteArrayList<ChangeListener>()).add(listener);
+    }
+
+    public static void unlisten(String table, ChangeListener listener) {
+        CopyOnWriteArrayList<ChangeListener> listeners = LISTENERS.get(table);
+        if (listeners != null)
+            listeners.remove(listener);
+    }
+
+    /**
+     * True if changes to the table are being listened to. Writers use it to
+     * skip the work of capturing changes nobody reads.
+     */
+    public static boolean hasListeners(String table) {
+        CopyOnWriteArrayList<ChangeListener> listeners = LISTENERS.get(table);
+        return listeners != null && !listeners.isEmpty();
+    }
+
+    public static void publish(ChangeEvent event) {
+        if (!hasListeners(event.getTable()))
+            return;
+        TableQueue queue = QUEUES.computeIfAbsent(event.getTable(), TableQueue::new);
+        queue.events.add(event);
+        queue.schedule();
+    }
+
+    public static void publish(List<ChangeEvent> events) {
+        for (ChangeEvent event : events) {
+            publish(event);
+        }
+    }
+
+    /**
+     * Run a captured UPDATE or DELETE, shared by {@link Table} and the Update
+     * and Delete classes of com.crispy.database. The primary keys of the
+     * rows matching the condition are locked and read first with SELECT ...
+     * FOR UPDATE in the same transaction, and an event is built for each.
+     * Callers check {@link #hasListeners(String)} first.
+     * <p>
+     * Without an events list the write runs in its own transaction and the
+     * events are published once it commits. With one, the caller already has
+     * a transaction open on con: the write joins it and the events are added
+     * to the list instead.
+     *
+     * @param where condition of the write without the WHERE keyword, or null
+     * @param values parameters of the condition
+     * @return number of rows affected
+     */
+    public static int write(Connection con, String table, List<String> primary, String where, Object[] values,
+                            PreparedStatement write, ChangeEvent.Type type, Map<String, Object> written,
+                            List<ChangeEvent> events) throws SQLException {
+        boolean own = events == null;
+        List<ChangeEvent> captured = new ArrayList<ChangeEvent>();
+        int ret;
+        if (own)
+            con.setAutoCommit(false);
+        try {
+            for (Map<String, Object> key : lockKeys(con, table, primary, where, values)) {
+                captured.add(new ChangeEvent(table, type, key, written));
+            }
+            ret = write.executeUpdate();
+            if (own)
+                con.commit();
+        } catch (SQLException e) {
+            if (own)
+                con.rollback();
+            throw e;
+        } finally {
+            if (own)
+                con.setAutoCommit(true);
+        }
+        if (own)
+            publish(captured);
+        else
+            events.addAll(captured);
+        return ret;
+    }
+
+    /**
+     * Lock and read the primary key of the row an INSERT ... ON DUPLICATE
+     * KEY UPDATE is about to update, if any. Run it in the write's
+     * transaction: Connector/J reports found rows, so an upsert writing the
+     * values a row already has counts 1 just like an insert, and only this
+     * read tells the two apart.
+     *
+     * @param uniques columns of the table's unique indexes; rows colliding
+     *                on the primary key are always looked for
+     * @return key of the existing row, null if the write inserts
+     */
+    public static Map<String, Object> lockExisting(Connection con, String table, List<String> primary,
+                                                   List<List<String>> uniques, Map<String, Object> written)
+            throws SQLException {
+        List<List<String>> candidates = new ArrayList<List<String>>();
+        candidates.add(primary);
+        candidates.addAll(uniques);
+        List<String> matches = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        for (List<String> columns : candidates) {
+            List<Object> key = new ArrayList<Object>();
+            for (String column : columns) {
+                // NULLs never collide in a unique index
+                if (written.get(column) == null)
+                    break;
+                key.add(written.get(column));
+            }
+            if (key.size() < columns.size())
+                continue;
+            matches.add("(`" + StringUtils.join(columns, "`=? AND `") + "`=?)");
+            values.addAll(key);
+        }
+        if (matches.isEmpty())
+            return null;
+        List<Map<String, Object>> keys = lockKeys(con, table, primary, StringUtils.join(matches, " OR "), values
+                .toArray());
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    private static List<Map<String, Object>> lockKeys(Connection con, String table, List<String> primary,
+                                                      String where, Object[] values) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT `" + StringUtils.join(primary, "`,`") + "` FROM `" + table + "`");
+        if (where != null)
+            sb.append(" WHERE " + where);
+        sb.append(" FOR UPDATE");
+        PreparedStatement pstmt = con.prepareStatement(sb.toString());
+        try {
+            for (int i = 0; i < values.length; i++) {
+                pstmt.setObject(i + 1, values[i]);
+            }
+            ResultSet results = pstmt.executeQuery();
+            List<Map<String, Object>> keys = new ArrayList<Map<String, Object>>();
+            while (results.next()) {
+                Map<String, Object> key = new HashMap<String, Object>();
+                for (int c = 0; c < primary.size(); c++) {
+                    key.put(primary.get(c), results.getObject(c + 1));
+                }
+                keys.add(key);
+            }
+            return keys;
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (background == null) {
+            background = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdown();
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+        return background;
+    }
+
+    /**
+     * Pending events of one table. At most one drain task per table runs at
+     * a time, which keeps delivery in order.
+     */
+    private static class TableQueue implements Runnable {
+        private final String table;
+        private final ConcurrentLinkedQueue<ChangeEvent> events;
+        private final AtomicBoolean scheduled;
+
+        TableQueue(String table) {
+            this.table = table;
+            this.events = new ConcurrentLinkedQueue<ChangeEvent>();
+            this.scheduled = new AtomicBoolean();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                executor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<ChangeEvent> batch = new ArrayList<ChangeEvent>();
+                ChangeEvent e;
+                while (batch.size() < BATCH_SIZE && (e = events.poll()) != null) {
+                    batch.add(e);
+                }
+                if (batch.size() > 0)
+                    deliver(batch);
+            } finally {
+                scheduled.set(false);
+                if (!events.isEmpty())
+                    schedule();
+            }
+        }
+
+        private void deliver(List<ChangeEvent> batch) {
+            CopyOnWriteArrayList<ChangeListener> listeners = LISTENERS.get(table);
+            if (listeners == null)
+                return;
+            for (ChangeListener listener : listeners) {
+                try {
+                    listener.changed(batch);
+                } catch (Throwable t) {
+                    LOG.error("Change listener failed on " + table, t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.crispy.db;
+
+import java.util.List;
+
+/**
+ * Receives the changes made to a table. See {@link ChangeFeed}.
+ */
+public interface ChangeListener {
+    /**
+     * Called with consecutive changes of one table, oldest first. Calls for
+     * the same table never overlap.
+     */
+    public void changed(List<ChangeEvent> events);
+}
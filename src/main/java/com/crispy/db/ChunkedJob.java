@@ -0,0 +1,231 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.crispy.log.Log;
+
+/**
+ * A large delete or update executed as a series of small statements, each
+ * bounded to a range of at most chunkSize primary keys. Between chunks the
+ * job sleeps in proportion to the time the chunk took, and optionally waits
+ * for replicas to catch up, so live traffic and replication keep up.
+ * <p>
+ * The last processed key is stored in the _chunked_jobs table under the job
+ * name, in the same transaction as the chunk. Starting a job with the same
+ * name after a crash continues after that key instead of starting over.
+ * <p>
+ * Each started job runs on its own thread, so a long job doesn't hold up
+ * the others.
+ */
+public class ChunkedJob {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final String JOBS_TABLE = "_chunked_jobs";
+
+    private final String jobName;
+    private final Table table;
+    private final boolean delete;
+    private int chunkSize;
+    private double pause;
+    private long maxLagSeconds;
+    private LongSupplier lag;
+
+    private volatile long rows;
+    private volatile long chunks;
+    private volatile Object lastKey;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private Future<?> future;
+
+    ChunkedJob(String jobName, Table table, boolean delete) {
+        this.jobName = jobName;
+        this.table = table;
+        this.delete = delete;
+        this.chunkSize = 1000;
+        this.pause = 0.5;
+        this.maxLagSeconds = -1;
+    }
+
+    /**
+     * Maximum number of primary keys touched by one statement.
+     */
+    public ChunkedJob chunkSize(int size) {
+        this.chunkSize = size;
+        return this;
+    }
+
+    /**
+     * Time to sleep after each chunk, as a fraction of the time the chunk
+     * took. 0.5 means the job keeps the database busy about two thirds of
+     * the time.
+     */
+    public ChunkedJob pause(double fraction) {
+        this.pause = fraction;
+        return this;
+    }
+
+    /**
+     * Wait before each chunk until the given probe reports a replication lag
+     * of at most maxSeconds. The probe would typically read
+     * Seconds_Behind_Master from SHOW SLAVE STATUS on a replica.
+     */
+    public ChunkedJob maxLag(long maxSeconds, LongSupplier lagProbe) {
+        this.maxLagSeconds = maxSeconds;
+        this.lag = lagProbe;
+        return this;
+    }
+
+    public synchronized ChunkedJob start() {
+        if (future != null)
+            throw new IllegalStateException("Job " + jobName + " already started");
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute();
+                } catch (Throwable t) {
+                    LOG.error("Chunked job " + jobName + " failed after " + rows + " rows", t);
+                    throw new IllegalStateException(t);
+                }
+            }
+        }, null);
+        new Thread(task, "chunked-" + jobName).start();
+        future = task;
+        return this;
+    }
+
+    /**
+     * Block until the job has finished. Rethrows the failure if it failed.
+     */
+    public void await() throws Exception {
+        future.get();
+    }
+
+    /**
+     * Stop after the current chunk. Progress is kept, so starting a job with
+     * the same name later resumes it.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public long getRowsAffected() {
+        return rows;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    public Object getLastKey() {
+        return lastKey;
+    }
+
+    private void execute() throws Exception {
+        String key = table.chunkKey();
+        Column keyColumn = DB.getMetadata(table.getName()).getColumn(key);
+        createJobsTable();
+
+        Row saved = Table.get(JOBS_TABLE).where("name", jobName).row();
+        if (saved != null && !saved.columnAsBool("done")) {
+            String last = saved.col("last_key").asString();
+            lastKey = (last == null) ? null : keyColumn.parseObject(last);
+            rows = saved.columnAsLong("rows");
+            LOG.info("Resuming chunked job " + jobName + " after key " + lastKey);
+        }
+
+        save();
+        while (!cancelled) {
+            waitForReplicas();
+            long start = System.currentTimeMillis();
+            if (!chunk())
+                break;
+            if (chunks % 100 == 0) {
+                LOG.info("Chunked job " + jobName + " chunks=" + chunks + " rows=" + rows + " key=" + lastKey);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            if (pause > 0)
+                Thread.sleep((long) (elapsed * pause));
+        }
+        save();
+        LOG.info("Chunked job " + jobName + (done ? " finished" : " cancelled") + " rows=" + rows);
+    }
+
+    /**
+     * Process the next chunk. The write and the saved progress commit in one
+     * transaction, so a chunk is never applied twice after a crash.
+     *
+     * @return false once there are no keys left
+     */
+    private boolean chunk() throws SQLException {
+        Connection con = DB.getConnection();
+        List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+        try {
+            con.setAutoCommit(false);
+            List<Object> keys = table.nextKeys(con, lastKey, chunkSize);
+            if (keys.isEmpty()) {
+                con.commit();
+                done = true;
+                return false;
+            }
+            Object last = keys.get(keys.size() - 1);
+            int count = table.executeRange(con, delete, keys.get(0), last, events);
+            DB.updateQuery(con, "UPDATE `" + JOBS_TABLE + "` SET `last_key`=?,`rows`=? WHERE `name`=?",
+                    last.toString(), rows + count, jobName);
+            con.commit();
+            rows += count;
+            lastKey = last;
+            chunks++;
+        } catch (SQLException e) {
+            try {
+                con.rollback();
+            } catch (Exception ex) {
+            }
+            throw e;
+        } finally {
+            try {
+                con.setAutoCommit(true);
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+        for (ChangeEvent event : events) {
+            ChangeFeed.publish(event);
+        }
+        return true;
+    }
+
+    private void waitForReplicas() throws InterruptedException {
+        if (lag == null)
+            return;
+        while (!cancelled && lag.getAsLong() > maxLagSeconds) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        }
+    }
+
+    private void save() {
+        Table.get(JOBS_TABLE).columns("name", "table", "last_key", "rows", "done")
+                .values(jobName, table.getName(), (lastKey == null) ? null : lastKey.toString(), rows, done)
+                .overwrite("table", "last_key", "rows", "done").add();
+    }
+
+    private static void createJobsTable() {
+        if (DB.getMetadata(JOBS_TABLE) != null)
+            return;
+        Table.get(JOBS_TABLE).columns(Column.text("name", 100),
+                Column.text("table", 100),
+                Column.text("last_key", 255),
+                Column.bigInteger("rows"),
+                Column.bool("done", false)).primary("name").create();
+    }
+}
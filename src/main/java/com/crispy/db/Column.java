@@ -15,6 +15,7 @@ import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.codec.binary.Base64;
@@ -37,6 +38,7 @@ public class Column {
 	boolean comment_base64;
 	String[] comment_cloudfront;
 	String comment_dimensions;
+	String generated;
 
 	public Column(String name, String type) {
 		this.name = name;
@@ -103,6 +105,69 @@ public class Column {
 		return new Column(name, "MEDIUMTEXT");
 	}
 
+	/**
+	 * MySQL JSON column. Values can be JSONObject, JSONArray, maps,
+	 * collections or JSON text.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static Column json(String name) {
+		return new Column(name, "JSON");
+	}
+
+	/**
+	 * Virtual column computed by MySQL from an expression over other columns.
+	 * It can't be written and can be indexed like any other column.
+	 * 
+	 * @param name
+	 * @param type
+	 * @param expression
+	 * @return
+	 */
+	public static Column generated(String name, String type, String expression) {
+		Column c = new Column(name, type);
+		c.generated = expression;
+		return c;
+	}
+
+	/**
+	 * Virtual column holding the value at a path of a JSON column, so an
+	 * index can be declared on a path that is queried often.
+	 * {@link Table#whereJson(String, String, Object)} on that path uses the
+	 * column.
+	 * 
+	 * @param name
+	 * @param type
+	 *            for instance VARCHAR(100) or BIGINT
+	 * @param jsonColumn
+	 * @param path
+	 *            like $.user.id; a leading $. may be left out
+	 * @return
+	 */
+	public static Column jsonPath(String name, String type, String jsonColumn, String path) {
+		Column c = new Column(name, type);
+		c.generated = jsonExpression("`" + jsonColumn + "`", "'" + StringEscapeUtils.escapeSql(jsonPath(path))
+				+ "'", c.type.startsWith("VARCHAR") || c.type.endsWith("TEXT"));
+		return c;
+	}
+
+	static String jsonPath(String path) {
+		return path.startsWith("$") ? path : "$." + path;
+	}
+
+	/**
+	 * JSON_EXTRACT of a path, unquoted when the value is compared as text.
+	 */
+	static String jsonExpression(String column, String path, boolean text) {
+		String extract = "JSON_EXTRACT(" + column + "," + path + ")";
+		return text ? "JSON_UNQUOTE(" + extract + ")" : extract;
+	}
+
+	public boolean isGenerated() {
+		return generated != null;
+	}
+
 	public static Column floating(String name) {
 		return new Column(name, "FLOAT");
 	}
@@ -175,14 +240,33 @@ public class Column {
 		if (comment_dimensions != null) {
 			ret.put("dimensions", comment_dimensions);
 		}
+		if (generated != null) {
+			// MySQL rewrites the expression it reports, keep the declared one
+			ret.put("generated", generated);
+		}
+		if (DB.dialect().keepsTypes()) {
+			ret.put("type", type);
+		}
 		return ret;
 	}
 
 	public String createDefinitions() {
+		return createDefinitions(true);
+	}
+
+	/**
+	 * @param inlinePrimary
+	 *            whether an auto increment column declares itself as the
+	 *            primary key. Partitioned tables need a composite primary key
+	 *            instead.
+	 */
+	String createDefinitions(boolean inlinePrimary) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("`" + name + "` ");
 		sb.append(type);
-		if (def != null) {
+		if (generated != null) {
+			sb.append(" AS (" + generated + ") VIRTUAL");
+		} else if (def != null) {
 			sb.append(" DEFAULT ");
 			if (type.startsWith("VARCHAR") || type.contains("TEXT")) {
 				sb.append("'" + def + "'");
@@ -196,7 +280,7 @@ public class Column {
 				sb.append(def);
 			}
 		} else if (autoIncrement)
-			sb.append(" PRIMARY KEY AUTO_INCREMENT");
+			sb.append(inlinePrimary ? " PRIMARY KEY AUTO_INCREMENT" : " NOT NULL AUTO_INCREMENT");
 		JSONObject commentJSON = commentJSON();
 		if (commentJSON.length() > 0)
 			sb.append(" COMMENT '" + StringEscapeUtils.escapeSql(commentJSON.toString()) + "'");
@@ -216,8 +300,8 @@ public class Column {
 		String columnName = results.getString("COLUMN_NAME").toLowerCase();
 		String type = results.getString("TYPE_NAME").toUpperCase();
 		Column c = new Column(columnName, type);
-		c.def = results.getString("COLUMN_DEF");
 		c.autoIncrement = results.getString("IS_AUTOINCREMENT").equals("YES");
+		c.def = DB.dialect().columnDefault(results.getString("COLUMN_DEF"), c.autoIncrement);
 
 		JSONObject commentJSON = parseComment(results.getString("REMARKS"));
 		if (commentJSON.has("folder")) {
@@ -239,9 +323,16 @@ public class Column {
 		if (commentJSON.has("base64")) {
 			c.comment_base64 = true;
 		}
+		if (commentJSON.has("generated")) {
+			c.generated = commentJSON.getString("generated");
+			c.def = null;
+		}
 		if (type.equals("VARCHAR")) {
 			c.type = "VARCHAR(" + results.getInt("COLUMN_SIZE") + ")";
 		}
+		if (commentJSON.has("type")) {
+			c.type = commentJSON.getString("type");
+		}
 
 		if (!results.getBoolean("IS_NULLABLE")) {
 			if (c.internalSimpleType() == SimpleType.TEXT) {
@@ -283,6 +374,13 @@ public class Column {
 			if (value instanceof Value) {
 				return parseObject(((Value) value).asObject());
 			}
+			if (type.equals("JSON")) {
+				if (value instanceof Map)
+					return new JSONObject((Map<?, ?>) value).toString();
+				if (value instanceof Collection)
+					return new JSONArray((Collection<?>) value).toString();
+				return value.toString();
+			}
 			if (type.endsWith("TEXT") || type.startsWith("VARCHAR")) {
 				if (comment_folder != null) {
 					String uploadFolder = comment_folder;
@@ -465,6 +563,8 @@ public class Column {
 			return SimpleType.INTEGER;
 		if (type.equals("BOOL"))
 			return SimpleType.BOOL;
+		if (type.equals("JSON"))
+			return SimpleType.JSON;
 		
 		return SimpleType.TEXT;
 	}
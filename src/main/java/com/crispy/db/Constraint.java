@@ -30,17 +30,13 @@ public class Constraint {
 
 	public void create(String table) throws SQLException {
 		sourceTable = table;
-		DB.updateQuery("ALTER TABLE `" + sourceTable + "` ADD CONSTRAINT `"
-				+ sourceTable + "_" + sourceColumn + "` FOREIGN KEY `"
-				+ sourceTable + "_" + sourceColumn + "`(`" + sourceColumn
-				+ "`) REFERENCES `" + destTable + "`(`" + destColumn + "`)");
+		DB.updateQuery(DB.dialect().addForeignKey(sourceTable, sourceColumn, destTable, destColumn));
 	}
 
 	public void drop() throws SQLException {
-		DB.updateQuery("ALTER TABLE `" + sourceTable + "` DROP FOREIGN KEY `"
-				+ sourceTable + "_" + sourceColumn + "`");
-		DB.updateQuery("ALTER TABLE `" + sourceTable + "` DROP INDEX `"
-				+ sourceTable + "_" + sourceColumn + "`");
+		for (String sql : DB.dialect().dropForeignKey(sourceTable, sourceColumn)) {
+			DB.updateQuery(sql);
+		}
 	}
 
 	public static Constraint to(List<Constraint> constraints, String table) {
@@ -6,6 +6,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.sql.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -14,17 +15,27 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
 
 public class DB {
     private static DB INSTANCE = new DB();
     private static Log LOG = Log.get("jappy.db");
+    // Shard the current thread is bound to, null for the first one
+    static final ThreadLocal<Integer> SHARD = new ThreadLocal<Integer>();
     private BasicDataSource mDS;
     private String database;
+    private Dialect dialect;
     private ConcurrentHashMap<String, Metadata> tables;
+    private CopyOnWriteArrayList<BasicDataSource> shards;
+    // Data sources with extra connection options, by purpose and shard
+    private ConcurrentHashMap<String, BasicDataSource> optionSources;
 
     private DB() {
         tables = new ConcurrentHashMap<String, Metadata>();
+        shards = new CopyOnWriteArrayList<BasicDataSource>();
+        optionSources = new ConcurrentHashMap<String, BasicDataSource>();
+        dialect = Dialect.MYSQL;
     }
 
     public static void drop(String host, String database, String user, String password) throws SQLException {
@@ -77,6 +88,39 @@ public class DB {
      * @param password
      */
     public static void init(String host, String database, String user, String password) {
+        init(Dialect.MYSQL, host, database, user, password);
+    }
+
+    /**
+     * Initialize DB on an in-memory H2 database in MySQL mode, which lives
+     * until the JVM exits. See {@link Dialect#H2}.
+     *
+     * @param database
+     */
+    public static void initEmbedded(String database) {
+        init(Dialect.H2, null, database, "sa", "");
+    }
+
+    /**
+     * Initialize DB on an H2 database in MySQL mode stored in the given
+     * directory, created if it doesn't exist.
+     *
+     * @param directory
+     * @param database
+     */
+    public static void initEmbedded(File directory, String database) {
+        init(Dialect.H2, directory.getAbsolutePath(), database, "sa", "");
+    }
+
+    public static Dialect dialect() {
+        return INSTANCE.dialect;
+    }
+
+    static String database() {
+        return INSTANCE.database;
+    }
+
+    private static void init(Dialect dialect, String location, String database, String user, String password) {
         if (INSTANCE.mDS != null) {
             try {
                 INSTANCE.mDS.close();
@@ -84,16 +128,121 @@ public class DB {
                 LOG.warn("Connection might not have been closed. Potential leak");
             }
         }
+        for (BasicDataSource shard : INSTANCE.shards) {
+            try {
+                shard.close();
+            } catch (Throwable t) {
+                LOG.warn("Connection might not have been closed. Potential leak");
+            }
+        }
+        INSTANCE.shards.clear();
+        closeOptionSources();
+        Shards.reset();
+        INSTANCE.tables.clear();
         INSTANCE.database = database;
+        INSTANCE.dialect = dialect;
+        INSTANCE.mDS = dataSource(location, database, user, password);
+
+        createMetadataTable();
+    }
+
+    /**
+     * Add another MySQL database as a shard. The database given to
+     * {@link #init(String, String, String, String)} is shard 0. Tables with
+     * a shard key are spread across all shards, see {@link Shards}.
+     *
+     * @param host
+     * @param database
+     * @param user
+     * @param password
+     * @return number of the new shard
+     */
+    public static int addShard(String host, String database, String user, String password) {
+        INSTANCE.shards.add(dataSource(host, database, user, password));
+        int shard = INSTANCE.shards.size();
+        Shards.on(shard, () -> {
+            createMetadataTable();
+            return null;
+        });
+        return shard;
+    }
+
+    public static int shardCount() {
+        return 1 + INSTANCE.shards.size();
+    }
+
+    private static BasicDataSource dataSource(String location, String database, String user, String password) {
+        Dialect dialect = INSTANCE.dialect;
         BasicDataSource bds = new BasicDataSource();
-        bds.setDriverClassName("com.mysql.jdbc.Driver");
-        bds.setUrl("jdbc:mysql://" + host + "/" + database + "?zeroDateTimeBehavior=convertToNull");
+        bds.setDriverClassName(dialect.driver());
+        bds.setUrl(dialect.url(location, database));
         bds.setUsername(user);
         bds.setPassword(password);
         bds.setTestOnBorrow(true);
         bds.setValidationQuery("SELECT 1");
-        INSTANCE.mDS = bds;
+        try {
+            Connection con = bds.getConnection();
+            try {
+                dialect.prepare(con);
+            } finally {
+                con.close();
+            }
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+        return bds;
+    }
+
+    /**
+     * Connection to the current shard that accepts several statements in one
+     * execute. Only {@link #batch(Table...)} uses it: the pooled connections
+     * don't allow stacked statements, so injected SQL can't add any.
+     */
+    private static Connection batchConnection() throws SQLException {
+        return optionConnection("batch", INSTANCE.dialect::multiStatementUrl);
+    }
+
+    /**
+     * Connection to the current shard that may send local files to the
+     * server. Only {@link BulkLoader} uses it, so a rogue server can't ask
+     * the pooled connections for client files.
+     */
+    static Connection loadConnection() throws SQLException {
+        return optionConnection("load", INSTANCE.dialect::localInfileUrl);
+    }
+
+    private static Connection optionConnection(String purpose, Function<String, String> url) throws SQLException {
+        Integer current = SHARD.get();
+        int shard = (current == null) ? 0 : current;
+        BasicDataSource source = INSTANCE.optionSources.computeIfAbsent(purpose + "@" + shard, k -> {
+            BasicDataSource base = (shard == 0) ? INSTANCE.mDS : INSTANCE.shards.get(shard - 1);
+            BasicDataSource bds = new BasicDataSource();
+            bds.setDriverClassName(base.getDriverClassName());
+            bds.setUrl(url.apply(base.getUrl()));
+            bds.setUsername(base.getUsername());
+            bds.setPassword(base.getPassword());
+            bds.setTestOnBorrow(true);
+            bds.setValidationQuery("SELECT 1");
+            return bds;
+        });
+        long start = System.nanoTime();
+        Connection con = source.getConnection();
+        return QueryStats.wrap(con, System.nanoTime() - start);
+    }
 
+    private static void closeOptionSources() {
+        for (BasicDataSource source : INSTANCE.optionSources.values()) {
+            try {
+                source.close();
+            } catch (Throwable t) {
+                LOG.warn("Connection might not have been closed. Potential leak");
+            }
+        }
+        INSTANCE.optionSources.clear();
+    }
+
+    private static void createMetadataTable() {
         Table.get("_metadata")
                 .columns(Column.text("table", 100),
                         Column.mediumtext("metadata")).primary("table")
@@ -107,9 +256,12 @@ public class DB {
     public static void shutdown() {
         if (INSTANCE.mDS != null) {
             try {
+                for (BasicDataSource shard : INSTANCE.shards) {
+                    shard.close();
+                }
+                closeOptionSources();
                 INSTANCE.mDS.close();
-                Driver d = DriverManager.getDriver("jdbc:mysql://localhost/"
-                        + INSTANCE.database);
+                Driver d = DriverManager.getDriver(INSTANCE.mDS.getUrl());
                 DriverManager.deregisterDriver(d);
             } catch (Exception e) {
                 e.printStackTrace();
@@ -132,7 +284,8 @@ public class DB {
             boolean tableExists = false;
 
             DatabaseMetaData meta = con.getMetaData();
-            ResultSet results = meta.getTables(null, null, table, null);
+            Dialect dialect = INSTANCE.dialect;
+            ResultSet results = meta.getTables(null, dialect.schema(), table, null);
             if (results.next()) {
                 tableExists = true;
                 if (!table.equals("_metadata")) {
@@ -156,12 +309,12 @@ public class DB {
 
             if (tableExists) {
                 // First let's load columns.
-                results = meta.getColumns(null, null, table, null);
+                results = meta.getColumns(null, dialect.schema(), table, null);
                 while (results.next()) {
                     m.columns.add(Column.parseResultSet(results));
                 }
 
-                results = meta.getImportedKeys(null, null, table);
+                results = meta.getImportedKeys(null, dialect.schema(), table);
                 while (results.next()) {
                     Constraint c = new Constraint();
                     c.sourceTable = m.name;
@@ -171,9 +324,9 @@ public class DB {
                     m.constraints.add(c);
                 }
 
-                results = meta.getIndexInfo(null, null, table, false, false);
+                results = meta.getIndexInfo(null, dialect.schema(), table, false, false);
                 while (results.next()) {
-                    String name = results.getString("INDEX_NAME");
+                    String name = dialect.indexName(results.getString("INDEX_NAME"));
                     if (name.startsWith(m.name + "_"))
                         continue;
                     if (name.equals("PRIMARY")) {
@@ -207,9 +360,21 @@ public class DB {
         return INSTANCE.tables.get(table);
     }
 
+    /**
+     * A connection to the shard the current thread is bound to with
+     * {@link Shards#on(int, java.util.function.Supplier)}, or to shard 0.
+     */
     public static Connection getConnection() {
+        Integer shard = SHARD.get();
+        return getConnection(shard == null ? 0 : shard);
+    }
+
+    static Connection getConnection(int shard) {
         try {
-            return INSTANCE.mDS.getConnection();
+            long start = System.nanoTime();
+            Connection con = (shard == 0) ? INSTANCE.mDS.getConnection() : INSTANCE.shards.get(shard - 1)
+                    .getConnection();
+            return QueryStats.wrap(con, System.nanoTime() - start);
         } catch (Throwable t) {
             LOG.error("Couldn't retrieve connection from datastore", t);
             return null;
@@ -253,7 +418,6 @@ public class DB {
 
     public static void updateQuery(String sql, Object... args)
             throws SQLException {
-        System.out.println(sql);
         Connection con = getConnection();
         try {
             updateQuery(con, sql, args);
@@ -352,6 +516,87 @@ public class DB {
         }
     }
 
+    /**
+     * Run several independent SELECTs in a single round trip. The queries are
+     * sent together as one multi-statement on one connection and the result
+     * sets are read back in order. Databases without multi-statements run
+     * them one after the other. Queries on sharded tables and searches
+     * answered from a {@link SearchIndex} run through {@link Table#rows()}
+     * on their own.
+     *
+     * @param queries
+     * @return rows of each query, in the order the queries were given
+     */
+    public static List<List<Row>> batch(Table... queries) {
+        List<List<Row>> ret = new ArrayList<List<Row>>();
+        if (queries.length == 0)
+            return ret;
+        if (!INSTANCE.dialect.multiStatements()) {
+            for (Table t : queries) {
+                ret.add(t.rows());
+            }
+            return ret;
+        }
+        List<Table> batched = new ArrayList<Table>();
+        for (Table t : queries) {
+            if (t.batchable()) {
+                batched.add(t);
+                ret.add(null);
+            } else {
+                ret.add(t.rows());
+            }
+        }
+        if (batched.isEmpty())
+            return ret;
+        StringBuilder sb = new StringBuilder();
+        for (Table t : batched) {
+            if (sb.length() > 0)
+                sb.append(";");
+            sb.append(t.selectSql(false));
+        }
+        LOG.trace(sb.toString());
+        Connection con;
+        try {
+            con = batchConnection();
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+        try {
+            PreparedStatement pstmt = con.prepareStatement(sb.toString());
+            int c = 1;
+            for (Table t : batched) {
+                c = t.selectValues(pstmt, c);
+            }
+            boolean hasResults = pstmt.execute();
+            int slot = 0;
+            for (int q = 0; q < batched.size(); q++) {
+                if (!hasResults)
+                    throw new IllegalStateException("Missing result set for query " + batched.get(q));
+                List<Row> rows = new ArrayList<Row>();
+                ResultSet results = pstmt.getResultSet();
+                while (results.next()) {
+                    rows.add(new Row(results));
+                }
+                results.close();
+                while (ret.get(slot) != null)
+                    slot++;
+                ret.set(slot, rows);
+                hasResults = pstmt.getMoreResults();
+            }
+            pstmt.close();
+            return ret;
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
     public boolean tableExists(String table) throws SQLException {
         Connection con = getConnection();
         try {
@@ -0,0 +1,22 @@
+package com.crispy.db;
+
+/**
+ * Formats for bulk loading and exporting rows. See
+ * {@link Table#bulkLoad(java.io.InputStream, DataFormat)} and
+ * {@link Table#export(DataFormat)}.
+ */
+public enum DataFormat {
+    /**
+     * Comma separated values, quoted with double quotes as in RFC 4180.
+     * Without explicit columns the first line is a header naming them.
+     */
+    CSV,
+    /**
+     * One JSON object per line, keyed by column name.
+     */
+    NDJSON,
+    /**
+     * Compact typed encoding described in {@link Export}. Export only.
+     */
+    BINARY
+}
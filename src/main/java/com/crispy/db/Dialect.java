@@ -0,0 +1,187 @@
+package com.crispy.db;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * SQL differences between the databases {@link DB} can run on.
+ * <p>
+ * MYSQL is the default. H2 runs the framework on an embedded, in-process
+ * H2 database in MySQL mode (1.4.200 or later, add it to the classpath),
+ * with {@link DB#initEmbedded(String)} for an in-memory database or
+ * {@link DB#initEmbedded(java.io.File, String)} for one stored in files.
+ * Table creation, schema changes, queries, upserts, change feeds and
+ * sharding work the same; page() counts its total with a second query. Features built on MySQL-only SQL don't: bulk
+ * loads with LOAD DATA, MATCH ... AGAINST, JSON path conditions,
+ * partitions, online migrations and {@link JobQueue} (SKIP LOCKED).
+ * {@link Locks} only lock within the JVM.
+ */
+public enum Dialect {
+    MYSQL("com.mysql.jdbc.Driver"),
+    H2("org.h2.Driver");
+
+    private static final Pattern H2_INDEX_SUFFIX = Pattern.compile("_INDEX_[0-9A-F]+$");
+
+    private final String driver;
+
+    Dialect(String driver) {
+        this.driver = driver;
+    }
+
+    public String driver() {
+        return driver;
+    }
+
+    /**
+     * JDBC url of a database.
+     *
+     * @param location host for MySQL; directory for H2, or null for an
+     *                 in-memory database that lives until the JVM exits
+     */
+    String url(String location, String database) {
+        if (this == MYSQL)
+            return "jdbc:mysql://" + location + "/" + database + "?zeroDateTimeBehavior=convertToNull";
+        String path = (location == null) ? "mem:" + database : "file:" + location + "/" + database;
+        return "jdbc:h2:" + path + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * Whether several statements can run in one execute and return their
+     * results together.
+     */
+    boolean multiStatements() {
+        return this == MYSQL;
+    }
+
+    /**
+     * Whether a select can count its rows without the LIMIT through
+     * SQL_CALC_FOUND_ROWS and FOUND_ROWS().
+     */
+    boolean foundRows() {
+        return this == MYSQL;
+    }
+
+    /**
+     * Url of connections that run several statements in one execute.
+     */
+    String multiStatementUrl(String url) {
+        return url + "&allowMultiQueries=true";
+    }
+
+    /**
+     * Url of connections that send local files for LOAD DATA LOCAL INFILE.
+     */
+    String localInfileUrl(String url) {
+        return url + "&allowLoadLocalInfile=true";
+    }
+
+    /**
+     * Schema to read table metadata from, so H2's INFORMATION_SCHEMA tables
+     * don't match user tables of the same name.
+     */
+    String schema() {
+        return (this == MYSQL) ? null : "public";
+    }
+
+    /**
+     * Whether column types are kept in the column comment. H2 reports its
+     * own type names, which would make create() modify every column.
+     */
+    boolean keepsTypes() {
+        return this == H2;
+    }
+
+    /**
+     * Index name as declared: PRIMARY for the primary key, without the
+     * suffix H2 adds to unique and foreign key indexes.
+     */
+    String indexName(String reported) {
+        if (this == MYSQL)
+            return reported;
+        if (reported.startsWith("PRIMARY_KEY"))
+            return "PRIMARY";
+        return H2_INDEX_SUFFIX.matcher(reported).replaceFirst("");
+    }
+
+    /**
+     * Default value as MySQL reports it: string defaults unquoted.
+     */
+    String columnDefault(String reported, boolean autoIncrement) {
+        if (this == MYSQL || reported == null)
+            return reported;
+        if (autoIncrement)
+            return null;
+        if (reported.length() >= 2 && reported.startsWith("'") && reported.endsWith("'"))
+            return reported.substring(1, reported.length() - 1).replace("''", "'");
+        return reported;
+    }
+
+    /**
+     * Fetch size that streams a result set instead of reading it into memory:
+     * Integer.MIN_VALUE for MySQL's driver, which H2 rejects, and a batch of
+     * rows for H2.
+     */
+    int streamingFetchSize() {
+        return (this == MYSQL) ? Integer.MIN_VALUE : 1000;
+    }
+
+    String addForeignKey(String table, String column, String destTable, String destColumn) {
+        String name = table + "_" + column;
+        // H2 doesn't take an index name after FOREIGN KEY
+        return "ALTER TABLE `" + table + "` ADD CONSTRAINT `" + name + "` FOREIGN KEY " + ((this == MYSQL) ? "`" +
+                name + "`" : "") + "(`" + column + "`) REFERENCES `" + destTable + "`(`" + destColumn + "`)";
+    }
+
+    List<String> dropForeignKey(String table, String column) {
+        String name = table + "_" + column;
+        if (this == H2)
+            return Arrays.asList("ALTER TABLE `" + table + "` DROP CONSTRAINT `" + name + "`");
+        return Arrays.asList("ALTER TABLE `" + table + "` DROP FOREIGN KEY `" + name + "`",
+                "ALTER TABLE `" + table + "` DROP INDEX `" + name + "`");
+    }
+
+    /**
+     * Statements adding a primary key. MySQL makes the key columns NOT NULL,
+     * H2 needs them altered first.
+     */
+    List<String> addPrimaryKey(String table, Index primary) {
+        List<String> ret = new ArrayList<String>();
+        if (this == H2) {
+            for (String column : primary.columns) {
+                ret.add("ALTER TABLE `" + table + "` ALTER COLUMN `" + column + "` SET NOT NULL");
+            }
+        }
+        ret.add("ALTER TABLE `" + table + "` ADD PRIMARY KEY " + primary.createDefinition());
+        return ret;
+    }
+
+    /**
+     * Define the MySQL functions the framework uses that H2 lacks, once per
+     * database.
+     */
+    void prepare(Connection con) throws SQLException {
+        if (this != H2)
+            return;
+        Statement s = con.createStatement();
+        s.executeUpdate("CREATE ALIAS IF NOT EXISTS CRC32 FOR \"" + Dialect.class.getName() + ".crc32\"");
+        s.close();
+    }
+
+    /**
+     * MySQL's CRC32() for H2.
+     */
+    public static long crc32(String value) {
+        if (value == null)
+            return 0;
+        CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
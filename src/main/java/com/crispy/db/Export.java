@@ -0,0 +1,387 @@
+package com.crispy.db;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+import com.crispy.log.Log;
+
+/**
+ * Dumps the rows of a table matching its where clause, reading primary key
+ * ranges concurrently on several connections.
+ * <p>
+ * All connections read from one consistent snapshot: the table is briefly
+ * locked with LOCK TABLES ... READ while every connection starts a
+ * REPEATABLE READ transaction WITH CONSISTENT SNAPSHOT, so writes that
+ * commit during the export are not seen by any of them.
+ * <p>
+ * Values are written the way {@link Row#toJSONObject()} does, so TIMESTAMP
+ * columns become epoch milliseconds. CSV and NDJSON exports can be loaded
+ * back with {@link Table#bulkLoad(java.io.InputStream, DataFormat)}.
+ * <p>
+ * The BINARY format is a DataOutputStream encoding: the magic "JPX1", the
+ * column count as an int, then per column its name and SQL type with
+ * writeUTF. Each row is a 1 byte marker followed by the values in the
+ * {@link RowCodec} encoding. A 0 byte marker ends the rows.
+ */
+public class Export {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final byte[] MAGIC = "JPX1".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Table table;
+    private final DataFormat format;
+    private boolean gzip;
+    private int parallelism;
+    private int chunkSize;
+    private KeyRanges ranges;
+
+    Export(Table table, DataFormat format) {
+        this.table = table;
+        this.format = format;
+        this.parallelism = 4;
+        this.chunkSize = 100000;
+    }
+
+    /**
+     * Compress the output. Every range is compressed on its own thread; a
+     * single stream is then a concatenation of gzip members, which gunzip
+     * and GZIPInputStream read as one.
+     */
+    public Export gzip() {
+        this.gzip = true;
+        return this;
+    }
+
+    /**
+     * Number of connections reading ranges at the same time.
+     */
+    public Export parallelism(int connections) {
+        this.parallelism = connections;
+        return this;
+    }
+
+    /**
+     * Rows per primary key range, and per part file with
+     * {@link #toDirectory(File)}.
+     */
+    public Export chunkSize(int rows) {
+        this.chunkSize = rows;
+        return this;
+    }
+
+    /**
+     * Write all rows to one stream, in primary key order. The stream is not
+     * closed.
+     *
+     * @return number of rows written
+     */
+    public long to(final OutputStream out) {
+        final TreeMap<Integer, byte[]> pending = new TreeMap<Integer, byte[]>();
+        final int[] nextToWrite = new int[]{0};
+        final Semaphore buffered = new Semaphore(parallelism * 2);
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            OutputStream h = open(header);
+            writeHeader(h, columnNames());
+            h.close();
+            out.write(header.toByteArray());
+
+            long rows = run(buffered, new RangeWriter() {
+                @Override
+                public long write(Connection con, int index, Object from, Object to) throws Exception {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    OutputStream o = open(buffer);
+                    long n = writeRows(con, from, to, o);
+                    o.close();
+                    synchronized (pending) {
+                        pending.put(index, buffer.toByteArray());
+                        while (pending.containsKey(nextToWrite[0])) {
+                            out.write(pending.remove(nextToWrite[0]++));
+                            buffered.release();
+                        }
+                    }
+                    return n;
+                }
+            });
+
+            ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+            OutputStream t = open(trailer);
+            writeTrailer(t);
+            t.close();
+            out.write(trailer.toByteArray());
+            out.flush();
+            return rows;
+        } catch (Exception e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write one self contained part file per primary key range into the
+     * directory, named table-00000.ndjson, table-00001.ndjson and so on.
+     *
+     * @return the part files in key order
+     */
+    public List<File> toDirectory(final File directory) {
+        final List<File> files = Collections.synchronizedList(new ArrayList<File>());
+        directory.mkdirs();
+        try {
+            run(null, new RangeWriter() {
+                @Override
+                public long write(Connection con, int index, Object from, Object to) throws Exception {
+                    File f = new File(directory, String.format("%s-%05d.%s%s", table.getName(), index, format.name()
+                            .toLowerCase(), gzip ? ".gz" : ""));
+                    OutputStream o = open(new BufferedOutputStream(new FileOutputStream(f)));
+                    try {
+                        writeHeader(o, columnNames());
+                        long n = writeRows(con, from, to, o);
+                        writeTrailer(o);
+                        return n;
+                    } finally {
+                        o.close();
+                        files.add(f);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private interface RangeWriter {
+        long write(Connection con, int index, Object from, Object to) throws Exception;
+    }
+
+    private OutputStream open(OutputStream out) throws IOException {
+        return gzip ? new GZIPOutputStream(out, 65536) : out;
+    }
+
+    private List<String> columnNames() {
+        List<String> names = new ArrayList<String>();
+        for (Column c : DB.getMetadata(table.getName()).columns) {
+            names.add(c.name);
+        }
+        return names;
+    }
+
+    /**
+     * Open snapshot transactions on all connections, split the key space
+     * and hand the ranges to one worker per connection.
+     *
+     * @param buffered permits for ranges that may be in flight, or null
+     */
+    private long run(final Semaphore buffered, final RangeWriter writer) throws Exception {
+        final List<Connection> cons = new ArrayList<Connection>();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        try {
+            Connection lock = DB.getConnection();
+            try {
+                DB.updateQuery(lock, "LOCK TABLES `" + table.getName() + "` READ");
+                try {
+                    for (int i = 0; i < parallelism; i++) {
+                        Connection con = DB.getConnection();
+                        cons.add(con);
+                        DB.updateQuery(con, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                        DB.updateQuery(con, "START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                    }
+                } finally {
+                    DB.updateQuery(lock, "UNLOCK TABLES");
+                }
+            } finally {
+                lock.close();
+            }
+
+            ranges = new KeyRanges(table, chunkSize);
+            final List<Object> bounds = new ArrayList<Object>();
+            Object bound = null;
+            do {
+                bound = ranges.boundary(cons.get(0), bound);
+                bounds.add(bound);
+            } while (bound != null);
+            LOG.info("Exporting " + table.getName() + " in " + bounds.size() + " ranges");
+
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong rows = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Connection con : cons) {
+                futures.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (true) {
+                            if (buffered != null)
+                                buffered.acquire();
+                            int index = next.getAndIncrement();
+                            if (index >= bounds.size()) {
+                                if (buffered != null)
+                                    buffered.release();
+                                return null;
+                            }
+                            Object from = (index == 0) ? null : bounds.get(index - 1);
+                            rows.addAndGet(writer.write(con, index, from, bounds.get(index)));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            LOG.info("Exported " + rows.get() + " rows of " + table.getName());
+            return rows.get();
+        } finally {
+            workers.shutdownNow();
+            for (Connection con : cons) {
+                try {
+                    DB.updateQuery(con, "COMMIT");
+                    con.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private long writeRows(Connection con, Object from, Object to, OutputStream out) throws SQLException,
+            IOException {
+        PreparedStatement pstmt = ranges.select(con, from, to);
+        ResultSet results = pstmt.executeQuery();
+        ResultSetMetaData meta = results.getMetaData();
+        Metadata m = DB.getMetadata(table.getName());
+        String[] types = new String[meta.getColumnCount()];
+        String[] names = new String[types.length];
+        for (int c = 0; c < types.length; c++) {
+            names[c] = meta.getColumnLabel(c + 1);
+            Column column = m.getColumn(names[c]);
+            types[c] = (column == null) ? "" : column.type;
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        long n = 0;
+        Object[] values = new Object[types.length];
+        while (results.next()) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] = results.getObject(c + 1);
+            }
+            switch (format) {
+                case CSV:
+                    writeCsv(data, types, values);
+                    break;
+                case NDJSON:
+                    writeJson(data, names, types, values);
+                    break;
+                default:
+                    writeBinary(data, types, values);
+            }
+            n++;
+        }
+        data.flush();
+        pstmt.close();
+        return n;
+    }
+
+    private void writeHeader(OutputStream out, List<String> names) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        if (format == DataFormat.CSV) {
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < names.size(); c++) {
+                if (c > 0)
+                    sb.append(',');
+                sb.append(csv(names.get(c)));
+            }
+            sb.append('\n');
+            data.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (format == DataFormat.BINARY) {
+            Metadata m = DB.getMetadata(table.getName());
+            data.write(MAGIC);
+            data.writeInt(names.size());
+            for (String name : names) {
+                data.writeUTF(name);
+                data.writeUTF(m.getColumn(name).type);
+            }
+        }
+        data.flush();
+    }
+
+    private void writeTrailer(OutputStream out) throws IOException {
+        if (format == DataFormat.BINARY) {
+            out.write(0);
+            out.flush();
+        }
+    }
+
+    /**
+     * A value as text, formatted like {@link Row#toJSONObject()} does.
+     */
+    private static Object text(String type, Object value) {
+        if (value instanceof Timestamp) {
+            if (type.equals("TIMESTAMP"))
+                return ((Timestamp) value).getTime();
+            return ((Timestamp) value).toLocalDateTime().format(DATETIME);
+        }
+        if (value instanceof byte[])
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        return value;
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1 && s.indexOf('\r') == -1)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static void writeCsv(DataOutputStream out, String[] types, Object[] values) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < values.length; c++) {
+            if (c > 0)
+                sb.append(',');
+            if (values[c] != null)
+                sb.append(csv(text(types[c], values[c]).toString()));
+        }
+        sb.append('\n');
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeJson(DataOutputStream out, String[] names, String[] types, Object[] values) throws
+            IOException {
+        JSONObject o = new JSONObject();
+        for (int c = 0; c < values.length; c++) {
+            Object value = text(types[c], values[c]);
+            o.put(names[c], (value == null) ? JSONObject.NULL : value);
+        }
+        out.write(o.toString().getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private static void writeBinary(DataOutputStream out, String[] types, Object[] values) throws IOException {
+        out.write(1);
+        RowCodec.encode(out, types, values);
+    }
+}
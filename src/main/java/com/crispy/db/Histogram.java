@@ -0,0 +1,108 @@
+package com.crispy.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Values fall into
+ * logarithmic buckets, eight per power of two, so percentiles are accurate
+ * to within about 6% whatever the range. Recording is a couple of atomic
+ * increments and never blocks.
+ */
+public class Histogram implements IJSONConvertible {
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Long::max, 0);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Value below which the given fraction of the recorded values lie, for
+     * instance 0.99 for the 99th percentile.
+     */
+    public long percentile(double fraction) {
+        long n = count.sum();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank)
+                return Math.min((lower(b) + lower(b + 1)) / 2, max());
+        }
+        return max();
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject o = new JSONObject();
+        o.put("count", count());
+        o.put("meanMs", millis(mean()));
+        o.put("p50Ms", millis(percentile(0.5)));
+        o.put("p99Ms", millis(percentile(0.99)));
+        o.put("maxMs", millis(max()));
+        return o;
+    }
+
+    private static double millis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each. Above that the bucket is
+     * the power of two plus the next three bits.
+     */
+    private static int bucket(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, (exponent - 2) * SUB_BUCKETS + sub);
+    }
+
+    private static long lower(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + 2;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+}
@@ -0,0 +1,13 @@
+package com.crispy.db;
+
+/**
+ * Runs the jobs of a {@link JobQueue}.
+ */
+public interface JobHandler {
+    /**
+     * Called once per claimed job. Returning completes the job, throwing
+     * schedules a retry until the queue's maximum attempts are used up.
+     * Jobs may run more than once, so handlers should be idempotent.
+     */
+    public void run(JobQueue.Job job) throws Exception;
+}
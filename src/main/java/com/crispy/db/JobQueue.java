@@ -0,0 +1,557 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+
+import com.crispy.log.Log;
+
+/**
+ * Durable queue of jobs kept in the _jobs table, so queued work survives
+ * restarts and is shared by every node running workers for the queue.
+ * <p>
+ * Workers claim due jobs in batches with SELECT ... FOR UPDATE SKIP LOCKED,
+ * so concurrent workers take different rows instead of waiting on each
+ * other, and push the claimed jobs' run_at forward by the visibility
+ * timeout. A job whose worker dies becomes due again when the timeout
+ * passes. Finished jobs are deleted; failed jobs are retried with
+ * exponential backoff and moved to _jobs_failed after the last attempt,
+ * including when that attempt times out.
+ * Times come from the database clock so nodes don't need synchronized
+ * clocks. SKIP LOCKED needs MySQL 8.0.
+ * <p>
+ * Lower priorities run first. Jobs can run more than once, for instance when
+ * a job outlives its visibility timeout, so handlers should be idempotent
+ * or call {@link Job#extend(long, TimeUnit)}.
+ */
+public class JobQueue {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final String JOBS_TABLE = "_jobs";
+    private static final String FAILED_TABLE = "_jobs_failed";
+    private static final String NOW = "CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS UNSIGNED)";
+    private static final ConcurrentHashMap<String, JobQueue> QUEUES = new ConcurrentHashMap<String, JobQueue>();
+    private static volatile boolean created;
+
+    private final String name;
+    private long visibilityMillis;
+    private int maxAttempts;
+    private long backoffMillis;
+    private long maxBackoffMillis;
+    private int batchSize;
+    private int concurrency;
+    private int maxRunning;
+    private long pollMillis;
+
+    private final AtomicLong completed;
+    private final AtomicLong failed;
+    private final AtomicLong retried;
+    private volatile boolean running;
+    private Semaphore slots;
+    private ExecutorService workers;
+    private Thread poller;
+
+    private JobQueue(String name) {
+        this.name = name;
+        this.visibilityMillis = TimeUnit.MINUTES.toMillis(5);
+        this.maxAttempts = 5;
+        this.backoffMillis = TimeUnit.SECONDS.toMillis(10);
+        this.maxBackoffMillis = TimeUnit.HOURS.toMillis(1);
+        this.batchSize = 10;
+        this.concurrency = 1;
+        this.maxRunning = -1;
+        this.pollMillis = TimeUnit.SECONDS.toMillis(1);
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.retried = new AtomicLong();
+    }
+
+    public static JobQueue get(String name) {
+        return QUEUES.computeIfAbsent(name, JobQueue::new);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * How long a claimed job stays invisible to other workers. Jobs running
+     * longer should extend it.
+     */
+    public JobQueue visibilityTimeout(long duration, TimeUnit unit) {
+        this.visibilityMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Number of times a job is run before it is moved to _jobs_failed.
+     */
+    public JobQueue maxAttempts(int attempts) {
+        this.maxAttempts = attempts;
+        return this;
+    }
+
+    /**
+     * Delay before the first retry, doubled for every further attempt up to
+     * max, with up to 20% jitter.
+     */
+    public JobQueue backoff(long base, long max, TimeUnit unit) {
+        this.backoffMillis = unit.toMillis(base);
+        this.maxBackoffMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Most jobs claimed by one query.
+     */
+    public JobQueue batchSize(int size) {
+        this.batchSize = size;
+        return this;
+    }
+
+    /**
+     * Number of jobs this node runs at the same time.
+     */
+    public JobQueue concurrency(int threads) {
+        this.concurrency = threads;
+        return this;
+    }
+
+    /**
+     * Most jobs of this queue running at the same time across all nodes.
+     * Enforced when claiming, so concurrent claims can overshoot it by up to
+     * a batch per node.
+     */
+    public JobQueue maxRunning(int jobs) {
+        this.maxRunning = jobs;
+        return this;
+    }
+
+    /**
+     * How long idle workers wait before looking for due jobs again. Jobs
+     * enqueued on this node wake them immediately.
+     */
+    public JobQueue pollInterval(long duration, TimeUnit unit) {
+        this.pollMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    public long enqueue(JSONObject payload) {
+        return enqueue(payload, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a job, due after the given delay.
+     *
+     * @return id of the job
+     */
+    public long enqueue(JSONObject payload, int priority, long delay, TimeUnit unit) {
+        createTables();
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = con.prepareStatement("INSERT INTO `" + JOBS_TABLE + "`(`queue`,`priority`," +
+                    "`payload`,`attempts`,`run_at`,`created`) VALUES (?,?,?,0," + NOW + "+?," + NOW + ")",
+                    Statement.RETURN_GENERATED_KEYS);
+            pstmt.setString(1, name);
+            pstmt.setInt(2, priority);
+            pstmt.setString(3, payload.toString());
+            pstmt.setLong(4, unit.toMillis(delay));
+            pstmt.executeUpdate();
+            ResultSet keys = pstmt.getGeneratedKeys();
+            long id = keys.next() ? keys.getLong(1) : -1;
+            pstmt.close();
+            if (delay == 0)
+                wake();
+            return id;
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Run the jobs of this queue on this node until {@link #stop()}.
+     */
+    public synchronized JobQueue start(final JobHandler handler) {
+        if (running)
+            throw new IllegalStateException("Queue " + name + " already started");
+        createTables();
+        running = true;
+        slots = new Semaphore(concurrency);
+        workers = Executors.newFixedThreadPool(concurrency);
+        poller = new Thread(() -> poll(handler), "jobs-" + name);
+        poller.setDaemon(true);
+        poller.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JobQueue.this.stop();
+                } catch (Throwable t) {
+                }
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * Stop claiming jobs. Jobs already running finish; jobs claimed but not
+     * started become due again after the visibility timeout.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        poller.interrupt();
+        workers.shutdown();
+    }
+
+    /**
+     * Number of jobs waiting or running in this queue.
+     */
+    public long size() {
+        createTables();
+        try {
+            Object n = DB.singleItemQuery("SELECT COUNT(*) FROM `" + JOBS_TABLE + "` WHERE `queue`=?", name);
+            return (n == null) ? 0 : ((Number) n).longValue();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Jobs of this queue that used up their attempts, most recent first.
+     */
+    public List<Row> failedJobs(int limit) {
+        createTables();
+        return Table.get(FAILED_TABLE).where("queue", name).descending("failed_at").limit(limit).rows();
+    }
+
+    /**
+     * Put a failed job back in the queue with a fresh set of attempts.
+     */
+    public void retry(long id) {
+        Connection con = DB.getConnection();
+        try {
+            con.setAutoCommit(false);
+            DB.updateQuery(con, "INSERT INTO `" + JOBS_TABLE + "`(`id`,`queue`,`priority`,`payload`,`attempts`," +
+                    "`run_at`,`created`) SELECT `id`,`queue`,`priority`,`payload`,0," + NOW + ",`created` FROM `" +
+                    FAILED_TABLE + "` WHERE `id`=?", id);
+            DB.updateQuery(con, "DELETE FROM `" + FAILED_TABLE + "` WHERE `id`=?", id);
+            con.commit();
+            wake();
+        } catch (SQLException e) {
+            rollback(con);
+            throw new IllegalStateException(e);
+        } finally {
+            close(con);
+        }
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    private synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * Claim as many jobs as there are free worker slots and hand them to the
+     * workers. Waits for the poll interval when nothing is due.
+     */
+    private void poll(JobHandler handler) {
+        while (running) {
+            try {
+                slots.acquire();
+                int free = 1 + slots.drainPermits();
+                List<Job> jobs;
+                try {
+                    jobs = claim(Math.min(free, batchSize));
+                } finally {
+                    slots.release(free);
+                }
+                for (Job job : jobs) {
+                    slots.acquire();
+                    workers.execute(() -> {
+                        try {
+                            execute(handler, job);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                }
+                if (jobs.isEmpty()) {
+                    synchronized (this) {
+                        wait(pollMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                LOG.error("Couldn't claim jobs of " + name + " : " + t.getMessage(), t);
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private List<Job> claim(int limit) throws SQLException {
+        Connection con = DB.getConnection();
+        try {
+            if (maxRunning > 0) {
+                PreparedStatement count = con.prepareStatement("SELECT COUNT(*) FROM `" + JOBS_TABLE + "` WHERE " +
+                        "`queue`=? AND `claim` IS NOT NULL AND `run_at`>" + NOW);
+                count.setString(1, name);
+                ResultSet results = count.executeQuery();
+                results.next();
+                limit = (int) Math.min(limit, maxRunning - results.getLong(1));
+                count.close();
+                if (limit <= 0)
+                    return Collections.emptyList();
+            }
+            con.setAutoCommit(false);
+            PreparedStatement select = con.prepareStatement("SELECT `id`,`priority`,`payload`,`attempts` FROM `" +
+                    JOBS_TABLE + "` WHERE `queue`=? AND `run_at`<=" + NOW + " ORDER BY `priority`,`run_at` LIMIT ? " +
+                    "FOR UPDATE SKIP LOCKED");
+            select.setString(1, name);
+            select.setInt(2, limit);
+            ResultSet results = select.executeQuery();
+            String claim = UUID.randomUUID().toString();
+            List<Job> jobs = new ArrayList<Job>();
+            List<Long> ids = new ArrayList<Long>();
+            // Jobs whose last attempt outlived its visibility timeout
+            List<Long> expired = new ArrayList<Long>();
+            while (results.next()) {
+                if (results.getInt(4) >= maxAttempts) {
+                    expired.add(results.getLong(1));
+                    continue;
+                }
+                Job job = new Job(this, results.getLong(1), results.getInt(2), results.getString(3), results
+                        .getInt(4) + 1, claim);
+                jobs.add(job);
+                ids.add(job.id);
+            }
+            select.close();
+            if (!jobs.isEmpty()) {
+                DB.updateQuery(con, "UPDATE `" + JOBS_TABLE + "` SET `run_at`=" + NOW + "+" + visibilityMillis + "," +
+                        "`attempts`=`attempts`+1,`claim`=? WHERE `id` IN (" + StringUtils.join(ids, ",") + ")", claim);
+            }
+            if (!expired.isEmpty()) {
+                String in = StringUtils.join(expired, ",");
+                LOG.error("Jobs " + in + " of " + name + " timed out on their last attempt");
+                DB.updateQuery(con, "INSERT INTO `" + FAILED_TABLE + "`(`id`,`queue`,`priority`,`payload`," +
+                        "`attempts`,`created`,`failed_at`,`last_error`) SELECT `id`,`queue`,`priority`,`payload`," +
+                        "`attempts`,`created`," + NOW + ",? FROM `" + JOBS_TABLE + "` WHERE `id` IN (" + in + ")",
+                        "Visibility timeout expired on the last attempt");
+                DB.updateQuery(con, "DELETE FROM `" + JOBS_TABLE + "` WHERE `id` IN (" + in + ")");
+            }
+            con.commit();
+            failed.addAndGet(expired.size());
+            return jobs;
+        } catch (SQLException e) {
+            rollback(con);
+            throw e;
+        } finally {
+            close(con);
+        }
+    }
+
+    private void execute(JobHandler handler, Job job) {
+        try {
+            handler.run(job);
+        } catch (Throwable t) {
+            fail(job, t);
+            return;
+        }
+        try {
+            if (update(job, "DELETE FROM `" + JOBS_TABLE + "` WHERE `id`=? AND `claim`=?") == 0)
+                LOG.warn("Job " + job.id + " of " + name + " finished after its claim expired");
+            completed.incrementAndGet();
+        } catch (SQLException e) {
+            LOG.error("Couldn't complete job " + job.id + " of " + name, e);
+        }
+    }
+
+    private void fail(Job job, Throwable t) {
+        String error = StringUtils.abbreviate(String.valueOf(t), 1000);
+        Connection con = DB.getConnection();
+        try {
+            if (job.attempts >= maxAttempts) {
+                LOG.error("Job " + job.id + " of " + name + " failed " + job.attempts + " times", t);
+                con.setAutoCommit(false);
+                DB.updateQuery(con, "INSERT INTO `" + FAILED_TABLE + "`(`id`,`queue`,`priority`,`payload`," +
+                        "`attempts`,`created`,`failed_at`,`last_error`) SELECT `id`,`queue`,`priority`,`payload`," +
+                        "`attempts`,`created`," + NOW + ",? FROM `" + JOBS_TABLE + "` WHERE `id`=? AND `claim`=?",
+                        error, job.id, job.claim);
+                DB.updateQuery(con, "DELETE FROM `" + JOBS_TABLE + "` WHERE `id`=? AND `claim`=?", job.id, job.claim);
+                con.commit();
+                failed.incrementAndGet();
+            } else {
+                long delay = Math.min(maxBackoffMillis, backoffMillis << Math.min(30, job.attempts - 1));
+                delay += (long) (delay * 0.2 * ThreadLocalRandom.current().nextDouble());
+                LOG.warn("Job " + job.id + " of " + name + " failed, retrying in " + delay + "ms : " + error);
+                DB.updateQuery(con, "UPDATE `" + JOBS_TABLE + "` SET `run_at`=" + NOW + "+?,`claim`=NULL," +
+                        "`last_error`=? WHERE `id`=? AND `claim`=?", delay, error, job.id, job.claim);
+                retried.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            rollback(con);
+            LOG.error("Couldn't record failure of job " + job.id + " of " + name, e);
+        } finally {
+            close(con);
+        }
+    }
+
+    private static int update(Job job, String sql, Object... args) throws SQLException {
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = con.prepareStatement(sql);
+            int p = 1;
+            for (Object arg : args) {
+                pstmt.setObject(p++, arg);
+            }
+            pstmt.setLong(p++, job.id);
+            pstmt.setString(p, job.claim);
+            int count = pstmt.executeUpdate();
+            pstmt.close();
+            return count;
+        } finally {
+            close(con);
+        }
+    }
+
+    private static void rollback(Connection con) {
+        try {
+            con.rollback();
+        } catch (Exception e) {
+        }
+    }
+
+    private static void close(Connection con) {
+        try {
+            con.setAutoCommit(true);
+        } catch (Exception e) {
+        }
+        try {
+            con.close();
+        } catch (Exception e) {
+        }
+    }
+
+    private static synchronized void createTables() {
+        if (created)
+            return;
+        Table.get(JOBS_TABLE).columns(Column.bigInteger("id", true),
+                Column.text("queue", 100),
+                Column.integer("priority"),
+                Column.mediumtext("payload"),
+                Column.integer("attempts"),
+                Column.bigInteger("run_at"),
+                Column.text("claim", 36),
+                Column.text("last_error"),
+                Column.bigInteger("created"))
+                .indexes(new Index("queue_due", "queue", "priority", "run_at")).create();
+        Table.get(FAILED_TABLE).columns(Column.bigInteger("id"),
+                Column.text("queue", 100),
+                Column.integer("priority"),
+                Column.mediumtext("payload"),
+                Column.integer("attempts"),
+                Column.text("last_error"),
+                Column.bigInteger("created"),
+                Column.bigInteger("failed_at"))
+                .indexes(new Index("queue_failed", "queue", "failed_at")).primary("id").create();
+        created = true;
+    }
+
+    /**
+     * A claimed job.
+     */
+    public static class Job {
+        private final JobQueue queue;
+        private final long id;
+        private final int priority;
+        private final String payload;
+        private final int attempts;
+        private final String claim;
+
+        Job(JobQueue queue, long id, int priority, String payload, int attempts, String claim) {
+            this.queue = queue;
+            this.id = id;
+            this.priority = priority;
+            this.payload = payload;
+            this.attempts = attempts;
+            this.claim = claim;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getQueue() {
+            return queue.name;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public JSONObject getPayload() {
+            return new JSONObject(payload);
+        }
+
+        /**
+         * 1 for the first run of the job.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Keep the job invisible to other workers for the given time from
+         * now, for jobs that run longer than the visibility timeout.
+         *
+         * @return false if the claim expired and another worker may have
+         * taken the job
+         */
+        public boolean extend(long duration, TimeUnit unit) {
+            try {
+                return update(this, "UPDATE `" + JOBS_TABLE + "` SET `run_at`=" + NOW + "+? WHERE `id`=? AND " +
+                        "`claim`=?", unit.toMillis(duration)) == 1;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
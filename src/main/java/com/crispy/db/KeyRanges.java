@@ -0,0 +1,59 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Splits the rows of a table matching its where clause into ranges of the
+ * primary key holding chunkSize rows each. A range (from, to] is open on a
+ * side whose bound is null.
+ */
+class KeyRanges {
+    private final Table table;
+    // Range selects indexed by (lower bound ? 2 : 0) + (upper bound ? 1 : 0)
+    private final String[] rangeSql;
+    private final String firstBoundarySql;
+    private final String nextBoundarySql;
+
+    KeyRanges(Table table, int chunkSize) {
+        this.table = table;
+        String key = "`" + table.getName() + "`.`" + table.chunkKey() + "`";
+        rangeSql = new String[]{table.selectSql(null), table.selectSql(key + "<=?"), table.selectSql(key + ">?"),
+                table.selectSql(key + ">? AND " + key + "<=?")};
+        firstBoundarySql = table.keySql(null, chunkSize - 1);
+        nextBoundarySql = table.keySql(key + ">?", chunkSize - 1);
+    }
+
+    /**
+     * Last key of the range following the given key, or null if fewer than
+     * chunkSize rows are left.
+     */
+    Object boundary(Connection con, Object after) throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement(after == null ? firstBoundarySql : nextBoundarySql);
+        int ctr = 1;
+        if (after != null)
+            pstmt.setObject(ctr++, after);
+        table.selectValues(pstmt, ctr);
+        ResultSet results = pstmt.executeQuery();
+        Object ret = results.next() ? results.getObject(1) : null;
+        pstmt.close();
+        return ret;
+    }
+
+    /**
+     * Streaming select of the rows in the range (from, to].
+     */
+    PreparedStatement select(Connection con, Object from, Object to) throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement(rangeSql[(from != null ? 2 : 0) + (to != null ? 1 : 0)]);
+        int ctr = 1;
+        if (from != null)
+            pstmt.setObject(ctr++, from);
+        if (to != null)
+            pstmt.setObject(ctr++, to);
+        table.selectValues(pstmt, ctr);
+        pstmt.setFetchSize(DB.dialect().streamingFetchSize());
+        return pstmt;
+    }
+}
@@ -0,0 +1,99 @@
+package com.crispy.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * Outcome of a bulk load: how many rows were sent to the database, how many
+ * it reported as affected, and the input records rejected before loading.
+ */
+public class LoadResult implements IJSONConvertible {
+    private final long accepted;
+    private final long affected;
+    private final List<Rejection> rejected;
+    private final List<String> warnings;
+
+    LoadResult(long accepted, long affected, List<Rejection> rejected, List<String> warnings) {
+        this.accepted = accepted;
+        this.affected = affected;
+        this.rejected = Collections.unmodifiableList(new ArrayList<Rejection>(rejected));
+        this.warnings = Collections.unmodifiableList(new ArrayList<String>(warnings));
+    }
+
+    /**
+     * Rows that passed validation and were streamed to MySQL.
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Affected row count reported by MySQL. Lower than accepted when
+     * duplicates were ignored; REPLACE counts a replaced row twice.
+     */
+    public long getAffected() {
+        return affected;
+    }
+
+    public List<Rejection> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Warnings raised by MySQL while loading, such as truncated values.
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject o = new JSONObject();
+        o.put("accepted", accepted);
+        o.put("affected", affected);
+        JSONArray r = new JSONArray();
+        for (Rejection rejection : rejected) {
+            r.put(new JSONObject().put("line", rejection.line).put("reason", rejection.reason));
+        }
+        o.put("rejected", r);
+        o.put("warnings", new JSONArray(warnings));
+        return o;
+    }
+
+    /**
+     * An input record that couldn't be converted or failed a column
+     * validator.
+     */
+    public static class Rejection {
+        private final long line;
+        private final String record;
+        private final String reason;
+
+        Rejection(long line, String record, String reason) {
+            this.line = line;
+            this.record = record;
+            this.reason = reason;
+        }
+
+        /**
+         * Line number of the record in the input, starting at 1.
+         */
+        public long getLine() {
+            return line;
+        }
+
+        public String getRecord() {
+            return record;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.crispy.db;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+import com.crispy.log.Log;
+
+/**
+ * Named locks shared by every node using the database, built on MySQL's
+ * GET_LOCK and RELEASE_LOCK (5.7 or later, which allows a session to hold
+ * several locks).
+ * <p>
+ * A thread first takes a local lock, one of a fixed set of stripes picked
+ * by the name's hash, so only one thread per stripe in this JVM goes to
+ * the database. The database locks of this JVM are all held on a single
+ * pinned connection, taken from the pool with the first lock and returned
+ * with the last. Waits poll GET_LOCK without blocking that connection.
+ * Names sharing a stripe also exclude each other within the JVM, so take
+ * locks in a consistent order or with a timeout.
+ * <p>
+ * Locks are reentrant and owned by the thread that took them. On embedded
+ * H2 databases, which live in one JVM, only the local locks are used.
+ * <p>
+ * The pinned connection is pinged every half minute so MySQL's wait_timeout
+ * doesn't close it. If it is lost anyway, MySQL releases every lock held on
+ * it: the loss is logged and counted, {@link #isHeldByCurrentThread(String)}
+ * turns false for those locks, and their holders should stop the work the
+ * lock protected. They still unlock as usual.
+ */
+public class Locks {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int STRIPES = 1024;
+    private static final int MAX_NAME = 64;
+    private static final long MAX_POLL_MILLIS = 200;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final ReentrantLock[] LOCAL = new ReentrantLock[STRIPES];
+    private static final ConcurrentHashMap<String, Holder> HELD = new ConcurrentHashMap<String, Holder>();
+    private static final Histogram WAITS = new Histogram();
+    private static final LongAdder ACQUIRED = new LongAdder();
+    private static final LongAdder TIMEOUTS = new LongAdder();
+    private static final LongAdder LOST = new LongAdder();
+    private static final Object PIN = new Object();
+    private static Connection pinned;
+    private static int pinnedLocks;
+    // Bumped whenever the pinned connection is lost with locks on it
+    private static volatile long generation;
+    private static ScheduledExecutorService keepAlive;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCAL[i] = new ReentrantLock();
+        }
+    }
+
+    private Locks() {
+    }
+
+    /**
+     * Waits until the lock is taken.
+     */
+    public static void lock(String name) {
+        if (!tryLock(name, Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+            throw new IllegalStateException("Interrupted waiting for lock " + name);
+    }
+
+    /**
+     * Takes the lock only if it is free.
+     */
+    public static boolean tryLock(String name) {
+        return tryLock(name, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to the timeout for the lock. Returns false if it wasn't taken
+     * in time or the thread was interrupted.
+     */
+    public static boolean tryLock(String name, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        long deadline = (nanos > Long.MAX_VALUE - start) ? Long.MAX_VALUE : start + nanos;
+        Holder h = HELD.get(name);
+        if (h != null && h.owner == Thread.currentThread()) {
+            h.count++;
+            return true;
+        }
+        ReentrantLock local = stripe(name);
+        boolean taken = false;
+        try {
+            if (!local.tryLock() && !local.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                TIMEOUTS.increment();
+                return false;
+            }
+            long poll = 5;
+            long held;
+            while ((held = dbLock(name)) == -1) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    TIMEOUTS.increment();
+                    return false;
+                }
+                Thread.sleep(Math.min(poll, remaining));
+                poll = Math.min(poll * 2, MAX_POLL_MILLIS);
+            }
+            HELD.put(name, new Holder(Thread.currentThread(), held));
+            ACQUIRED.increment();
+            taken = true;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            WAITS.record(System.nanoTime() - start);
+            if (!taken && local.isHeldByCurrentThread())
+                local.unlock();
+        }
+    }
+
+    /**
+     * Releases a lock taken by this thread, once for every time it was
+     * taken.
+     */
+    public static void unlock(String name) {
+        Holder h = HELD.get(name);
+        if (h == null || h.owner != Thread.currentThread())
+            throw new IllegalMonitorStateException("Lock " + name + " isn't held by this thread");
+        if (--h.count > 0)
+            return;
+        HELD.remove(name);
+        try {
+            dbUnlock(name, h.generation);
+        } finally {
+            stripe(name).unlock();
+        }
+    }
+
+    /**
+     * Whether this thread holds the lock, false once it was lost with the
+     * pinned connection.
+     */
+    public static boolean isHeldByCurrentThread(String name) {
+        Holder h = HELD.get(name);
+        return h != null && h.owner == Thread.currentThread() && h.generation == generation;
+    }
+
+    /**
+     * Time taken by lock calls, including those that timed out.
+     */
+    public static Histogram waitTimes() {
+        return WAITS;
+    }
+
+    public static JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("held", HELD.size());
+        o.put("acquired", ACQUIRED.sum());
+        o.put("timeouts", TIMEOUTS.sum());
+        o.put("lost", LOST.sum());
+        o.put("wait", WAITS.toJSONObject());
+        return o;
+    }
+
+    private static ReentrantLock stripe(String name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return LOCAL[h & (STRIPES - 1)];
+    }
+
+    /**
+     * Try GET_LOCK once on the pinned connection.
+     *
+     * @return the connection generation the lock is held under, -1 if it is
+     * taken elsewhere
+     */
+    private static long dbLock(String name) {
+        if (DB.dialect() != Dialect.MYSQL)
+            return generation;
+        synchronized (PIN) {
+            try {
+                if (pinned == null) {
+                    pinned = DB.getConnection();
+                    if (pinned == null)
+                        throw new IllegalStateException("No connection for lock " + name);
+                    keepAlive();
+                }
+                Number ret = query(pinned, "SELECT GET_LOCK(?, 0)", key(name));
+                if (ret == null)
+                    throw new IllegalStateException("GET_LOCK failed for " + name);
+                if (ret.intValue() == 1) {
+                    pinnedLocks++;
+                    return generation;
+                }
+                return -1;
+            } catch (SQLException e) {
+                checkPinned();
+                throw new IllegalStateException(e);
+            } finally {
+                if (pinnedLocks == 0)
+                    unpin();
+            }
+        }
+    }
+
+    private static void dbUnlock(String name, long held) {
+        if (DB.dialect() != Dialect.MYSQL)
+            return;
+        synchronized (PIN) {
+            if (pinned == null || held != generation) {
+                LOG.error("Lock " + name + " was lost with its connection before it was unlocked");
+                return;
+            }
+            try {
+                Number ret = query(pinned, "SELECT RELEASE_LOCK(?)", key(name));
+                if (ret == null || ret.intValue() != 1)
+                    LOG.warn("Lock " + name + " was no longer held");
+                if (--pinnedLocks <= 0)
+                    unpin();
+            } catch (SQLException e) {
+                checkPinned();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * After a failed statement: if the pinned connection is gone, so are the
+     * locks on it.
+     */
+    private static void checkPinned() {
+        boolean valid;
+        try {
+            valid = pinned != null && pinned.isValid(2);
+        } catch (SQLException e) {
+            valid = false;
+        }
+        if (!valid)
+            lost();
+    }
+
+    private static void lost() {
+        if (pinnedLocks > 0) {
+            LOG.error("Lost the connection holding " + pinnedLocks + " named locks, other nodes can take them now");
+            LOST.add(pinnedLocks);
+            generation++;
+        }
+        pinnedLocks = 0;
+        unpin();
+    }
+
+    /**
+     * Return the pinned connection to the pool. Only called once no locks
+     * are held on it, or they are already lost.
+     */
+    private static void unpin() {
+        if (pinned == null)
+            return;
+        try {
+            pinned.close();
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+        }
+        pinned = null;
+    }
+
+    private static synchronized void keepAlive() {
+        if (keepAlive != null)
+            return;
+        keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jappy-locks");
+            t.setDaemon(true);
+            return t;
+        });
+        keepAlive.scheduleWithFixedDelay(() -> {
+            synchronized (PIN) {
+                if (pinned == null)
+                    return;
+                try {
+                    Statement s = pinned.createStatement();
+                    s.execute("SELECT 1");
+                    s.close();
+                } catch (Throwable t) {
+                    LOG.error("Pinned lock connection failed its keep-alive", t);
+                    checkPinned();
+                }
+            }
+        }, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    keepAlive.shutdown();
+                } catch (Throwable t) {
+                }
+            }
+        }));
+    }
+
+    private static Number query(Connection con, String sql, String key) throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        try {
+            pstmt.setString(1, key);
+            ResultSet results = pstmt.executeQuery();
+            return results.next() ? (Number) results.getObject(1) : null;
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /**
+     * GET_LOCK names are server wide, so they are prefixed with the
+     * database. Names over MySQL's 64 characters are hashed.
+     */
+    private static String key(String name) {
+        String key = DB.database() + "." + name;
+        if (key.length() <= MAX_NAME)
+            return key;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Holder {
+        private final Thread owner;
+        private final long generation;
+        private int count;
+
+        Holder(Thread owner, long generation) {
+            this.owner = owner;
+            this.generation = generation;
+            this.count = 1;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.crispy.db;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to long values, kept in two
+ * primitive arrays so that millions of entries cost no objects. Not thread
+ * safe.
+ */
+class LongIndex {
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    LongIndex(int capacity) {
+        int n = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+        keys = new long[n];
+        values = new long[n];
+        Arrays.fill(keys, FREE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * @return the value, or -1 if the key is absent
+     */
+    long get(long key) {
+        if (key == FREE)
+            return -1;
+        for (int i = slot(key); ; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key)
+                return values[i];
+            if (keys[i] == FREE)
+                return -1;
+        }
+    }
+
+    void put(long key, long value) {
+        if (key == FREE)
+            throw new IllegalArgumentException("Unsupported key " + key);
+        if ((size + 1) * 2 > keys.length)
+            resize();
+        for (int i = slot(key); ; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    void remove(long key) {
+        if (key == FREE)
+            return;
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == FREE)
+                return;
+            i = (i + 1) & mask;
+        }
+        // Shift following entries back so probe sequences stay unbroken.
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
@@ -57,6 +57,18 @@ public class Metadata {
 		return primary;
 	}
 
+	/**
+	 * Columns of each unique index other than the primary key.
+	 */
+	List<List<String>> uniqueKeys() {
+		List<List<String>> ret = new ArrayList<List<String>>();
+		for (Index index : indexes) {
+			if (index.unique)
+				ret.add(index.columns);
+		}
+		return ret;
+	}
+
 	public JSONObject toJSONObject() throws JSONException {
 		JSONObject o = new JSONObject();
 		o.put("name", name);
@@ -111,6 +123,14 @@ public class Metadata {
 		return comment.optString("display", null);
 	}
 
+	/**
+	 * Column rows are spread across shards by, or null if the table lives
+	 * on the first shard only.
+	 */
+	public String getShardKey() {
+		return comment.optString("shard-key", null);
+	}
+
 	public boolean dataEntry() {
 		if (name.startsWith("_"))
 			return false;
@@ -153,6 +173,39 @@ public class Metadata {
 		Table.get("_metadata").columns("metadata").values(comment.toString()).where("table", name).update();
 	}
 
+	/**
+	 * Whether the index was added by {@link SlowQueries}. Table.create()
+	 * keeps these although the code doesn't declare them.
+	 */
+	boolean isAdvisedIndex(String index) {
+		JSONArray advised = comment.optJSONArray("advised-indexes");
+		if (advised == null)
+			return false;
+		for (int i = 0; i < advised.length(); i++) {
+			if (index.equals(advised.optString(i)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Record an index added by {@link SlowQueries} in the _metadata table of
+	 * the current shard.
+	 */
+	void addAdvisedIndex(String index) {
+		JSONObject updated = new JSONObject(comment.toString());
+		JSONArray advised = updated.optJSONArray("advised-indexes");
+		if (advised == null) {
+			advised = new JSONArray();
+			updated.put("advised-indexes", advised);
+		}
+		if (!isAdvisedIndex(index))
+			advised.put(index);
+		Table.get("_metadata").columns("table", "metadata").values(name, updated.toString()).overwrite("metadata")
+				.add();
+		comment = updated;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -0,0 +1,167 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * Rebuilds a table without blocking writes, for schema changes that would
+ * otherwise make MySQL copy the whole table under a lock.
+ * <p>
+ * The ALTER statements run against an empty shadow table created LIKE the
+ * original. Triggers on the original replay every insert, update and delete
+ * into the shadow while existing rows are copied over in primary key
+ * chunks. Once the copy is done the two tables are swapped with a single
+ * atomic RENAME TABLE.
+ * <p>
+ * Needs a single column primary key, and no foreign keys from or to the
+ * table, since those would stay attached to the old table.
+ */
+class OnlineMigration {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int CHUNK_SIZE = 1000;
+    private static final double PAUSE = 0.5;
+
+    private final String table;
+    private final String old;
+    final String shadow;
+
+    OnlineMigration(String table) {
+        this.table = table;
+        this.shadow = "_" + table + "_new";
+        this.old = "_" + table + "_old";
+    }
+
+    static boolean supported(String table, Metadata m) throws SQLException {
+        if (m.primary == null || m.primary.columns.size() != 1)
+            return false;
+        Object o = DB.singleItemQuery("SELECT COUNT(*) FROM information_schema.`KEY_COLUMN_USAGE` WHERE " +
+                "`TABLE_SCHEMA`=DATABASE() AND `REFERENCED_TABLE_NAME` IS NOT NULL AND (`TABLE_NAME`=? OR " +
+                "`REFERENCED_TABLE_NAME`=?)", table, table);
+        return o == null || ((Number) o).longValue() == 0;
+    }
+
+    /**
+     * Create the empty shadow table. Leftovers of an interrupted migration
+     * are removed first.
+     */
+    void prepare() throws SQLException {
+        dropTriggers();
+        DB.updateQuery("DROP TABLE IF EXISTS `" + shadow + "`");
+        DB.updateQuery("DROP TABLE IF EXISTS `" + old + "`");
+        DB.updateQuery("CREATE TABLE `" + shadow + "` LIKE `" + table + "`");
+        LOG.info("Migrating " + table + " online through " + shadow);
+    }
+
+    /**
+     * Copy the given columns into the altered shadow table and swap it in.
+     * If this fails before the swap the caller should {@link #abort()}. The
+     * old table is dropped in the background.
+     */
+    void run(List<String> columns) throws Exception {
+        String key = DB.getMetadata(table).primary.getColumn(0);
+        createTriggers(columns, key);
+        copy(columns, key);
+        DB.updateQuery("RENAME TABLE `" + table + "` TO `" + old + "`, `" + shadow + "` TO `" + table + "`");
+        dropTriggers();
+        LOG.info("Migrated " + table + " online");
+        Thread drop = new Thread(() -> {
+            try {
+                DB.updateQuery("DROP TABLE IF EXISTS `" + old + "`");
+                LOG.info("Dropped " + old + " after migrating " + table);
+            } catch (Throwable t) {
+                LOG.error("Couldn't drop " + old + " after migrating " + table + ", drop it by hand", t);
+            }
+        }, "jappy-migration-" + table);
+        drop.setDaemon(true);
+        drop.start();
+    }
+
+    /**
+     * Remove the triggers and the shadow table of a failed migration, leaving
+     * the original table as it was.
+     */
+    void abort() {
+        try {
+            dropTriggers();
+            DB.updateQuery("DROP TABLE IF EXISTS `" + shadow + "`");
+            LOG.warn("Abandoned online migration of " + table);
+        } catch (Throwable t) {
+            LOG.error("Couldn't clean up the online migration of " + table + ", drop the " + trigger("*")
+                    + " triggers and " + shadow + " by hand", t);
+        }
+    }
+
+    private String trigger(String event) {
+        return "_" + table + "_" + event;
+    }
+
+    private void createTriggers(List<String> columns, String key) throws SQLException {
+        List<String> values = new ArrayList<String>();
+        for (String c : columns) {
+            values.add("NEW.`" + c + "`");
+        }
+        String replace = "REPLACE INTO `" + shadow + "` (`" + StringUtils.join(columns, "`,`") + "`) VALUES (" +
+                StringUtils.join(values, ",") + ")";
+        String delete = "DELETE FROM `" + shadow + "` WHERE `" + key + "`=OLD.`" + key + "`";
+        DB.updateQuery("CREATE TRIGGER `" + trigger("ins") + "` AFTER INSERT ON `" + table + "` FOR EACH ROW " +
+                replace);
+        DB.updateQuery("CREATE TRIGGER `" + trigger("upd") + "` AFTER UPDATE ON `" + table + "` FOR EACH ROW " +
+                "BEGIN " + delete + "; " + replace + "; END");
+        DB.updateQuery("CREATE TRIGGER `" + trigger("del") + "` AFTER DELETE ON `" + table + "` FOR EACH ROW " +
+                delete);
+    }
+
+    private void dropTriggers() throws SQLException {
+        for (String event : new String[]{"ins", "upd", "del"}) {
+            DB.updateQuery("DROP TRIGGER IF EXISTS `" + trigger(event) + "`");
+        }
+    }
+
+    /**
+     * Copy existing rows chunk by chunk. INSERT ... SELECT takes shared locks
+     * on the source rows, so a concurrent delete waits for the chunk and its
+     * trigger then removes the copied row. IGNORE keeps rows the triggers
+     * already wrote, which are never older than the copy.
+     */
+    private void copy(List<String> columns, String key) throws Exception {
+        String cols = "`" + StringUtils.join(columns, "`,`") + "`";
+        String sql = "INSERT IGNORE INTO `" + shadow + "` (" + cols + ") SELECT " + cols + " FROM `" + table +
+                "` WHERE `" + key + "`>=? AND `" + key + "`<=? LOCK IN SHARE MODE";
+        Table source = Table.get(table);
+        long total = Math.max(1, Statistics.approxCount(table));
+        long copied = 0;
+        long chunks = 0;
+        Object last = null;
+        while (true) {
+            long start = System.currentTimeMillis();
+            Connection con = DB.getConnection();
+            try {
+                List<Object> keys = source.nextKeys(con, last, CHUNK_SIZE);
+                if (keys.isEmpty())
+                    break;
+                last = keys.get(keys.size() - 1);
+                PreparedStatement pstmt = con.prepareStatement(sql);
+                pstmt.setObject(1, keys.get(0));
+                pstmt.setObject(2, last);
+                copied += pstmt.executeUpdate();
+                pstmt.close();
+            } finally {
+                con.close();
+            }
+            chunks++;
+            if (chunks % 100 == 0) {
+                LOG.info("Migrating " + table + " copied=" + copied + " (~" + Math.min(100, copied * 100 / total) +
+                        "%) key=" + last);
+            }
+            Thread.sleep((long) ((System.currentTimeMillis() - start) * PAUSE));
+        }
+        LOG.info("Migrating " + table + " copied " + copied + " rows");
+    }
+}
@@ -0,0 +1,47 @@
+package com.crispy.db;
+
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * One page of rows together with the total number of rows matching the
+ * query. See {@link Table#page(int, int)}.
+ */
+public class Page implements IJSONConvertible {
+    private final List<Row> rows;
+    private final long total;
+    private final boolean approximate;
+
+    Page(List<Row> rows, long total, boolean approximate) {
+        this.rows = rows;
+        this.total = total;
+        this.approximate = approximate;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * True if the total is an optimizer estimate rather than an exact count.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject o = new JSONObject();
+        o.put("rows", Row.rowsToJSON(rows));
+        o.put("total", total);
+        o.put("approximate", approximate);
+        return o;
+    }
+}
@@ -0,0 +1,131 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads a table in primary key ranges of chunkSize rows, several ranges at a
+ * time on separate connections, and hands the rows to a ForkJoinPool.
+ * <p>
+ * Rows arrive in no particular order. At most parallelism * chunkSize rows
+ * are read but not yet processed; readers block once that many are queued,
+ * so a slow callback slows down the reads instead of filling the heap.
+ */
+class ParallelScan {
+    private static final int BATCH_SIZE = 100;
+
+    private final KeyRanges ranges;
+    private final int parallelism;
+    private final Semaphore inFlight;
+    private final AtomicReference<Throwable> failure;
+
+    ParallelScan(Table table, int parallelism, int chunkSize) {
+        this.ranges = new KeyRanges(table, chunkSize);
+        this.parallelism = parallelism;
+        this.inFlight = new Semaphore(Math.max(parallelism * chunkSize, BATCH_SIZE));
+        this.failure = new AtomicReference<Throwable>();
+    }
+
+    void run(final RowCallback callback) {
+        ExecutorService readers = Executors.newFixedThreadPool(parallelism);
+        final ForkJoinPool workers = new ForkJoinPool(parallelism);
+        try {
+            Object lower = null;
+            while (failure.get() == null) {
+                final Object from = lower;
+                final Object to = boundary(lower);
+                readers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (failure.get() == null)
+                                read(from, to, workers, callback);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+                if (to == null)
+                    break;
+                lower = to;
+            }
+            readers.shutdown();
+            readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            workers.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            readers.shutdownNow();
+            workers.shutdownNow();
+        }
+        if (failure.get() != null)
+            throw new IllegalStateException(failure.get());
+    }
+
+    private Object boundary(Object after) throws SQLException {
+        Connection con = DB.getConnection();
+        try {
+            return ranges.boundary(con, after);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private void read(Object from, Object to, ForkJoinPool workers, RowCallback callback) throws Exception {
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = ranges.select(con, from, to);
+            ResultSet results = pstmt.executeQuery();
+            List<Row> batch = new ArrayList<Row>(BATCH_SIZE);
+            while (results.next() && failure.get() == null) {
+                batch.add(new Row(results));
+                if (batch.size() == BATCH_SIZE) {
+                    dispatch(batch, workers, callback);
+                    batch = new ArrayList<Row>(BATCH_SIZE);
+                }
+            }
+            if (batch.size() > 0)
+                dispatch(batch, workers, callback);
+            pstmt.close();
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private void dispatch(final List<Row> batch, ForkJoinPool workers, final RowCallback callback) throws
+            InterruptedException {
+        inFlight.acquire(batch.size());
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Row r : batch) {
+                        if (failure.get() != null)
+                            break;
+                        callback.row(r);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release(batch.size());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,206 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * Range partitioning of a table on a DATE, DATETIME or TIMESTAMP column, one
+ * partition per day or month. Partitions for the coming periods are created
+ * ahead of time in the background, and old data is removed by dropping whole
+ * partitions with {@link Table#dropPartitionsBefore(LocalDate)}.
+ * <p>
+ * MySQL requires every primary and unique key of a partitioned table to
+ * contain the partition column. The partition column is added to the primary
+ * key automatically; unique indexes have to include it themselves.
+ */
+public class Partition {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final String MAX_PARTITION = "pmax";
+    private static final ConcurrentHashMap<String, Partition> MAINTAINED = new ConcurrentHashMap<String, Partition>();
+    private static ScheduledExecutorService background;
+
+    String column;
+    private ChronoUnit unit;
+    private int ahead;
+
+    private Partition(String column, ChronoUnit unit) {
+        this.column = column;
+        this.unit = unit;
+        this.ahead = (unit == ChronoUnit.DAYS) ? 7 : 2;
+    }
+
+    public static Partition daily(String column) {
+        return new Partition(column, ChronoUnit.DAYS);
+    }
+
+    public static Partition monthly(String column) {
+        return new Partition(column, ChronoUnit.MONTHS);
+    }
+
+    /**
+     * Number of future partitions kept ready.
+     *
+     * @param periods
+     * @return
+     */
+    public Partition ahead(int periods) {
+        this.ahead = periods;
+        return this;
+    }
+
+    private LocalDate periodStart(LocalDate d) {
+        return (unit == ChronoUnit.DAYS) ? d : d.withDayOfMonth(1);
+    }
+
+    private String partitionName(LocalDate start) {
+        return "p" + start.format(DateTimeFormatter.ofPattern(unit == ChronoUnit.DAYS ? "yyyyMMdd" : "yyyyMM"));
+    }
+
+    private static String function(Column c) {
+        return c.type.equals("TIMESTAMP") ? "UNIX_TIMESTAMP" : "TO_DAYS";
+    }
+
+    private String definition(Column c, LocalDate start) {
+        return "PARTITION " + partitionName(start) + " VALUES LESS THAN (" + function(c) + "('" + start.plus(1, unit)
+                + "'))";
+    }
+
+    /**
+     * PARTITION BY clause covering the current period and the ones ahead,
+     * plus a catch-all partition.
+     */
+    String createDefinition(Column c) {
+        if (c == null)
+            throw new IllegalStateException("Missing partition column " + column);
+        if (!(c.type.equals("DATE") || c.type.equals("DATETIME") || c.type.equals("TIMESTAMP")))
+            throw new IllegalStateException("Partition column " + column + " must be DATE, DATETIME or TIMESTAMP");
+        List<String> defs = new ArrayList<String>();
+        LocalDate start = periodStart(LocalDate.now());
+        for (int i = 0; i <= ahead; i++) {
+            defs.add(definition(c, start.plus(i, unit)));
+        }
+        defs.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE");
+        return "PARTITION BY RANGE (" + function(c) + "(`" + column + "`)) (" + StringUtils.join(defs, ",") + ")";
+    }
+
+    static boolean isPartitioned(String table) throws SQLException {
+        Object o = DB.singleItemQuery("SELECT COUNT(*) FROM information_schema.`PARTITIONS` WHERE " +
+                "`TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=? AND `PARTITION_NAME` IS NOT NULL", table);
+        return o != null && ((Number) o).longValue() > 0;
+    }
+
+    /**
+     * Keep future partitions of the table created in the background.
+     */
+    static synchronized void maintain(final String table, Partition p) {
+        MAINTAINED.put(table, p);
+        if (background == null) {
+            background = Executors.newSingleThreadScheduledExecutor();
+            background.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (String t : MAINTAINED.keySet()) {
+                        try {
+                            MAINTAINED.get(t).createAhead(t);
+                        } catch (Throwable e) {
+                            LOG.error("Couldn't create partitions for " + t, e);
+                        }
+                    }
+                }
+            }, 1, 60, TimeUnit.MINUTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdown();
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Split the catch-all partition so that partitions exist up to the
+     * configured number of periods ahead.
+     */
+    void createAhead(String table) throws SQLException {
+        Column c = DB.getMetadata(table).getColumn(column);
+        LocalDate last = periodStart(LocalDate.now()).plus(ahead, unit);
+        List<String> existing = partitionNames(table);
+        List<String> defs = new ArrayList<String>();
+        for (LocalDate start = periodStart(LocalDate.now()); !start.isAfter(last); start = start.plus(1, unit)) {
+            if (!existing.contains(partitionName(start)))
+                defs.add(definition(c, start));
+        }
+        if (defs.size() == 0)
+            return;
+        defs.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE");
+        LOG.info("Adding " + (defs.size() - 1) + " partitions to " + table);
+        DB.updateQuery("ALTER TABLE `" + table + "` REORGANIZE PARTITION " + MAX_PARTITION + " INTO (" + StringUtils
+                .join(defs, ",") + ")");
+    }
+
+    private static List<String> partitionNames(String table) throws SQLException {
+        List<String> ret = new ArrayList<String>();
+        for (Object o : DB.listQuery("SELECT `PARTITION_NAME` FROM information_schema.`PARTITIONS` WHERE " +
+                "`TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=? AND `PARTITION_NAME` IS NOT NULL", table)) {
+            ret.add(o.toString());
+        }
+        return ret;
+    }
+
+    /**
+     * Drop every partition whose rows all lie before the given date.
+     *
+     * @return number of partitions dropped
+     */
+    static int dropBefore(String table, LocalDate date) throws SQLException {
+        Connection con = DB.getConnection();
+        List<String> drop = new ArrayList<String>();
+        try {
+            PreparedStatement pstmt = con.prepareStatement("SELECT `PARTITION_NAME`, `PARTITION_DESCRIPTION`, " +
+                    "`PARTITION_EXPRESSION` FROM information_schema.`PARTITIONS` WHERE `TABLE_SCHEMA`=DATABASE() AND " +
+                    "`TABLE_NAME`=? AND `PARTITION_NAME` IS NOT NULL ORDER BY `PARTITION_ORDINAL_POSITION`");
+            pstmt.setString(1, table);
+            ResultSet results = pstmt.executeQuery();
+            Long bound = null;
+            while (results.next()) {
+                String description = results.getString(2);
+                if (description.equals("MAXVALUE"))
+                    break;
+                if (bound == null) {
+                    String fn = results.getString(3).toLowerCase().startsWith("unix_timestamp") ?
+                            "UNIX_TIMESTAMP" : "TO_DAYS";
+                    bound = ((Number) DB.singleItemQuery(con, "SELECT " + fn + "(?)", java.sql.Date.valueOf(date)))
+                            .longValue();
+                }
+                if (Long.parseLong(description) <= bound)
+                    drop.add(results.getString(1));
+            }
+            pstmt.close();
+        } finally {
+            con.close();
+        }
+        if (drop.size() > 0) {
+            LOG.info("Dropping partitions " + drop + " of " + table);
+            DB.updateQuery("ALTER TABLE `" + table + "` DROP PARTITION " + StringUtils.join(drop, ","));
+        }
+        return drop.size();
+    }
+}
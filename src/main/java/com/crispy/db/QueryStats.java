@@ -0,0 +1,286 @@
+package com.crispy.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * Timing of every statement run on connections handed out by the DB
+ * classes of com.crispy.db and com.crispy.database.
+ * <p>
+ * Statements are grouped by shape: the SQL with literals replaced by ? and
+ * lists of placeholders collapsed, so queries differing only in values or
+ * IN list length count together. Each shape keeps a latency
+ * {@link Histogram}, the number of calls, errors and rows returned or
+ * affected. The time spent waiting for a pooled connection is kept
+ * separately. Everything is recorded with atomic counters, no locks.
+ */
+public class QueryStats {
+    private static final int MAX_CACHED_SHAPES = 10000;
+    private static final Pattern STRINGS = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'|\"(?:[^\"\\\\]|\\\\.|\"\")*\"");
+    private static final Pattern NUMBERS = Pattern.compile("(?<![\\w`])-?\\d+(?:\\.\\d+)?(?![\\w`])");
+    private static final Pattern LISTS = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+    private static final Pattern ROWS = Pattern.compile("\\(\\?\\+?\\)(?:\\s*,\\s*\\(\\?\\+?\\))+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final ConcurrentHashMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+    private static final ConcurrentHashMap<String, String> SHAPES = new ConcurrentHashMap<String, String>();
+    private static final Histogram POOL_WAIT = new Histogram();
+    private static volatile boolean enabled = true;
+
+    private QueryStats() {
+    }
+
+    public static void enabled(boolean enabled) {
+        QueryStats.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Stats of every shape seen, busiest first.
+     */
+    public static List<Entry> entries() {
+        List<Entry> ret = new ArrayList<Entry>(ENTRIES.values());
+        ret.sort((a, b) -> Long.compare(b.latency.count() * b.latency.mean(), a.latency.count() * a.latency.mean()));
+        return ret;
+    }
+
+    /**
+     * Stats of the shape of a statement, or null if it hasn't run.
+     */
+    public static Entry get(String sql) {
+        return ENTRIES.get(shape(sql));
+    }
+
+    public static Histogram poolWait() {
+        return POOL_WAIT;
+    }
+
+    public static void reset() {
+        ENTRIES.clear();
+    }
+
+    public static JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("poolWait", POOL_WAIT.toJSONObject());
+        JSONArray queries = new JSONArray();
+        for (Entry e : entries()) {
+            queries.put(e.toJSONObject());
+        }
+        o.put("queries", queries);
+        return o;
+    }
+
+    /**
+     * SQL with literal values replaced by ? and runs of placeholders, as in
+     * IN lists and multi-row VALUES, collapsed into one.
+     */
+    public static String shape(String sql) {
+        String shape = SHAPES.get(sql);
+        if (shape != null)
+            return shape;
+        shape = STRINGS.matcher(sql).replaceAll("?");
+        shape = NUMBERS.matcher(shape).replaceAll("?");
+        shape = LISTS.matcher(shape).replaceAll("?+");
+        shape = ROWS.matcher(shape).replaceAll("(?+)");
+        shape = SPACES.matcher(shape).replaceAll(" ").trim();
+        if (SHAPES.size() > MAX_CACHED_SHAPES)
+            SHAPES.clear();
+        SHAPES.put(sql, shape);
+        return shape;
+    }
+
+    /**
+     * Wrap a pooled connection so the statements created on it are timed.
+     *
+     * @param waitNanos time it took to get the connection from the pool
+     */
+    public static Connection wrap(Connection con, long waitNanos) {
+        if (con == null || !enabled)
+            return con;
+        POOL_WAIT.record(waitNanos);
+        return proxy(Connection.class, new ConnectionHandler(con));
+    }
+
+    private static Entry entry(String sql) {
+        String shape = shape(sql);
+        return ENTRIES.computeIfAbsent(shape, Entry::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(QueryStats.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection con;
+
+        ConnectionHandler(Connection con) {
+            this.con = con;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object ret = QueryStats.invoke(con, method, args);
+            if (ret instanceof PreparedStatement && args != null && args.length > 0 && args[0] instanceof String) {
+                Class<? extends PreparedStatement> type = (ret instanceof java.sql.CallableStatement)
+                        ? java.sql.CallableStatement.class : PreparedStatement.class;
+                return proxy(type, new StatementHandler((Statement) ret, (String) args[0]));
+            }
+            if (ret instanceof Statement)
+                return proxy(Statement.class, new StatementHandler((Statement) ret, null));
+            return ret;
+        }
+    }
+
+    /**
+     * Times the execute methods of a statement. Prepared statements know
+     * their entry up front, plain statements look it up from the SQL passed
+     * to execute. Parameters are remembered while the slow query log is on,
+     * so slow statements can be explained with the same values.
+     */
+    private static class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+        private final String preparedSql;
+        private final Entry prepared;
+        private volatile Entry last;
+        private ArrayList<Object> parameters;
+
+        StatementHandler(Statement statement, String preparedSql) {
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+            this.prepared = (preparedSql == null) ? null : entry(preparedSql);
+            this.last = prepared;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (preparedSql != null && SlowQueries.isEnabled()) {
+                if (method.getName().startsWith("set") && args != null && args.length >= 2 && args[0] instanceof
+                        Integer) {
+                    int index = (Integer) args[0];
+                    if (parameters == null)
+                        parameters = new ArrayList<Object>();
+                    while (parameters.size() < index)
+                        parameters.add(null);
+                    parameters.set(index - 1, method.getName().equals("setNull") ? null : args[1]);
+                } else if (method.getName().equals("clearParameters") && parameters != null) {
+                    parameters.clear();
+                }
+            }
+            if (method.getName().equals("getResultSet")) {
+                Object ret = QueryStats.invoke(statement, method, args);
+                return (ret != null && last != null) ? new CountingResultSet((ResultSet) ret, last.rows) : ret;
+            }
+            if (!method.getName().startsWith("execute"))
+                return QueryStats.invoke(statement, method, args);
+            Entry e = prepared;
+            String sql = preparedSql;
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                sql = (String) args[0];
+                e = entry(sql);
+            }
+            if (e == null)
+                return QueryStats.invoke(statement, method, args);
+            last = e;
+            long start = System.nanoTime();
+            try {
+                Object ret = QueryStats.invoke(statement, method, args);
+                long elapsed = System.nanoTime() - start;
+                e.latency.record(elapsed);
+                if (SlowQueries.isSlow(elapsed))
+                    SlowQueries.slow(e.shape, sql, (sql == preparedSql && parameters != null) ? parameters.toArray()
+                            : new Object[0], elapsed);
+                if (ret instanceof Integer) {
+                    e.rows.add((Integer) ret);
+                } else if (ret instanceof Long) {
+                    e.rows.add((Long) ret);
+                } else if (ret instanceof int[]) {
+                    for (int count : (int[]) ret) {
+                        if (count > 0)
+                            e.rows.add(count);
+                    }
+                } else if (ret instanceof ResultSet) {
+                    return new CountingResultSet((ResultSet) ret, e.rows);
+                }
+                return ret;
+            } catch (SQLException ex) {
+                e.latency.record(System.nanoTime() - start);
+                e.errors.increment();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Stats of one statement shape.
+     */
+    public static class Entry implements IJSONConvertible {
+        private final String shape;
+        private final Histogram latency;
+        private final LongAdder rows;
+        private final LongAdder errors;
+
+        Entry(String shape) {
+            this.shape = shape;
+            this.latency = new Histogram();
+            this.rows = new LongAdder();
+            this.errors = new LongAdder();
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getCalls() {
+            return latency.count();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public JSONObject toJSONObject() {
+            JSONObject o = latency.toJSONObject();
+            o.put("sql", shape);
+            o.put("rows", getRows());
+            o.put("errors", getErrors());
+            return o;
+        }
+    }
+}
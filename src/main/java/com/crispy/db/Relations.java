@@ -0,0 +1,139 @@
+package com.crispy.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batched loading of rows related through foreign key constraints.
+ * <p>
+ * Instead of running one query per parent row, all referenced keys are
+ * collected and fetched with chunked IN queries. Loaded rows are attached to
+ * the source rows and can be read back with {@link Row#parent(String)} and
+ * {@link Row#children(String)}.
+ */
+public class Relations {
+    static final int CHUNK_SIZE = 500;
+
+    private Relations() {
+    }
+
+    /**
+     * Load the rows referenced by a foreign key column (many-to-one).
+     *
+     * @param rows   rows of the table owning the constraint
+     * @param column constraint source column
+     * @return referenced rows keyed by the destination column value
+     */
+    public static Map<Object, Row> loadParents(List<Row> rows, String column) {
+        if (rows.isEmpty())
+            return Collections.emptyMap();
+        String table = rows.get(0).tableOf(column);
+        Metadata m = DB.getMetadata(table);
+        Constraint c = m.getConstraint(column);
+        if (c == null)
+            throw new IllegalArgumentException("No constraint on column " + column + " in table " + table);
+
+        LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
+        for (Row r : rows) {
+            Object value = r.value(table + "." + column);
+            if (value != null)
+                keys.add(Value.key(value));
+        }
+
+        HashMap<Object, Row> parents = new HashMap<Object, Row>();
+        for (Row parent : fetch(c.destTable, c.destColumn, keys)) {
+            parents.put(Value.key(parent.value(c.destTable + "." + c.destColumn)), parent);
+        }
+
+        for (Row r : rows) {
+            Object value = r.value(table + "." + column);
+            r.attach(column, (value == null) ? null : parents.get(Value.key(value)));
+        }
+        return parents;
+    }
+
+    /**
+     * Load the rows of childTable pointing at the given rows (one-to-many).
+     * The child table must have exactly one constraint referencing the table
+     * of rows, otherwise use {@link #loadChildren(List, String, String)}.
+     *
+     * @param rows       parent rows
+     * @param childTable table holding the foreign key
+     * @return child rows grouped by the referenced column value
+     */
+    public static Map<Object, List<Row>> loadChildren(List<Row> rows, String childTable) {
+        return loadChildren(rows, childTable, null);
+    }
+
+    /**
+     * Load the rows of childTable pointing at the given rows through the
+     * constraint on one of its columns.
+     *
+     * @param rows       parent rows
+     * @param childTable table holding the foreign key
+     * @param column     constraint source column in childTable, or null to
+     *                   use the only constraint referencing the rows
+     * @return child rows grouped by the referenced column value
+     */
+    public static Map<Object, List<Row>> loadChildren(List<Row> rows, String childTable, String column) {
+        if (rows.isEmpty())
+            return Collections.emptyMap();
+        Metadata childMeta = DB.getMetadata(childTable);
+        if (childMeta == null)
+            throw new IllegalStateException("No table exists for " + childTable);
+
+        Constraint c = null;
+        for (Constraint candidate : childMeta.constraints) {
+            if (!rows.get(0).hasTable(candidate.destTable))
+                continue;
+            if (column != null && !candidate.sourceColumn.equals(column))
+                continue;
+            if (c != null)
+                throw new IllegalArgumentException("Several constraints from " + childTable + " to the given rows, " +
+                        "pass the column to use");
+            c = candidate;
+        }
+        if (c == null)
+            throw new IllegalArgumentException("No constraint from " + childTable + (column == null ? "" : "." +
+                    column) + " to the given rows");
+
+        LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
+        for (Row r : rows) {
+            Object value = r.value(c.destTable + "." + c.destColumn);
+            if (value != null)
+                keys.add(Value.key(value));
+        }
+
+        HashMap<Object, List<Row>> children = new HashMap<Object, List<Row>>();
+        for (Row child : fetch(childTable, c.sourceColumn, keys)) {
+            Object k = Value.key(child.value(childTable + "." + c.sourceColumn));
+            List<Row> list = children.get(k);
+            if (list == null) {
+                list = new ArrayList<Row>();
+                children.put(k, list);
+            }
+            list.add(child);
+        }
+
+        for (Row r : rows) {
+            Object value = r.value(c.destTable + "." + c.destColumn);
+            List<Row> list = (value == null) ? null : children.get(Value.key(value));
+            r.attach(childTable, (list == null) ? Collections.<Row>emptyList() : list);
+        }
+        return children;
+    }
+
+    private static List<Row> fetch(String table, String column, LinkedHashSet<Object> keys) {
+        List<Row> ret = new ArrayList<Row>();
+        List<Object> all = new ArrayList<Object>(keys);
+        for (int from = 0; from < all.size(); from += CHUNK_SIZE) {
+            List<Object> chunk = all.subList(from, Math.min(all.size(), from + CHUNK_SIZE));
+            ret.addAll(Table.get(table).in(column, chunk.toArray()).rows());
+        }
+        return ret;
+    }
+}
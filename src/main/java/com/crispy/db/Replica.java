@@ -0,0 +1,308 @@
+package com.crispy.db;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * A copy of a small table kept in memory, for lookup tables read on almost
+ * every request. Lookups by primary key or by an indexed set of columns are
+ * plain hash probes on an immutable snapshot and never touch the database.
+ * <p>
+ * The snapshot is refreshed in the background. With an updated-at
+ * TIMESTAMP column only rows changed since the last refresh are read,
+ * otherwise the whole table is. Deletes made through this process arrive
+ * through the {@link ChangeFeed}; a periodic full reload picks up the rest.
+ * Each refresh builds a new snapshot and swaps it in atomically.
+ */
+public class Replica {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final ConcurrentHashMap<String, Replica> REPLICAS = new ConcurrentHashMap<String, Replica>();
+    private static ScheduledExecutorService background;
+
+    private final String table;
+    private final List<String> key;
+    private final CopyOnWriteArrayList<List<String>> indexes;
+    private volatile Snapshot snapshot;
+    private volatile String updatedAt;
+    private volatile long refreshMillis;
+    private volatile long fullReloadMillis;
+    private volatile boolean dirty;
+    private long lastRefresh;
+    private long lastFullReload;
+
+    private Replica(String table) {
+        Metadata m = DB.getMetadata(table);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + table);
+        if (m.primary == null)
+            throw new IllegalStateException("Replicated table " + table + " needs a primary key");
+        this.table = table;
+        this.key = new ArrayList<String>(m.primary.columns);
+        this.indexes = new CopyOnWriteArrayList<List<String>>();
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(10);
+        this.fullReloadMillis = TimeUnit.MINUTES.toMillis(10);
+        for (Column c : m.columns) {
+            if (c.type.equals("TIMESTAMP") && c.name.toLowerCase().startsWith("updated")) {
+                updatedAt = c.name;
+                break;
+            }
+        }
+    }
+
+    /**
+     * The replica of a table, loading it the first time.
+     */
+    static Replica of(String table) {
+        Replica r = REPLICAS.get(table);
+        if (r != null)
+            return r;
+        synchronized (REPLICAS) {
+            r = REPLICAS.get(table);
+            if (r == null) {
+                r = new Replica(table);
+                r.fullReload();
+                r.start();
+                REPLICAS.put(table, r);
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Also index rows by the given columns, usually those of a unique
+     * index, for {@link #find(String, Object...)}.
+     */
+    public synchronized Replica index(String... columns) {
+        List<String> index = Arrays.asList(columns);
+        if (!indexes.contains(index)) {
+            indexes.add(index);
+            snapshot = new Snapshot(snapshot.byKey, snapshot.highWater);
+        }
+        return this;
+    }
+
+    /**
+     * TIMESTAMP column updated on every write, used to only read changed
+     * rows. Defaults to the first TIMESTAMP column whose name starts with
+     * "updated".
+     */
+    public Replica updatedAt(String column) {
+        this.updatedAt = column;
+        return this;
+    }
+
+    public Replica refreshEvery(long duration, TimeUnit unit) {
+        this.refreshMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * How often the whole table is reread, which catches deletes made by
+     * other processes.
+     */
+    public Replica fullReloadEvery(long duration, TimeUnit unit) {
+        this.fullReloadMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Row with the given primary key value, one value per key column.
+     */
+    public Row get(Object... key) {
+        return snapshot.byKey.get(key(Arrays.asList(key)));
+    }
+
+    /**
+     * Row with the given values of an index added with
+     * {@link #index(String...)}.
+     *
+     * @param columns index columns separated by commas
+     * @param values  one value per column
+     */
+    public Row find(String columns, Object... values) {
+        Map<Object, Row> index = snapshot.byIndex.get(columns);
+        if (index == null)
+            throw new IllegalArgumentException("No replica index on " + columns + " of " + table);
+        return index.get(key(Arrays.asList(values)));
+    }
+
+    public List<Row> all() {
+        return snapshot.rows;
+    }
+
+    public int size() {
+        return snapshot.rows.size();
+    }
+
+    private void start() {
+        ChangeFeed.listen(table, new ChangeListener() {
+            @Override
+            public void changed(List<ChangeEvent> events) {
+                removeDeleted(events);
+                dirty = true;
+            }
+        });
+        scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long now = System.currentTimeMillis();
+                    if (now - lastFullReload >= fullReloadMillis) {
+                        fullReload();
+                    } else if (dirty || now - lastRefresh >= refreshMillis) {
+                        refresh();
+                    }
+                } catch (Throwable t) {
+                    LOG.warn("Couldn't refresh replica of " + table + " : " + t.getMessage());
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (background == null) {
+            background = Executors.newSingleThreadScheduledExecutor();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdown();
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+        return background;
+    }
+
+    private synchronized void fullReload() {
+        long now = System.currentTimeMillis();
+        dirty = false;
+        LinkedHashMap<Object, Row> byKey = new LinkedHashMap<Object, Row>();
+        Timestamp highWater = null;
+        for (Row r : Table.get(table).rows()) {
+            byKey.put(keyOf(r), r);
+            highWater = later(highWater, r);
+        }
+        snapshot = new Snapshot(byKey, highWater);
+        lastRefresh = now;
+        lastFullReload = now;
+        LOG.debug("Loaded replica of " + table + " rows=" + byKey.size());
+    }
+
+    /**
+     * Merge the rows changed since the last refresh into a new snapshot.
+     * Rows with a timestamp equal to the high water mark are read again, so
+     * writes committed within the same second are not missed.
+     */
+    private synchronized void refresh() {
+        if (updatedAt == null || snapshot.highWater == null) {
+            fullReload();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        dirty = false;
+        List<Row> changed = Table.get(table).where(updatedAt, snapshot.highWater, Table.WhereOp
+                .GREATER_THAN_EQUALS).rows();
+        lastRefresh = now;
+        if (changed.isEmpty())
+            return;
+        LinkedHashMap<Object, Row> byKey = new LinkedHashMap<Object, Row>(snapshot.byKey);
+        Timestamp highWater = snapshot.highWater;
+        for (Row r : changed) {
+            byKey.put(keyOf(r), r);
+            highWater = later(highWater, r);
+        }
+        snapshot = new Snapshot(byKey, highWater);
+    }
+
+    private synchronized void removeDeleted(List<ChangeEvent> events) {
+        LinkedHashMap<Object, Row> byKey = null;
+        for (ChangeEvent e : events) {
+            if (e.getType() != ChangeEvent.Type.DELETE)
+                continue;
+            if (byKey == null)
+                byKey = new LinkedHashMap<Object, Row>(snapshot.byKey);
+            List<Object> values = new ArrayList<Object>();
+            for (String column : key) {
+                values.add(e.getKey().get(column));
+            }
+            byKey.remove(key(values));
+        }
+        if (byKey != null)
+            snapshot = new Snapshot(byKey, snapshot.highWater);
+    }
+
+    private Timestamp later(Timestamp highWater, Row r) {
+        if (updatedAt == null)
+            return null;
+        Object o = r.value(table + "." + updatedAt);
+        if (!(o instanceof Timestamp))
+            return highWater;
+        Timestamp t = (Timestamp) o;
+        return (highWater == null || t.after(highWater)) ? t : highWater;
+    }
+
+    private Object keyOf(Row r) {
+        List<Object> values = new ArrayList<Object>();
+        for (String column : key) {
+            values.add(r.value(table + "." + column));
+        }
+        return key(values);
+    }
+
+    /**
+     * Single values are used as is, several as a list, each normalized by
+     * {@link Value#key(Object)}.
+     */
+    private static Object key(List<Object> values) {
+        List<Object> normalized = new ArrayList<Object>(values.size());
+        for (Object value : values) {
+            normalized.add(Value.key(value));
+        }
+        return (normalized.size() == 1) ? normalized.get(0) : normalized;
+    }
+
+    /**
+     * Immutable view of the table at one point in time.
+     */
+    private class Snapshot {
+        final Map<Object, Row> byKey;
+        final Map<String, Map<Object, Row>> byIndex;
+        final List<Row> rows;
+        final Timestamp highWater;
+
+        Snapshot(Map<Object, Row> byKey, Timestamp highWater) {
+            this.byKey = byKey;
+            this.highWater = highWater;
+            this.rows = Collections.unmodifiableList(new ArrayList<Row>(byKey.values()));
+            this.byIndex = new HashMap<String, Map<Object, Row>>();
+            for (List<String> index : indexes) {
+                Map<Object, Row> map = new HashMap<Object, Row>();
+                for (Row r : rows) {
+                    List<Object> values = new ArrayList<Object>();
+                    for (String column : index) {
+                        values.add(r.value(table + "." + column));
+                    }
+                    map.put(key(values), r);
+                }
+                byIndex.put(StringUtils.join(index, ","), map);
+            }
+        }
+    }
+}
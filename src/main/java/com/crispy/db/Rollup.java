@@ -0,0 +1,624 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * A summary table holding row counts and sums of a source table per time
+ * period and dimension values, so dashboard aggregates don't rescan raw
+ * events.
+ * <p>
+ * The rollup is filled from the source table when it is first created and
+ * updated afterwards from the inserts on the {@link ChangeFeed}. Each batch
+ * of events becomes one upsert adding the deltas. The first fill covers the
+ * rows up to the largest primary key seen when it starts, so the source
+ * needs a single integer primary key; inserts with a larger key are counted
+ * from their events. Updates and deletes of source rows aren't reflected;
+ * {@link #rebuild(LocalDate, LocalDate)} recomputes a date range from the
+ * source table. Rows with a NULL dimension or time are left out. A delta
+ * upsert that still fails after a few attempts marks its periods stale:
+ * selects aren't answered from the rollup until a rebuild covers them.
+ * <p>
+ * Aggregate selects on the source table built with sum(), cnt() and avg(),
+ * optionally grouped by a dimension and filtered on dimensions and on whole
+ * periods of the time column, are answered from the rollup when they ask
+ * for it with {@link Table#fromRollups()}. Only selects that exclude NULL
+ * for the time column and every dimension, with a condition on each or
+ * {@link Table#isNotNull(String)}, are answered.
+ */
+public class Rollup {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int ATTEMPTS = 3;
+    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<Rollup>> ROLLUPS = new
+            ConcurrentHashMap<String, CopyOnWriteArrayList<Rollup>>();
+
+    public enum Granularity {
+        HOUR, DAY, MONTH
+    }
+
+    private final String source;
+    private final String name;
+    private String time;
+    private Granularity granularity;
+    private List<String> dimensions;
+    private List<String> measures;
+    private ChangeListener listener;
+    // Inserts with a key up to this were counted by the initial fill
+    private String keyColumn;
+    private volatile long filledUpTo = Long.MIN_VALUE;
+    // Events received before the initial fill had its key, or null
+    private List<ChangeEvent> pending;
+    // Periods a lost delta left wrong, until rebuild() covers them
+    private LocalDate staleFrom;
+    private LocalDate staleTo;
+
+    Rollup(String source, String name) {
+        this.source = source;
+        this.name = name;
+        this.granularity = Granularity.DAY;
+        this.dimensions = new ArrayList<String>();
+        this.measures = new ArrayList<String>();
+    }
+
+    /**
+     * Period column of the source table, TIMESTAMP, DATETIME or DATE.
+     */
+    public Rollup time(String column, Granularity granularity) {
+        this.time = column;
+        this.granularity = granularity;
+        return this;
+    }
+
+    /**
+     * Columns the counts and sums are grouped by. They become part of the
+     * primary key of the rollup, so they can't be TEXT columns.
+     */
+    public Rollup dimensions(String... columns) {
+        this.dimensions.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    /**
+     * Numeric columns to keep sums and non-NULL counts of.
+     */
+    public Rollup sum(String... columns) {
+        this.measures.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    /**
+     * Create or update the rollup table, fill it if it is new and start
+     * maintaining it.
+     */
+    public void create() {
+        Metadata m = DB.getMetadata(source);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + source);
+        if (time == null || m.getColumn(time) == null)
+            throw new IllegalStateException("Rollup " + name + " needs a time column of " + source);
+        List<Column> columns = new ArrayList<Column>();
+        columns.add(granularity == Granularity.HOUR ? Column.datetime("period") : Column.date("period"));
+        for (String d : dimensions) {
+            Column c = m.getColumn(d);
+            if (c == null)
+                throw new IllegalStateException("No column exists for " + d + " in table " + source);
+            columns.add(new Column(d, c.type));
+        }
+        columns.add(Column.bigInteger("cnt"));
+        for (String measure : measures) {
+            Column c = m.getColumn(measure);
+            if (c == null)
+                throw new IllegalStateException("No column exists for " + measure + " in table " + source);
+            columns.add(new Column("sum_" + measure, isInteger(c) ? "BIGINT" : "DOUBLE"));
+            columns.add(Column.bigInteger("n_" + measure));
+        }
+        List<String> key = new ArrayList<String>();
+        key.add("period");
+        key.addAll(dimensions);
+
+        Table.get(name).columns(columns.toArray(new Column[0])).primary(key.toArray(new String[0])).create();
+        boolean fresh = Table.get(name).count() == 0;
+
+        if (fresh) {
+            Index primary = m.getPrimary();
+            Column k = (primary == null || primary.columns.size() != 1) ? null : m.getColumn(primary.columns.get(0));
+            if (k == null || !isInteger(k))
+                throw new IllegalStateException("Rollup " + name + " needs a single integer primary key on " + source);
+            keyColumn = k.getName();
+            pending = new ArrayList<ChangeEvent>();
+        }
+        listener = new ChangeListener() {
+            @Override
+            public void changed(List<ChangeEvent> events) {
+                synchronized (Rollup.this) {
+                    if (pending != null) {
+                        pending.addAll(events);
+                        return;
+                    }
+                }
+                added(events);
+            }
+        };
+        ChangeFeed.listen(source, listener);
+        ROLLUPS.computeIfAbsent(source, t -> new CopyOnWriteArrayList<Rollup>()).add(this);
+        if (fresh) {
+            List<ChangeEvent> early;
+            try {
+                Object max = DB.singleItemQuery("SELECT MAX(`" + keyColumn + "`) FROM `" + source + "`");
+                synchronized (this) {
+                    filledUpTo = (max == null) ? Long.MIN_VALUE : ((Number) max).longValue();
+                    early = pending;
+                    pending = null;
+                }
+            } catch (SQLException e) {
+                close();
+                LOG.error(e.getMessage(), e);
+                throw new IllegalStateException(e);
+            }
+            added(early);
+            if (filledUpTo != Long.MIN_VALUE)
+                fill(null, null, filledUpTo);
+        }
+    }
+
+    private static boolean isInteger(Column c) {
+        return c.type.startsWith("INT") || c.type.startsWith("BIGINT") || c.type.startsWith("TINYINT")
+                || c.type.startsWith("SMALLINT");
+    }
+
+    /**
+     * Recompute the periods from one date up to another, exclusive, from the
+     * source table. Either end may be null.
+     */
+    public void rebuild(LocalDate from, LocalDate to) {
+        List<String> conditions = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        if (from != null) {
+            conditions.add("`period`>=?");
+            values.add(java.sql.Date.valueOf(from));
+        }
+        if (to != null) {
+            conditions.add("`period`<?");
+            values.add(java.sql.Date.valueOf(to));
+        }
+        try {
+            DB.updateQuery("DELETE FROM `" + name + "`" + (conditions.isEmpty() ? "" : " WHERE " + StringUtils.join
+                    (conditions, " AND ")), values.toArray());
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+        fill(from == null ? null : java.sql.Date.valueOf(from), to == null ? null : java.sql.Date.valueOf(to), null);
+        synchronized (this) {
+            if (staleFrom != null && (from == null || !from.isAfter(staleFrom)) && (to == null || to.isAfter
+                    (staleTo))) {
+                LOG.info("Rollup " + name + " is current again");
+                staleFrom = null;
+                staleTo = null;
+            }
+        }
+    }
+
+    /**
+     * Whether a lost delta left periods wrong that no rebuild covered yet.
+     */
+    public synchronized boolean isStale() {
+        return staleFrom != null;
+    }
+
+    /**
+     * Stop maintaining the rollup. The table is kept.
+     */
+    public void close() {
+        ChangeFeed.unlisten(source, listener);
+        CopyOnWriteArrayList<Rollup> rollups = ROLLUPS.get(source);
+        if (rollups != null)
+            rollups.remove(this);
+    }
+
+    static List<Rollup> forTable(String table) {
+        CopyOnWriteArrayList<Rollup> rollups = ROLLUPS.get(table);
+        return (rollups == null) ? Collections.<Rollup>emptyList() : rollups;
+    }
+
+    /**
+     * Add the source rows with a time in [from, to), and a key up to upTo if
+     * given, to the rollup.
+     */
+    private void fill(java.util.Date from, java.util.Date to, Long upTo) {
+        List<String> columns = new ArrayList<String>();
+        List<String> selects = new ArrayList<String>();
+        List<String> updates = new ArrayList<String>();
+        columns.add("`period`");
+        selects.add(periodSql());
+        for (String d : dimensions) {
+            columns.add("`" + d + "`");
+            selects.add("`" + d + "`");
+        }
+        columns.add("`cnt`");
+        selects.add("COUNT(*)");
+        updates.add("`cnt`=`cnt`+VALUES(`cnt`)");
+        for (String measure : measures) {
+            columns.add("`sum_" + measure + "`");
+            columns.add("`n_" + measure + "`");
+            selects.add("COALESCE(SUM(`" + measure + "`),0)");
+            selects.add("COUNT(`" + measure + "`)");
+            updates.add("`sum_" + measure + "`=`sum_" + measure + "`+VALUES(`sum_" + measure + "`)");
+            updates.add("`n_" + measure + "`=`n_" + measure + "`+VALUES(`n_" + measure + "`)");
+        }
+        List<String> conditions = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        for (String d : dimensions) {
+            conditions.add("`" + d + "` IS NOT NULL");
+        }
+        conditions.add("`" + time + "` IS NOT NULL");
+        if (from != null) {
+            conditions.add("`" + time + "`>=?");
+            values.add(from);
+        }
+        if (to != null) {
+            conditions.add("`" + time + "`<?");
+            values.add(to);
+        }
+        if (upTo != null) {
+            conditions.add("`" + keyColumn + "`<=?");
+            values.add(upTo);
+        }
+        List<String> groups = new ArrayList<String>();
+        for (int g = 1; g <= dimensions.size() + 1; g++) {
+            groups.add(Integer.toString(g));
+        }
+        long start = System.currentTimeMillis();
+        try {
+            DB.updateQuery("INSERT INTO `" + name + "`(" + StringUtils.join(columns, ",") + ") SELECT " + StringUtils
+                    .join(selects, ",") + " FROM `" + source + "` WHERE " + StringUtils.join(conditions, " AND ")
+                    + " GROUP BY " + StringUtils.join(groups, ",") + " ON DUPLICATE KEY UPDATE " + StringUtils
+                    .join(updates, ","), values.toArray());
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+        LOG.info("Filled rollup " + name + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private String periodSql() {
+        switch (granularity) {
+            case HOUR:
+                return "DATE_FORMAT(`" + time + "`,'%Y-%m-%d %H:00:00')";
+            case MONTH:
+                return "DATE_FORMAT(`" + time + "`,'%Y-%m-01')";
+            default:
+                return "DATE(`" + time + "`)";
+        }
+    }
+
+    /**
+     * Sum the inserted rows into deltas per rollup row and apply them with
+     * one upsert, retried a few times before the periods are marked stale.
+     */
+    private void added(List<ChangeEvent> events) {
+        LinkedHashMap<List<Object>, Object[]> deltas = deltas(events);
+        if (deltas.isEmpty())
+            return;
+
+        List<String> columns = new ArrayList<String>();
+        List<String> updates = new ArrayList<String>();
+        columns.add("`period`");
+        for (String d : dimensions) {
+            columns.add("`" + d + "`");
+        }
+        columns.add("`cnt`");
+        updates.add("`cnt`=`cnt`+VALUES(`cnt`)");
+        for (String measure : measures) {
+            columns.add("`sum_" + measure + "`");
+            columns.add("`n_" + measure + "`");
+            updates.add("`sum_" + measure + "`=`sum_" + measure + "`+VALUES(`sum_" + measure + "`)");
+            updates.add("`n_" + measure + "`=`n_" + measure + "`+VALUES(`n_" + measure + "`)");
+        }
+        String row = "(" + StringUtils.join(Collections.nCopies(columns.size(), "?"), ",") + ")";
+        List<Object> values = new ArrayList<Object>();
+        for (Map.Entry<List<Object>, Object[]> e : deltas.entrySet()) {
+            values.addAll(e.getKey());
+            values.addAll(Arrays.asList(e.getValue()));
+        }
+        String sql = "INSERT INTO `" + name + "`(" + StringUtils.join(columns, ",") + ") VALUES " + StringUtils.join
+                (Collections.nCopies(deltas.size(), row), ",") + " ON DUPLICATE KEY UPDATE " + StringUtils.join
+                (updates, ",");
+        for (int attempt = 1; ; attempt++) {
+            try {
+                DB.updateQuery(sql, values.toArray());
+                return;
+            } catch (SQLException e) {
+                if (attempt == ATTEMPTS) {
+                    stale(deltas.keySet());
+                    LOG.error("Couldn't update rollup " + name + ", it isn't used until rebuild() covers " +
+                            staleFrom + " to " + staleTo, e);
+                    return;
+                }
+                LOG.warn("Couldn't update rollup " + name + ", retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(100L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deltas of the inserted rows per rollup row, keyed by period and
+     * dimension values: the row count, then the sum and non-NULL count of
+     * each measure.
+     */
+    LinkedHashMap<List<Object>, Object[]> deltas(List<ChangeEvent> events) {
+        LinkedHashMap<List<Object>, Object[]> deltas = new LinkedHashMap<List<Object>, Object[]>();
+        for (ChangeEvent e : events) {
+            if (e.getType() != ChangeEvent.Type.INSERT)
+                continue;
+            if (keyColumn != null) {
+                Object k = e.getKey().get(keyColumn);
+                if (k instanceof Number && ((Number) k).longValue() <= filledUpTo)
+                    continue;
+            }
+            Map<String, Object> values = e.getValues();
+            LocalDateTime at = localDateTime(values.containsKey(time) ? values.get(time) : e.getTime());
+            if (at == null)
+                continue;
+            List<Object> key = new ArrayList<Object>();
+            key.add(period(at));
+            for (String d : dimensions) {
+                key.add(values.get(d));
+            }
+            if (key.contains(null))
+                continue;
+            Object[] d = deltas.get(key);
+            if (d == null) {
+                d = new Object[1 + 2 * measures.size()];
+                d[0] = 0L;
+                for (int m = 0; m < measures.size(); m++) {
+                    d[1 + 2 * m] = 0.0;
+                    d[2 + 2 * m] = 0L;
+                }
+                deltas.put(key, d);
+            }
+            d[0] = (Long) d[0] + 1;
+            for (int m = 0; m < measures.size(); m++) {
+                Object v = values.get(measures.get(m));
+                if (v instanceof Number) {
+                    d[1 + 2 * m] = (Double) d[1 + 2 * m] + ((Number) v).doubleValue();
+                    d[2 + 2 * m] = (Long) d[2 + 2 * m] + 1;
+                }
+            }
+        }
+        return deltas;
+    }
+
+    private synchronized void stale(Set<List<Object>> keys) {
+        for (List<Object> key : keys) {
+            LocalDate day = localDateTime(key.get(0)).toLocalDate();
+            if (staleFrom == null || day.isBefore(staleFrom))
+                staleFrom = day;
+            if (staleTo == null || day.isAfter(staleTo))
+                staleTo = day;
+        }
+    }
+
+    private Object period(LocalDateTime at) {
+        switch (granularity) {
+            case HOUR:
+                return Timestamp.valueOf(at.truncatedTo(ChronoUnit.HOURS));
+            case MONTH:
+                return java.sql.Date.valueOf(at.toLocalDate().withDayOfMonth(1));
+            default:
+                return java.sql.Date.valueOf(at.toLocalDate());
+        }
+    }
+
+    private static LocalDateTime localDateTime(Object o) {
+        if (o instanceof java.sql.Date)
+            return ((java.sql.Date) o).toLocalDate().atStartOfDay();
+        if (o instanceof Timestamp)
+            return ((Timestamp) o).toLocalDateTime();
+        if (o instanceof java.util.Date)
+            return LocalDateTime.ofInstant(((java.util.Date) o).toInstant(), ZoneId.systemDefault());
+        if (o instanceof Number)
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(((Number) o).longValue()), ZoneId.systemDefault());
+        if (o instanceof LocalDateTime)
+            return (LocalDateTime) o;
+        if (o instanceof LocalDate)
+            return ((LocalDate) o).atStartOfDay();
+        if (o instanceof String) {
+            try {
+                String s = (String) o;
+                return (s.length() <= 10) ? LocalDate.parse(s).atStartOfDay() : Timestamp.valueOf(s)
+                        .toLocalDateTime();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rows of an aggregate select on the source table read from this rollup,
+     * or null if the select doesn't match it or the rollup is stale.
+     */
+    List<Row> answer(List<String> names, List<String> functions, String groupBy, List<Table.WhereExp> where,
+                     String[] orderBy, int start, int limit) {
+        if (isStale())
+            return null;
+        Rewrite query = rewrite(names, functions, groupBy, where, orderBy, start, limit);
+        if (query == null)
+            return null;
+        LOG.trace(query.sql);
+
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = con.prepareStatement(query.sql);
+            for (int v = 0; v < query.values.size(); v++) {
+                pstmt.setObject(v + 1, query.values.get(v));
+            }
+            ResultSet results = pstmt.executeQuery();
+            List<Row> rows = new ArrayList<Row>();
+            while (results.next()) {
+                Map<String, Object> plain = new HashMap<String, Object>();
+                for (int c = 0; c < names.size(); c++) {
+                    if (functions.get(c).isEmpty())
+                        plain.put(names.get(c), results.getObject(c + 1));
+                }
+                Row r = new Row(source, plain);
+                for (int c = 0; c < names.size(); c++) {
+                    if (!functions.get(c).isEmpty())
+                        r.value(functions.get(c) + "(`" + names.get(c) + "`)", results.getObject(c + 1));
+                }
+                rows.add(r);
+            }
+            pstmt.close();
+            return rows;
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * An aggregate select on the source table rewritten for the rollup
+     * table, or null if it doesn't map onto whole rollup rows.
+     */
+    Rewrite rewrite(List<String> names, List<String> functions, String groupBy, List<Table.WhereExp> where,
+                    String[] orderBy, int start, int limit) {
+        if (groupBy != null && !dimensions.contains(groupBy))
+            return null;
+        List<String> selects = new ArrayList<String>();
+        for (int c = 0; c < names.size(); c++) {
+            String column = names.get(c);
+            String fn = functions.get(c);
+            String select = null;
+            if (fn.isEmpty()) {
+                if (column.equals(groupBy))
+                    select = "`" + column + "`";
+            } else if (fn.equals("COUNT")) {
+                if (measures.contains(column))
+                    select = "SUM(`n_" + column + "`)";
+                else if (dimensions.contains(column) || column.equals(time))
+                    select = "SUM(`cnt`)";
+            } else if (fn.equals("SUM") && measures.contains(column)) {
+                select = "SUM(`sum_" + column + "`)";
+            } else if (fn.equals("AVG") && measures.contains(column)) {
+                select = "SUM(`sum_" + column + "`)/SUM(`n_" + column + "`)";
+            }
+            if (select == null)
+                return null;
+            selects.add(select);
+        }
+
+        List<String> conditions = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        Set<String> notNull = new HashSet<String>();
+        for (Table.WhereExp exp : where) {
+            String condition = condition(exp);
+            if (condition == null)
+                return null;
+            conditions.add(condition);
+            values.addAll(Arrays.asList(exp.values));
+            notNull.add(exp.column != null ? exp.column : notNullColumn(exp));
+        }
+        // Rows with a NULL dimension or time aren't in the rollup
+        if (!notNull.contains(time) || !notNull.containsAll(dimensions))
+            return null;
+        List<String> order = new ArrayList<String>();
+        for (String term : orderBy) {
+            if (groupBy == null || !term.startsWith("`" + groupBy + "`"))
+                return null;
+            order.add(term);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT " + StringUtils.join(selects, ",") + " FROM `" + name + "`");
+        if (conditions.size() > 0)
+            sb.append(" WHERE " + StringUtils.join(conditions, " AND "));
+        if (groupBy != null)
+            sb.append(" GROUP BY `" + groupBy + "`");
+        if (order.size() > 0)
+            sb.append(" ORDER BY " + StringUtils.join(order, ","));
+        if (limit != -1)
+            sb.append(" LIMIT " + (start != -1 ? start + "," : "") + limit);
+        return new Rewrite(sb.toString(), values);
+    }
+
+    /**
+     * The condition rewritten for the rollup table, or null if it doesn't
+     * map onto whole rollup rows.
+     */
+    String condition(Table.WhereExp exp) {
+        String column = notNullColumn(exp);
+        if (column != null && dimensions.contains(column))
+            return exp.exp;
+        if (column != null && column.equals(time))
+            return "!ISNULL(`period`)";
+        if (exp.column == null)
+            return null;
+        String bare = exp.exp.replace("`" + source + "`.", "").replace(source + ".", "");
+        if (dimensions.contains(exp.column))
+            return bare;
+        if (!exp.column.equals(time))
+            return null;
+        if (exp.op == null) {
+            // Date ranges from Table.dateRange start and end at midnight
+            return (granularity == Granularity.MONTH) ? null : bare.replace("`" + time + "`", "`period`");
+        }
+        if (exp.op != Table.WhereOp.GREATER_THAN_EQUALS && exp.op != Table.WhereOp.LESS_THAN)
+            return null;
+        LocalDateTime at = localDateTime(exp.values[0]);
+        if (at == null || !at.equals(localDateTime(period(at))))
+            return null;
+        return "`period`" + exp.op.sqlOp() + "?";
+    }
+
+    /**
+     * Column of a {@link Table#isNotNull(String)} condition, or null.
+     */
+    private static String notNullColumn(Table.WhereExp exp) {
+        if (exp.column != null || !exp.exp.startsWith("!ISNULL(`") || !exp.exp.endsWith("`)"))
+            return null;
+        return exp.exp.substring("!ISNULL(`".length(), exp.exp.length() - 2);
+    }
+
+    static final class Rewrite {
+        final String sql;
+        final List<Object> values;
+
+        Rewrite(String sql, List<Object> values) {
+            this.sql = sql;
+            this.values = values;
+        }
+    }
+}
@@ -6,6 +6,9 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -29,6 +32,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import com.crispy.log.Log;
 import com.crispy.utils.IJSONConvertible;
@@ -40,6 +44,9 @@ public class Row implements IJSONConvertible {
     private HashMap<String, LinkedList<String>> columnToTableIndex;
 
     private TreeSet<String> tables;
+    private HashMap<String, Object> related;
+    // JSON values already parsed, by table.column
+    private HashMap<String, Object> parsed;
 
     protected Row(ResultSet results) throws SQLException {
         columns = new HashMap<String, Object>();
@@ -51,7 +58,7 @@ public class Row implements IJSONConvertible {
             String column = meta.getColumnName(c + 1);
 
             if (table.length() > 0) {
-                columns.put(table + "." + column, results.getObject(c + 1));
+                columns.put(table + "." + column, read(results, c + 1));
                 tables.add(table);
 
                 LinkedList<String> myTables = columnToTableIndex.get(column);
@@ -61,11 +68,41 @@ public class Row implements IJSONConvertible {
                 }
                 myTables.add(table);
             } else {
-                columns.put(column, results.getObject(c + 1));
+                columns.put(column, read(results, c + 1));
             }
         }
     }
 
+    /**
+     * Column value as MySQL's driver returns it. H2 returns TEXT and BLOB
+     * columns as Clob and Blob, which are read into a String and byte[].
+     */
+    private static Object read(ResultSet results, int c) throws SQLException {
+        Object o = results.getObject(c);
+        if (o instanceof Clob)
+            return ((Clob) o).getSubString(1, (int) ((Clob) o).length());
+        if (o instanceof Blob)
+            return ((Blob) o).getBytes(1, (int) ((Blob) o).length());
+        return o;
+    }
+
+    /**
+     * A row of a single table built from stored values, for rows that don't
+     * come straight from a query.
+     */
+    Row(String table, Map<String, Object> values) {
+        columns = new HashMap<String, Object>();
+        columnToTableIndex = new HashMap<String, LinkedList<String>>();
+        tables = new TreeSet<String>();
+        tables.add(table);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            columns.put(table + "." + entry.getKey(), entry.getValue());
+            LinkedList<String> myTables = new LinkedList<String>();
+            myTables.add(table);
+            columnToTableIndex.put(entry.getKey(), myTables);
+        }
+    }
+
     public static JSONObject rowToJSON(Row r) throws IllegalStateException {
         JSONObject o = new JSONObject();
         try {
@@ -93,6 +130,9 @@ public class Row implements IJSONConvertible {
                     case TIMESTAMP:
                         o.put(cname, r.columnAsLong(cname));
                         break;
+                    case JSON:
+                        o.put(cname, r.columnAsJSON(cname));
+                        break;
                     default:
                         o.put(cname, r.columnAsString(cname));
                         break;
@@ -137,6 +177,41 @@ public class Row implements IJSONConvertible {
         return tables.getFirst();
     }
 
+    String tableOf(String column) {
+        return getTable(column);
+    }
+
+    boolean hasTable(String table) {
+        return tables.contains(table);
+    }
+
+    void attach(String name, Object value) {
+        if (related == null)
+            related = new HashMap<String, Object>();
+        related.put(name, value);
+    }
+
+    /**
+     * Row referenced by the given foreign key column, as loaded by
+     * {@link Relations#loadParents(List, String)}.
+     */
+    public Row parent(String column) {
+        if (related == null || !related.containsKey(column))
+            throw new IllegalStateException("Parent for column " + column + " was not loaded");
+        return (Row) related.get(column);
+    }
+
+    /**
+     * Rows of the given table pointing at this row, as loaded by
+     * {@link Relations#loadChildren(List, String)}.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Row> children(String table) {
+        if (related == null || !related.containsKey(table))
+            throw new IllegalStateException("Children from table " + table + " were not loaded");
+        return (List<Row>) related.get(table);
+    }
+
     @Deprecated
     public Object column(String name) {
         return column(getTable(name), name);
@@ -158,6 +233,20 @@ public class Row implements IJSONConvertible {
         return Value.create(o, DB.getMetadata(table).getColumn(name));
     }
 
+    /**
+     * Value stored under a full key: table.column for table columns, the
+     * expression for computed ones.
+     */
+    Object value(String key) {
+        return columns.get(key);
+    }
+
+    void value(String key, Object value) {
+        columns.put(key, value);
+        if (parsed != null)
+            parsed.remove(key);
+    }
+
     public Value sum(String name) {
         return fn("SUM", name);
     }
@@ -265,8 +354,71 @@ public class Row implements IJSONConvertible {
         return null;
     }
 
+    /**
+     * Value of a JSON or text column parsed as an object. The column is
+     * parsed on first use, each call returns its own copy.
+     */
     public JSONObject columnAsJSONObject(String name) throws JSONException {
-        return new JSONObject(columnAsString(name));
+        Object o = columnAsJSON(name);
+        if (o != null && !(o instanceof JSONObject))
+            throw new JSONException("Column " + name + " is not a JSON object");
+        return (JSONObject) o;
+    }
+
+    public JSONArray columnAsJSONArray(String name) throws JSONException {
+        Object o = columnAsJSON(name);
+        if (o != null && !(o instanceof JSONArray))
+            throw new JSONException("Column " + name + " is not a JSON array");
+        return (JSONArray) o;
+    }
+
+    /**
+     * Parsed value of a JSON or text column: a JSONObject, JSONArray,
+     * String, number, Boolean, or null for SQL NULL. Parsed at most once;
+     * objects and arrays are copied from the parsed value, so callers may
+     * modify what they get.
+     */
+    public Object columnAsJSON(String name) throws JSONException {
+        String key = columnToTableIndex.containsKey(name) ? getTable(name) + "." + name : name;
+        if (parsed != null && parsed.containsKey(key))
+            return copyJSON(parsed.get(key));
+        Object value = columns.get(key);
+        if (value instanceof byte[])
+            value = new String((byte[]) value, StandardCharsets.UTF_8);
+        Object json = (value == null) ? null : new JSONTokener(value.toString()).nextValue();
+        if (json == JSONObject.NULL)
+            json = null;
+        if (parsed == null)
+            parsed = new HashMap<String, Object>();
+        parsed.put(key, json);
+        return copyJSON(json);
+    }
+
+    /**
+     * Deep copy of a parsed JSON value. Walking the tree is much cheaper than
+     * tokenizing the text again.
+     */
+    private static Object copyJSON(Object json) throws JSONException {
+        if (json instanceof JSONObject) {
+            JSONObject o = (JSONObject) json;
+            JSONObject ret = new JSONObject();
+            String[] names = JSONObject.getNames(o);
+            if (names != null) {
+                for (String n : names) {
+                    ret.put(n, copyJSON(o.get(n)));
+                }
+            }
+            return ret;
+        }
+        if (json instanceof JSONArray) {
+            JSONArray a = (JSONArray) json;
+            JSONArray ret = new JSONArray();
+            for (int i = 0; i < a.length(); i++) {
+                ret.put(copyJSON(a.opt(i)));
+            }
+            return ret;
+        }
+        return json;
     }
 
     public String moneyAsString(String name, String currency) {
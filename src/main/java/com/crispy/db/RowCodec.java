@@ -0,0 +1,114 @@
+package com.crispy.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * Compact binary encoding of row values, driven by the column types in
+ * {@link Metadata}: a null bitmap of (columns + 7) / 8 bytes followed by the
+ * non null values. INT is an int, BIGINT a long, FLOAT a float, BOOL a
+ * boolean, DATE, TIME, DATETIME and TIMESTAMP long milliseconds, BLOB and
+ * BINARY types an int length followed by the bytes, and anything else an int
+ * length followed by UTF-8 bytes.
+ */
+class RowCodec {
+
+    private RowCodec() {
+    }
+
+    private static boolean isTemporal(String type) {
+        return type.equals("DATE") || type.equals("TIME") || type.equals("DATETIME") || type.equals("TIMESTAMP");
+    }
+
+    private static boolean isBinary(String type) {
+        return type.endsWith("BLOB") || type.endsWith("BINARY");
+    }
+
+    private static long millis(Object value) {
+        if (value instanceof java.util.Date)
+            return ((java.util.Date) value).getTime();
+        if (value instanceof LocalDateTime)
+            return Timestamp.valueOf((LocalDateTime) value).getTime();
+        if (value instanceof LocalDate)
+            return java.sql.Date.valueOf((LocalDate) value).getTime();
+        if (value instanceof LocalTime)
+            return Time.valueOf((LocalTime) value).getTime();
+        if (value instanceof Instant)
+            return ((Instant) value).toEpochMilli();
+        throw new IllegalArgumentException("Unsupported temporal value " + value.getClass().getName());
+    }
+
+    static void encode(DataOutput out, String[] types, Object[] values) throws IOException {
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        for (int c = 0; c < values.length; c++) {
+            if (values[c] == null)
+                nulls[c / 8] |= 1 << (c % 8);
+        }
+        out.write(nulls);
+        for (int c = 0; c < values.length; c++) {
+            Object value = values[c];
+            if (value == null)
+                continue;
+            String type = types[c];
+            if (type.equals("INT")) {
+                out.writeInt(((Number) value).intValue());
+            } else if (type.equals("BIGINT")) {
+                out.writeLong(((Number) value).longValue());
+            } else if (type.equals("FLOAT")) {
+                out.writeFloat(((Number) value).floatValue());
+            } else if (type.equals("BOOL")) {
+                out.writeBoolean((value instanceof Boolean) ? (Boolean) value : ((Number) value).intValue() != 0);
+            } else if (isTemporal(type)) {
+                out.writeLong(millis(value));
+            } else {
+                byte[] bytes = (value instanceof byte[]) ? (byte[]) value : value.toString().getBytes
+                        (StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Values as JDBC would return them: Integer, Long, Float, Boolean,
+     * java.sql date types, byte[] and String.
+     */
+    static Object[] decode(DataInput in, String[] types) throws IOException {
+        byte[] nulls = new byte[(types.length + 7) / 8];
+        in.readFully(nulls);
+        Object[] values = new Object[types.length];
+        for (int c = 0; c < types.length; c++) {
+            if ((nulls[c / 8] & (1 << (c % 8))) != 0)
+                continue;
+            String type = types[c];
+            if (type.equals("INT")) {
+                values[c] = in.readInt();
+            } else if (type.equals("BIGINT")) {
+                values[c] = in.readLong();
+            } else if (type.equals("FLOAT")) {
+                values[c] = in.readFloat();
+            } else if (type.equals("BOOL")) {
+                values[c] = in.readBoolean();
+            } else if (type.equals("DATE")) {
+                values[c] = new java.sql.Date(in.readLong());
+            } else if (type.equals("TIME")) {
+                values[c] = new Time(in.readLong());
+            } else if (isTemporal(type)) {
+                values[c] = new Timestamp(in.readLong());
+            } else {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                values[c] = isBinary(type) ? bytes : new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return values;
+    }
+}
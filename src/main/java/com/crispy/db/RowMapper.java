@@ -0,0 +1,432 @@
+package com.crispy.db;
+
+import java.beans.ConstructorProperties;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Maps result set rows to instances of a class. A mapper is built once per
+ * class and result set layout and binds each column ordinal to where its
+ * value goes, so mapping a row does no name lookups.
+ * <p>
+ * Classes are mapped, in order of preference, through
+ * <ul>
+ * <li>a constructor taking the ResultSet, as customRows always did</li>
+ * <li>a constructor whose parameter names match columns: records,
+ * {@link ConstructorProperties} or classes compiled with -parameters</li>
+ * <li>a no-argument constructor, then fields or setters matching
+ * columns</li>
+ * </ul>
+ * Names match ignoring case and underscores, so created_at fills
+ * createdAt. Primitive long, int, double, float and boolean fields,
+ * setters and constructor parameters are read with the typed getters and
+ * passed through method handles, without boxing.
+ */
+public class RowMapper<T> {
+    private static final int MAX_CACHED = 1000;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ConcurrentHashMap<String, RowMapper<?>> MAPPERS = new ConcurrentHashMap<String,
+            RowMapper<?>>();
+
+    private final Class<T> type;
+    // (ResultSet)Object when the constructor reads the row itself, else ()Object
+    private final MethodHandle constructor;
+    private final boolean takesResultSet;
+    private final Binding[] bindings;
+
+    private RowMapper(Class<T> type, MethodHandle constructor, boolean takesResultSet, Binding[] bindings) {
+        this.type = type;
+        this.constructor = constructor;
+        this.takesResultSet = takesResultSet;
+        this.bindings = bindings;
+    }
+
+    /**
+     * Mapper of a class for the layout of a result set, built on first use.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type, ResultSetMetaData meta) throws SQLException {
+        StringBuilder key = new StringBuilder(type.getName());
+        String[] labels = new String[meta.getColumnCount()];
+        for (int c = 0; c < labels.length; c++) {
+            labels[c] = meta.getColumnLabel(c + 1);
+            key.append('|').append(labels[c]);
+        }
+        RowMapper<T> mapper = (RowMapper<T>) MAPPERS.get(key.toString());
+        if (mapper != null)
+            return mapper;
+        try {
+            mapper = build(type, labels);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't map rows to " + type.getName(), e);
+        }
+        if (MAPPERS.size() > MAX_CACHED)
+            MAPPERS.clear();
+        MAPPERS.put(key.toString(), mapper);
+        return mapper;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Object for the current row of the result set.
+     */
+    @SuppressWarnings("unchecked")
+    public T map(ResultSet results) throws SQLException {
+        try {
+            if (takesResultSet) {
+                Object ret = constructor.invokeExact(results);
+                return (T) ret;
+            }
+            Object ret = constructor.invokeExact();
+            for (Binding b : bindings) {
+                b.bind(ret, results);
+            }
+            return (T) ret;
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static <T> RowMapper<T> build(Class<T> type, String[] labels) throws IllegalAccessException {
+        Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        for (int c = labels.length - 1; c >= 0; c--) {
+            String label = labels[c];
+            ordinals.put(normalize(label.substring(label.lastIndexOf('.') + 1)), c + 1);
+        }
+
+        for (Constructor<?> c : type.getDeclaredConstructors()) {
+            if (c.getParameterCount() == 1 && c.getParameterTypes()[0] == ResultSet.class) {
+                c.setAccessible(true);
+                return new RowMapper<T>(type, LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object
+                        .class, ResultSet.class)), true, null);
+            }
+        }
+
+        Constructor<?> best = null;
+        int[] bestOrdinals = null;
+        for (Constructor<?> c : type.getDeclaredConstructors()) {
+            String[] names = parameterNames(type, c);
+            if (names == null || names.length == 0 || names.length != c.getParameterCount() || (best != null &&
+                    names.length <= bestOrdinals.length))
+                continue;
+            int[] argumentOrdinals = new int[names.length];
+            for (int p = 0; p < names.length && argumentOrdinals != null; p++) {
+                Integer ordinal = ordinals.get(normalize(names[p]));
+                if (ordinal == null)
+                    argumentOrdinals = null;
+                else
+                    argumentOrdinals[p] = ordinal;
+            }
+            if (argumentOrdinals != null) {
+                best = c;
+                bestOrdinals = argumentOrdinals;
+            }
+        }
+        if (best != null) {
+            best.setAccessible(true);
+            return new RowMapper<T>(type, spread(LOOKUP.unreflectConstructor(best), bestOrdinals), true, null);
+        }
+
+        Constructor<T> empty;
+        try {
+            empty = type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(type.getName() + " has no constructor matching the columns "
+                    + String.join(",", labels));
+        }
+        empty.setAccessible(true);
+        Map<String, Binding> bindings = new HashMap<String, Binding>();
+        for (Class<?> k = type; k != null && k != Object.class; k = k.getSuperclass()) {
+            for (Field f : k.getDeclaredFields()) {
+                String name = normalize(f.getName());
+                Integer ordinal = ordinals.get(name);
+                if (ordinal == null || bindings.containsKey(name) || Modifier.isStatic(f.getModifiers()) || Modifier
+                        .isFinal(f.getModifiers()))
+                    continue;
+                f.setAccessible(true);
+                bindings.put(name, binding(LOOKUP.unreflectSetter(f), f.getType(), ordinal));
+            }
+        }
+        for (Method m : type.getMethods()) {
+            if (!m.getName().startsWith("set") || m.getParameterCount() != 1 || Modifier.isStatic(m.getModifiers()))
+                continue;
+            String name = normalize(m.getName().substring(3));
+            Integer ordinal = ordinals.get(name);
+            if (ordinal == null)
+                continue;
+            bindings.put(name, binding(LOOKUP.unreflect(m), m.getParameterTypes()[0], ordinal));
+        }
+        return new RowMapper<T>(type, LOOKUP.unreflectConstructor(empty).asType(MethodType.methodType(Object
+                .class)), false, bindings.values().toArray(new Binding[0]));
+    }
+
+    /**
+     * Constructor turned into a (ResultSet)Object handle whose arguments are
+     * each read by a typed getter of their column.
+     */
+    private static MethodHandle spread(MethodHandle constructor, int[] ordinals) throws IllegalAccessException {
+        Class<?>[] types = constructor.type().parameterArray();
+        MethodHandle[] getters = new MethodHandle[types.length];
+        for (int p = 0; p < types.length; p++) {
+            getters[p] = getter(types[p], ordinals[p]);
+        }
+        MethodHandle h = constructor.asType(constructor.type().changeReturnType(Object.class));
+        h = MethodHandles.filterArguments(h, 0, getters);
+        return MethodHandles.permuteArguments(h, MethodType.methodType(Object.class, ResultSet.class),
+                new int[types.length]);
+    }
+
+    /**
+     * (ResultSet)t handle reading one column: the ResultSet getter for
+     * primitives, the column's {@link Reader} otherwise.
+     */
+    private static MethodHandle getter(Class<?> t, int col) throws IllegalAccessException {
+        String name = null;
+        if (t == long.class)
+            name = "getLong";
+        else if (t == int.class)
+            name = "getInt";
+        else if (t == short.class)
+            name = "getShort";
+        else if (t == byte.class)
+            name = "getByte";
+        else if (t == double.class)
+            name = "getDouble";
+        else if (t == float.class)
+            name = "getFloat";
+        else if (t == boolean.class)
+            name = "getBoolean";
+        try {
+            if (name != null)
+                return MethodHandles.insertArguments(LOOKUP.findVirtual(ResultSet.class, name, MethodType
+                        .methodType(t, int.class)), 1, col);
+            MethodHandle read = LOOKUP.findVirtual(Reader.class, "read", MethodType.methodType(Object.class,
+                    ResultSet.class));
+            return read.bindTo(reader(t, col)).asType(MethodType.methodType(t, ResultSet.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parameter names of a constructor from the record components,
+     * {@link ConstructorProperties} or the class file, or null.
+     */
+    private static String[] parameterNames(Class<?> type, Constructor<?> c) {
+        ConstructorProperties properties = c.getAnnotation(ConstructorProperties.class);
+        if (properties != null)
+            return properties.value();
+        String[] components = recordComponents(type, c);
+        if (components != null)
+            return components;
+        Parameter[] parameters = c.getParameters();
+        String[] names = new String[parameters.length];
+        for (int p = 0; p < parameters.length; p++) {
+            if (!parameters[p].isNamePresent())
+                return null;
+            names[p] = parameters[p].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Component names of a record if the constructor is its canonical one,
+     * taking the components in order. Looked up reflectively so the library
+     * still runs on Java 8.
+     */
+    private static String[] recordComponents(Class<?> type, Constructor<?> constructor) {
+        try {
+            Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+            if (components == null || components.length != constructor.getParameterCount())
+                return null;
+            Class<?>[] types = constructor.getParameterTypes();
+            String[] names = new String[components.length];
+            for (int c = 0; c < components.length; c++) {
+                Class<?> k = components[c].getClass();
+                if (k.getMethod("getType").invoke(components[c]) != types[c])
+                    return null;
+                names[c] = (String) k.getMethod("getName").invoke(components[c]);
+            }
+            return names;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private interface Reader {
+        Object read(ResultSet results) throws SQLException;
+    }
+
+    private interface Binding {
+        void bind(Object target, ResultSet results) throws Throwable;
+    }
+
+    /**
+     * Binding of a column to a setter or field, typed for primitives so the
+     * value is never boxed.
+     */
+    private static Binding binding(MethodHandle setter, Class<?> t, final int col) {
+        if (t == long.class) {
+            final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, long.class));
+            return (target, results) -> {
+                h.invokeExact(target, results.getLong(col));
+            };
+        }
+        if (t == int.class) {
+            final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+            return (target, results) -> {
+                h.invokeExact(target, results.getInt(col));
+            };
+        }
+        if (t == double.class) {
+            final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+            return (target, results) -> {
+                h.invokeExact(target, results.getDouble(col));
+            };
+        }
+        if (t == float.class) {
+            final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, float.class));
+            return (target, results) -> {
+                h.invokeExact(target, results.getFloat(col));
+            };
+        }
+        if (t == boolean.class) {
+            final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            return (target, results) -> {
+                h.invokeExact(target, results.getBoolean(col));
+            };
+        }
+        final MethodHandle h = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        final Reader r = reader(t, col);
+        return (target, results) -> {
+            h.invokeExact(target, r.read(results));
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Reader reader(final Class<?> t, final int col) {
+        if (t == long.class || t == int.class || t == short.class || t == byte.class || t == double.class || t ==
+                float.class || t == boolean.class || t == char.class)
+            return primitive(t, col);
+        if (t == String.class)
+            return results -> results.getString(col);
+        if (t == Long.class)
+            return results -> {
+                long v = results.getLong(col);
+                return results.wasNull() ? null : v;
+            };
+        if (t == Integer.class)
+            return results -> {
+                int v = results.getInt(col);
+                return results.wasNull() ? null : v;
+            };
+        if (t == Double.class)
+            return results -> {
+                double v = results.getDouble(col);
+                return results.wasNull() ? null : v;
+            };
+        if (t == Boolean.class)
+            return results -> {
+                boolean v = results.getBoolean(col);
+                return results.wasNull() ? null : v;
+            };
+        if (t == BigDecimal.class)
+            return results -> results.getBigDecimal(col);
+        if (t == java.sql.Date.class)
+            return results -> results.getDate(col);
+        if (t == Timestamp.class || t == java.util.Date.class)
+            return results -> results.getTimestamp(col);
+        if (t == LocalDate.class)
+            return results -> {
+                java.sql.Date d = results.getDate(col);
+                return (d == null) ? null : d.toLocalDate();
+            };
+        if (t == LocalDateTime.class)
+            return results -> {
+                Timestamp d = results.getTimestamp(col);
+                return (d == null) ? null : d.toLocalDateTime();
+            };
+        if (t == byte[].class)
+            return results -> results.getBytes(col);
+        if (t.isEnum())
+            return results -> {
+                String v = results.getString(col);
+                return (v == null) ? null : Enum.valueOf((Class<Enum>) t, v);
+            };
+        if (t == JSONObject.class)
+            return results -> {
+                String v = results.getString(col);
+                return (v == null) ? null : new JSONObject(v);
+            };
+        if (t == JSONArray.class)
+            return results -> {
+                String v = results.getString(col);
+                return (v == null) ? null : new JSONArray(v);
+            };
+        return results -> results.getObject(col);
+    }
+
+    private static Reader primitive(Class<?> t, final int col) {
+        if (t == long.class)
+            return results -> results.getLong(col);
+        if (t == int.class)
+            return results -> results.getInt(col);
+        if (t == short.class)
+            return results -> results.getShort(col);
+        if (t == byte.class)
+            return results -> results.getByte(col);
+        if (t == double.class)
+            return results -> results.getDouble(col);
+        if (t == float.class)
+            return results -> results.getFloat(col);
+        if (t == boolean.class)
+            return results -> results.getBoolean(col);
+        return results -> {
+            String v = results.getString(col);
+            return (v == null || v.isEmpty()) ? '\0' : v.charAt(0);
+        };
+    }
+
+    /**
+     * Map every remaining row of a result set.
+     */
+    public static <T> List<T> mapAll(Class<T> type, ResultSet results) throws SQLException {
+        RowMapper<T> mapper = of(type, results.getMetaData());
+        List<T> ret = new ArrayList<T>();
+        while (results.next()) {
+            ret.add(mapper.map(results));
+        }
+        return ret;
+    }
+}
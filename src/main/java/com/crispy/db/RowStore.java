@@ -0,0 +1,371 @@
+package com.crispy.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.crispy.log.Log;
+
+/**
+ * Rows of a table cached off-heap in a memory mapped file, keyed by an
+ * integer primary key. Meant for datasets too large to keep as
+ * {@link Row} objects on the heap.
+ * <p>
+ * The file is a ring of fixed size segments holding an append-only log of
+ * rows in the {@link RowCodec} encoding. Only a primitive key to offset
+ * index lives on the heap. When the log wraps around, the oldest segment
+ * is reused and the rows in it are evicted, so the file never grows past
+ * its maximum size. Reopening the file rebuilds the index by scanning the
+ * segments in the order they were written, which gives a warm cache after
+ * a restart. Rows changed while the process was down stay stale until they
+ * are invalidated or evicted.
+ * <p>
+ * Rows changed or deleted through this process are invalidated through the
+ * {@link ChangeFeed}. Use {@link Table#through(RowStore)} to read primary
+ * key lookups through the store.
+ */
+public class RowStore {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int MAGIC = 0x4A505253;
+    private static final int HEADER_SIZE = 4096;
+    private static final int SEGMENT_HEADER = 8;
+    private static final int MAX_SEGMENT_SIZE = 64 << 20;
+    private static final byte ROW = 1;
+    private static final byte TOMBSTONE = 2;
+
+    private final String table;
+    private final String keyColumn;
+    private final String[] names;
+    private final String[] types;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final int segmentSize;
+    private final LongIndex index;
+    private final ReentrantReadWriteLock lock;
+    private final ChangeListener listener;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    // Counts invalidations, so a row read before one isn't stored after it
+    private final AtomicLong invalidations;
+    private int current;
+    private int position;
+    private long sequence;
+
+    RowStore(String table, String keyColumn, String[] names, String[] types, File f, long maxBytes) throws
+            IOException {
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.names = names;
+        this.types = types;
+
+        int count = (int) Math.max(2, (maxBytes + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, maxBytes / count);
+        this.file = new RandomAccessFile(f, "rw");
+        FileChannel channel = file.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        this.segments = new MappedByteBuffer[count];
+        for (int s = 0; s < count; s++) {
+            segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) s * segmentSize,
+                    segmentSize);
+        }
+        this.index = new LongIndex(1024);
+        this.lock = new ReentrantReadWriteLock();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.invalidations = new AtomicLong();
+
+        int schema = Arrays.asList(names).hashCode() * 31 + Arrays.asList(types).hashCode();
+        if (header.getInt(0) == MAGIC && header.getInt(4) == schema && header.getInt(8) == segmentSize && header
+                .getInt(12) == count) {
+            recover();
+        } else {
+            for (MappedByteBuffer segment : segments) {
+                segment.putLong(0, 0);
+                segment.putInt(SEGMENT_HEADER, 0);
+            }
+            header.putInt(0, MAGIC).putInt(4, schema).putInt(8, segmentSize).putInt(12, count);
+            startSegment(0);
+        }
+
+        this.listener = new ChangeListener() {
+            @Override
+            public void changed(List<ChangeEvent> events) {
+                for (ChangeEvent e : events) {
+                    Object key = e.getKey().get(keyColumn);
+                    if (e.getType() != ChangeEvent.Type.INSERT && key instanceof Number)
+                        invalidate(((Number) key).longValue());
+                }
+            }
+        };
+        ChangeFeed.listen(table, listener);
+    }
+
+    /**
+     * Open or create the store of a table.
+     *
+     * @param table    table to cache
+     * @param file     backing file, reused across restarts
+     * @param maxBytes size of the file; older rows are evicted beyond it
+     */
+    public static RowStore open(String table, File file, long maxBytes) {
+        Metadata m = DB.getMetadata(table);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + table);
+        if (m.primary == null || m.primary.columns.size() != 1)
+            throw new IllegalStateException("Row stores need a single column primary key on " + table);
+        String keyColumn = m.primary.getColumn(0);
+        String keyType = m.getColumn(keyColumn).type;
+        if (!(keyType.equals("INT") || keyType.equals("BIGINT")))
+            throw new IllegalStateException("Row stores need an integer primary key on " + table);
+        String[] names = new String[m.columns.size()];
+        String[] types = new String[names.length];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = m.columns.get(c).name;
+            types[c] = m.columns.get(c).type;
+        }
+        try {
+            return new RowStore(table, keyColumn, names, types, file, maxBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * The row with the given key, read from the database and stored if it
+     * isn't cached yet.
+     */
+    public Row get(long key) {
+        Row r = getIfPresent(key);
+        if (r != null) {
+            hits.incrementAndGet();
+            return r;
+        }
+        misses.incrementAndGet();
+        long seen = invalidations.get();
+        r = Table.get(table).where(keyColumn, key).row();
+        // A write invalidating while we read may have made r stale
+        if (r != null)
+            store(r, seen);
+        return r;
+    }
+
+    public Row getIfPresent(long key) {
+        byte[] payload;
+        lock.readLock().lock();
+        try {
+            long offset = index.get(key);
+            if (offset == -1)
+                return null;
+            ByteBuffer segment = segments[(int) (offset / segmentSize)].duplicate();
+            int pos = (int) (offset % segmentSize);
+            payload = new byte[segment.getInt(pos) - 9];
+            segment.position(pos + 13);
+            segment.get(payload);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            Object[] values = RowCodec.decode(new DataInputStream(new ByteArrayInputStream(payload)), types);
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (int c = 0; c < names.length; c++) {
+                map.put(names[c], values[c]);
+            }
+            return new Row(table, map);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Store a row of the table, replacing the cached row with the same key.
+     */
+    public void put(Row r) {
+        store(r, -1);
+    }
+
+    /**
+     * Store a row unless an invalidation happened since {@code seen}, -1 to
+     * store it regardless.
+     */
+    private void store(Row r, long seen) {
+        Object[] values = new Object[names.length];
+        for (int c = 0; c < names.length; c++) {
+            values[c] = r.value(table + "." + names[c]);
+        }
+        long key = ((Number) r.value(table + "." + keyColumn)).longValue();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            RowCodec.encode(new DataOutputStream(bytes), types, values);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Row store of " + table + " can't store row " + key + " : " + e.getMessage());
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (seen != -1 && invalidations.get() != seen)
+                return;
+            long offset = append(ROW, key, bytes.toByteArray());
+            if (offset != -1)
+                index.put(key, offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void invalidate(long key) {
+        lock.writeLock().lock();
+        try {
+            invalidations.incrementAndGet();
+            if (index.get(key) != -1) {
+                index.remove(key);
+                append(TOMBSTONE, key, new byte[0]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Flush the file and stop listening for changes. The store can't be
+     * used afterwards.
+     */
+    public void close() {
+        ChangeFeed.unlisten(table, listener);
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+            file.close();
+        } catch (IOException e) {
+            LOG.warn("Couldn't close row store of " + table + " : " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append a record: int length, type byte, long key, payload. The length
+     * is written last so a torn write reads as the end of the segment.
+     *
+     * @return offset of the record, or -1 if it can't fit in a segment
+     */
+    private long append(byte type, long key, byte[] payload) {
+        int length = 9 + payload.length;
+        int needed = 4 + length + 4;
+        if (needed > segmentSize - SEGMENT_HEADER)
+            return -1;
+        if (position + needed > segmentSize)
+            startSegment((current + 1) % segments.length);
+        ByteBuffer segment = segments[current].duplicate();
+        segment.put(position + 4, type);
+        segment.putLong(position + 5, key);
+        segment.position(position + 13);
+        segment.put(payload);
+        segment.putInt(position + 4 + length, 0);
+        segment.putInt(position, length);
+        long offset = (long) current * segmentSize + position;
+        position += 4 + length;
+        return offset;
+    }
+
+    /**
+     * Evict the rows of a segment and start writing into it.
+     */
+    private void startSegment(int s) {
+        MappedByteBuffer segment = segments[s];
+        if (segment.getLong(0) != 0) {
+            int evicted = 0;
+            for (int pos = SEGMENT_HEADER; pos + 4 <= segmentSize; ) {
+                int length = segment.getInt(pos);
+                if (length == 0)
+                    break;
+                long key = segment.getLong(pos + 5);
+                if (segment.get(pos + 4) == ROW && index.get(key) == (long) s * segmentSize + pos) {
+                    index.remove(key);
+                    evicted++;
+                }
+                pos += 4 + length;
+            }
+            LOG.debug("Row store of " + table + " evicted " + evicted + " rows");
+        }
+        segment.putInt(SEGMENT_HEADER, 0);
+        segment.putLong(0, ++sequence);
+        current = s;
+        position = SEGMENT_HEADER;
+    }
+
+    /**
+     * Rebuild the index by replaying the segments oldest first.
+     */
+    private void recover() {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int s = 0; s < segments.length; s++) {
+            if (segments[s].getLong(0) != 0)
+                order.add(s);
+        }
+        order.sort((a, b) -> Long.compare(segments[a].getLong(0), segments[b].getLong(0)));
+        if (order.isEmpty()) {
+            startSegment(0);
+            return;
+        }
+        for (int s : order) {
+            MappedByteBuffer segment = segments[s];
+            int pos = SEGMENT_HEADER;
+            while (pos + 4 <= segmentSize) {
+                int length = segment.getInt(pos);
+                if (length == 0)
+                    break;
+                long key = segment.getLong(pos + 5);
+                if (segment.get(pos + 4) == ROW)
+                    index.put(key, (long) s * segmentSize + pos);
+                else
+                    index.remove(key);
+                pos += 4 + length;
+            }
+            current = s;
+            position = pos;
+            sequence = segment.getLong(0);
+        }
+        LOG.info("Row store of " + table + " recovered " + index.size() + " rows");
+    }
+}
@@ -0,0 +1,683 @@
+package com.crispy.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * An inverted index of some TEXT or VARCHAR columns of a table, kept in this
+ * process. Once opened, {@link Table#search(String[], String, Table.MatchMode)}
+ * on the same columns is answered from the index and MySQL is only asked for
+ * the matching rows by primary key, ordered by relevance.
+ * <p>
+ * Text is split into lower case runs of letters and digits. Matches are
+ * ranked by TF-IDF, normalized by the length of the document. BOOLEAN mode
+ * understands +word, -word, word* and "quoted phrases", whose words are
+ * all required but not checked for adjacency. Other operators are ignored.
+ * NATURAL mode and query expansion rank documents matching any word.
+ * <p>
+ * The index is built with a parallel scan the first time, then kept current
+ * through the {@link ChangeFeed}. Changes are written to the directory as
+ * small segment files every few seconds and merged once there are too many,
+ * so a restart loads the index from disk instead of scanning the table.
+ * Rows changed while the process was down stay stale until {@link #rebuild()}.
+ * Only tables with a single integer primary key can be indexed.
+ */
+public class SearchIndex {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final int MAGIC = 0x4A505849;
+    private static final int MIN_TOKEN = 2;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int FETCH_SIZE = 500;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<SearchIndex>> INDEXES = new
+            ConcurrentHashMap<String, CopyOnWriteArrayList<SearchIndex>>();
+    private static ScheduledExecutorService background;
+
+    private final String table;
+    private final String keyColumn;
+    private final String[] columns;
+    private final File directory;
+    private final int schema;
+    private final TreeMap<String, Map<Long, Integer>> postings;
+    private final Map<Long, Document> documents;
+    private final ReentrantReadWriteLock lock;
+    // Documents changed since the last flush, null for removed ones
+    private final LinkedHashMap<Long, Document> pending;
+    private final ChangeListener listener;
+    private volatile int maxMatches;
+    private volatile int parallelism;
+    // Keys changed while a rebuild is scanning, reindexed after it
+    private volatile Set<Long> changedDuringBuild;
+    private int segmentCount;
+    private int nextSegment;
+
+    private SearchIndex(String table, File directory, String[] columns) {
+        Metadata m = DB.getMetadata(table);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + table);
+        if (m.primary == null || m.primary.columns.size() != 1)
+            throw new IllegalStateException("Search indexes need a single column primary key on " + table);
+        this.keyColumn = m.primary.getColumn(0);
+        String keyType = m.getColumn(keyColumn).type;
+        if (!(keyType.equals("INT") || keyType.equals("BIGINT")))
+            throw new IllegalStateException("Search indexes need an integer primary key on " + table);
+        for (String column : columns) {
+            if (m.getColumn(column) == null)
+                throw new IllegalStateException("No column exists for " + column + " in table " + table);
+        }
+        this.table = table;
+        this.columns = columns;
+        this.directory = new File(directory, table + "-" + StringUtils.join(columns, "-"));
+        this.schema = Arrays.asList(columns).hashCode();
+        this.postings = new TreeMap<String, Map<Long, Integer>>();
+        this.documents = new HashMap<Long, Document>();
+        this.lock = new ReentrantReadWriteLock();
+        this.pending = new LinkedHashMap<Long, Document>();
+        this.maxMatches = 10000;
+        this.parallelism = 4;
+        this.listener = new ChangeListener() {
+            @Override
+            public void changed(List<ChangeEvent> events) {
+                apply(events);
+            }
+        };
+    }
+
+    /**
+     * Open the index of the given columns, loading it from the directory or
+     * building it from the table if there is nothing to load.
+     *
+     * @param table
+     * @param directory where segment files are kept
+     * @param columns   TEXT or VARCHAR columns searched together
+     */
+    public static SearchIndex open(String table, File directory, String... columns) {
+        synchronized (INDEXES) {
+            SearchIndex index = find(table, columns);
+            if (index != null)
+                return index;
+            index = new SearchIndex(table, directory, columns);
+            ChangeFeed.listen(table, index.listener);
+            if (!index.load())
+                index.rebuild();
+            index.start();
+            INDEXES.computeIfAbsent(table, t -> new CopyOnWriteArrayList<SearchIndex>()).add(index);
+            return index;
+        }
+    }
+
+    /**
+     * The open index of exactly these columns, in any order, or null.
+     */
+    static SearchIndex find(String table, String[] columns) {
+        CopyOnWriteArrayList<SearchIndex> indexes = INDEXES.get(table);
+        if (indexes == null)
+            return null;
+        Set<String> wanted = new HashSet<String>(Arrays.asList(columns));
+        for (SearchIndex index : indexes) {
+            if (wanted.equals(new HashSet<String>(Arrays.asList(index.columns))))
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Most rows a select over a search returns, counted after the other
+     * conditions of the query. Defaults to 10000.
+     */
+    public SearchIndex maxMatches(int max) {
+        this.maxMatches = max;
+        return this;
+    }
+
+    int getMaxMatches() {
+        return maxMatches;
+    }
+
+    /**
+     * Connections used when the index is rebuilt. Defaults to 4.
+     */
+    public SearchIndex parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * Primary keys of the rows matching the query, most relevant first.
+     */
+    public List<Long> search(String query, Table.MatchMode mode) {
+        List<Term> terms = parse(query, mode == Table.MatchMode.IN_BOOLEAN_MODE);
+        final HashMap<Long, Double> scores = new HashMap<Long, Double>();
+        lock.readLock().lock();
+        try {
+            int total = documents.size();
+            Set<Long> candidates = null;
+            for (Term t : terms) {
+                if (t.required) {
+                    Set<Long> matches = t.documents(postings).keySet();
+                    if (candidates == null) {
+                        candidates = new HashSet<Long>(matches);
+                    } else {
+                        candidates.retainAll(matches);
+                    }
+                }
+            }
+            for (Term t : terms) {
+                if (t.excluded)
+                    continue;
+                Map<Long, Integer> matches = t.documents(postings);
+                if (matches.isEmpty())
+                    continue;
+                double idf = Math.log(1 + (double) total / matches.size());
+                for (Map.Entry<Long, Integer> e : matches.entrySet()) {
+                    if (candidates != null && !candidates.contains(e.getKey()))
+                        continue;
+                    double score = (1 + Math.log(e.getValue())) * idf / Math.sqrt(documents.get(e.getKey()).length);
+                    scores.merge(e.getKey(), score, Double::sum);
+                }
+            }
+            for (Term t : terms) {
+                if (t.excluded)
+                    scores.keySet().removeAll(t.documents(postings).keySet());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Long> keys = new ArrayList<Long>(scores.keySet());
+        keys.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return keys;
+    }
+
+    /**
+     * Number of rows indexed.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the whole table again with a parallel scan and replace the index
+     * and its files.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        final Map<Long, Document> scanned = new ConcurrentHashMap<Long, Document>();
+        changedDuringBuild = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        try {
+            Table.get(table).columns(keyColumn).columns(columns).parallelScan(parallelism, new RowCallback() {
+                @Override
+                public void row(Row r) {
+                    scanned.put(((Number) r.value(table + "." + keyColumn)).longValue(), document(r));
+                }
+            });
+            lock.writeLock().lock();
+            try {
+                postings.clear();
+                documents.clear();
+                for (Map.Entry<Long, Document> e : scanned.entrySet()) {
+                    add(e.getKey(), e.getValue());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            synchronized (pending) {
+                pending.clear();
+            }
+            merge();
+        } finally {
+            Set<Long> changed = changedDuringBuild;
+            changedDuringBuild = null;
+            reindex(new ArrayList<Long>(changed));
+        }
+        LOG.info("Built search index of " + table + " rows=" + scanned.size() + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Write pending changes to a new segment file, merging the segments into
+     * one if there are too many.
+     */
+    public void flush() {
+        LinkedHashMap<Long, Document> changes;
+        synchronized (pending) {
+            if (pending.isEmpty())
+                return;
+            changes = new LinkedHashMap<Long, Document>(pending);
+            pending.clear();
+        }
+        synchronized (this) {
+            if (segmentCount + 1 > MAX_SEGMENTS) {
+                merge();
+                return;
+            }
+            try {
+                writeSegment(changes);
+                segmentCount++;
+            } catch (IOException e) {
+                LOG.warn("Couldn't write search index segment of " + table + " : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flush and stop following changes. Searches on the columns go back to
+     * MySQL afterwards.
+     */
+    public void close() {
+        ChangeFeed.unlisten(table, listener);
+        CopyOnWriteArrayList<SearchIndex> indexes = INDEXES.get(table);
+        if (indexes != null)
+            indexes.remove(this);
+        flush();
+    }
+
+    private void start() {
+        scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    LOG.warn("Couldn't flush search index of " + table + " : " + t.getMessage());
+                }
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (background == null) {
+            background = Executors.newSingleThreadScheduledExecutor();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdown();
+                        for (CopyOnWriteArrayList<SearchIndex> indexes : INDEXES.values()) {
+                            for (SearchIndex index : indexes) {
+                                index.flush();
+                            }
+                        }
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+        return background;
+    }
+
+    private void apply(List<ChangeEvent> events) {
+        List<Long> changed = new ArrayList<Long>();
+        for (ChangeEvent e : events) {
+            Object key = e.getKey().get(keyColumn);
+            if (!(key instanceof Number))
+                continue;
+            long k = ((Number) key).longValue();
+            Set<Long> building = changedDuringBuild;
+            if (building != null)
+                building.add(k);
+            if (e.getType() == ChangeEvent.Type.DELETE) {
+                update(k, null);
+            } else if (e.getType() == ChangeEvent.Type.INSERT || touches(e.getValues())) {
+                changed.add(k);
+            }
+        }
+        reindex(changed);
+    }
+
+    private boolean touches(Map<String, Object> written) {
+        if (written == null)
+            return true;
+        for (String column : columns) {
+            if (written.containsKey(column))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the given rows again and update their documents. Keys whose row
+     * is gone are removed.
+     */
+    private void reindex(List<Long> keys) {
+        for (int i = 0; i < keys.size(); i += FETCH_SIZE) {
+            List<Long> batch = keys.subList(i, Math.min(keys.size(), i + FETCH_SIZE));
+            Set<Long> missing = new HashSet<Long>(batch);
+            for (Row r : Table.get(table).columns(keyColumn).columns(columns).in(keyColumn, batch.toArray()).rows()) {
+                long key = ((Number) r.value(table + "." + keyColumn)).longValue();
+                missing.remove(key);
+                update(key, document(r));
+            }
+            for (Long key : missing) {
+                update(key, null);
+            }
+        }
+    }
+
+    private void update(long key, Document doc) {
+        lock.writeLock().lock();
+        try {
+            remove(key);
+            if (doc != null)
+                add(key, doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        synchronized (pending) {
+            pending.remove(key);
+            pending.put(key, doc);
+        }
+    }
+
+    private void add(long key, Document doc) {
+        documents.put(key, doc);
+        for (int t = 0; t < doc.terms.length; t++) {
+            postings.computeIfAbsent(doc.terms[t], term -> new HashMap<Long, Integer>()).put(key, doc.counts[t]);
+        }
+    }
+
+    private void remove(long key) {
+        Document old = documents.remove(key);
+        if (old == null)
+            return;
+        for (String term : old.terms) {
+            Map<Long, Integer> docs = postings.get(term);
+            if (docs != null) {
+                docs.remove(key);
+                if (docs.isEmpty())
+                    postings.remove(term);
+            }
+        }
+    }
+
+    private Document document(Row r) {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        int length = 0;
+        for (String column : columns) {
+            Object value = r.value(table + "." + column);
+            if (value == null)
+                continue;
+            for (String token : tokens(value.toString())) {
+                counts.merge(token, 1, Integer::sum);
+                length++;
+            }
+        }
+        Document doc = new Document(counts.size(), Math.max(1, length));
+        int t = 0;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            doc.terms[t] = e.getKey();
+            doc.counts[t] = e.getValue();
+            t++;
+        }
+        return doc;
+    }
+
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start == -1) {
+                start = i;
+            } else if (!word && start != -1) {
+                if (i - start >= MIN_TOKEN)
+                    tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static List<Term> parse(String query, boolean booleanMode) {
+        List<Term> terms = new ArrayList<Term>();
+        if (!booleanMode) {
+            for (String token : tokens(query)) {
+                terms.add(new Term(token, false, false, false));
+            }
+            return terms;
+        }
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            boolean required = false, excluded = false;
+            while (i < query.length() && "+-~<>()".indexOf(query.charAt(i)) != -1) {
+                if (query.charAt(i) == '+')
+                    required = true;
+                else if (query.charAt(i) == '-')
+                    excluded = true;
+                i++;
+            }
+            if (i < query.length() && query.charAt(i) == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end == -1)
+                    end = query.length();
+                for (String token : tokens(query.substring(i + 1, end))) {
+                    terms.add(new Term(token, false, !excluded, excluded));
+                }
+                i = end + 1;
+                continue;
+            }
+            int end = i;
+            while (end < query.length() && !Character.isWhitespace(query.charAt(end)))
+                end++;
+            String word = query.substring(i, end);
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = tokens(word);
+            for (int t = 0; t < tokens.size(); t++) {
+                terms.add(new Term(tokens.get(t), prefix && t == tokens.size() - 1, required, excluded));
+            }
+            i = end;
+        }
+        return terms;
+    }
+
+    /**
+     * Load the segment files oldest first.
+     *
+     * @return false if there was nothing to load
+     */
+    private boolean load() {
+        File[] files = segmentFiles();
+        if (files.length == 0)
+            return false;
+        try {
+            for (File f : files) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != schema)
+                        return false;
+                    while (true) {
+                        long key;
+                        try {
+                            key = in.readLong();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        remove(key);
+                        if (in.readByte() == PUT) {
+                            Document doc = new Document(in.readInt(), in.readInt());
+                            for (int t = 0; t < doc.terms.length; t++) {
+                                doc.terms[t] = in.readUTF();
+                                doc.counts[t] = in.readInt();
+                            }
+                            add(key, doc);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Couldn't load search index of " + table + " : " + e.getMessage());
+            postings.clear();
+            documents.clear();
+            return false;
+        }
+        segmentCount = files.length;
+        LOG.info("Loaded search index of " + table + " rows=" + documents.size());
+        return true;
+    }
+
+    /**
+     * Replace all segment files with a single one holding every document.
+     */
+    private synchronized void merge() {
+        File[] old = segmentFiles();
+        LinkedHashMap<Long, Document> all;
+        synchronized (pending) {
+            lock.readLock().lock();
+            try {
+                all = new LinkedHashMap<Long, Document>(documents);
+            } finally {
+                lock.readLock().unlock();
+            }
+            pending.clear();
+        }
+        try {
+            writeSegment(all);
+            for (File f : old) {
+                f.delete();
+            }
+            segmentCount = 1;
+        } catch (IOException e) {
+            LOG.warn("Couldn't merge search index segments of " + table + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a segment to a temporary file and rename it into place, so a
+     * crash never leaves a partial segment behind.
+     */
+    private void writeSegment(Map<Long, Document> changes) throws IOException {
+        directory.mkdirs();
+        if (nextSegment == 0) {
+            for (File f : segmentFiles()) {
+                nextSegment = Math.max(nextSegment, Integer.parseInt(f.getName().substring(8, 14)));
+            }
+        }
+        nextSegment++;
+        File f = new File(directory, String.format("segment-%06d.idx", nextSegment));
+        File tmp = new File(directory, f.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(schema);
+            for (Map.Entry<Long, Document> e : changes.entrySet()) {
+                out.writeLong(e.getKey());
+                Document doc = e.getValue();
+                if (doc == null) {
+                    out.writeByte(REMOVE);
+                    continue;
+                }
+                out.writeByte(PUT);
+                out.writeInt(doc.terms.length);
+                out.writeInt(doc.length);
+                for (int t = 0; t < doc.terms.length; t++) {
+                    out.writeUTF(doc.terms[t]);
+                    out.writeInt(doc.counts[t]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f))
+            throw new IOException("Couldn't rename " + tmp);
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, n) -> n.startsWith("segment-") && n.endsWith(".idx"));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Distinct terms of a row with their counts, and the number of tokens.
+     */
+    private static class Document {
+        final String[] terms;
+        final int[] counts;
+        final int length;
+
+        Document(int size, int length) {
+            this.terms = new String[size];
+            this.counts = new int[size];
+            this.length = length;
+        }
+    }
+
+    private static class Term {
+        final String word;
+        final boolean prefix;
+        final boolean required;
+        final boolean excluded;
+
+        Term(String word, boolean prefix, boolean required, boolean excluded) {
+            this.word = word;
+            this.prefix = prefix;
+            this.required = required;
+            this.excluded = excluded;
+        }
+
+        /**
+         * Documents containing the word, or any word starting with it for
+         * prefix terms, with the number of occurrences.
+         */
+        Map<Long, Integer> documents(TreeMap<String, Map<Long, Integer>> postings) {
+            if (!prefix) {
+                Map<Long, Integer> docs = postings.get(word);
+                return (docs == null) ? Collections.<Long, Integer>emptyMap() : docs;
+            }
+            Map<Long, Integer> docs = new HashMap<Long, Integer>();
+            for (Map<Long, Integer> m : postings.subMap(word, word + Character.MAX_VALUE).values()) {
+                for (Map.Entry<Long, Integer> e : m.entrySet()) {
+                    docs.merge(e.getKey(), e.getValue(), Integer::sum);
+                }
+            }
+            return docs;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.crispy.db;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.crispy.log.Log;
+
+/**
+ * Routing of sharded tables. A table declares a shard key with
+ * {@link Table#shardKey(String)} and is created on every shard added with
+ * {@link DB#addShard(String, String, String, String)}.
+ * <p>
+ * Key values hash with CRC32 into one of BUCKETS virtual buckets, and each
+ * bucket is assigned to a shard. The assignment is kept in the _shards
+ * table of shard 0, with the version of each bucket's last move, and every
+ * node checks the latest version at most once a second. MySQL's CRC32()
+ * gives the same hash for integer and string keys, so a bucket can be
+ * selected in SQL when it is moved.
+ * <p>
+ * {@link Table} sends add() to the shard of the key value, and row(),
+ * rows(), count(), update() and delete() to the shard of a key = value
+ * condition. Without one they run on every shard in parallel. Rows are
+ * merged in ORDER BY order before LIMIT is applied, and SUM, COUNT, MIN and
+ * MAX columns are combined per GROUP BY value. Grouped selects read every
+ * group from each shard, as a group's total is only known once combined.
+ * page() needs a key = value condition, {@link DB#batch(Table...)} runs
+ * sharded queries through rows(), and bulkLoad() refuses sharded tables.
+ * Joins and the remaining operations run on the shard the thread is bound
+ * to with {@link #on(int, Supplier)}, shard 0 by default. Auto increment
+ * keys are generated per shard, so sharded tables should use keys made by
+ * the application.
+ */
+public class Shards {
+    private static final Log LOG = Log.get("jappy.db");
+    public static final int BUCKETS = 1024;
+    private static final int COPY_BATCH = 500;
+    private static final long RECHECK_MILLIS = 1000;
+    private static final ReentrantLock RECHECK = new ReentrantLock();
+    private static volatile int[] assignment;
+    private static volatile long version;
+    private static volatile long checkedAt;
+    private static ExecutorService background;
+
+    private Shards() {
+    }
+
+    public static int bucket(Object key) {
+        CRC32 crc = new CRC32();
+        crc.update(String.valueOf(key).getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % BUCKETS);
+    }
+
+    public static int shardOf(Object key) {
+        return current()[bucket(key)];
+    }
+
+    /**
+     * Buckets currently assigned to a shard.
+     */
+    public static List<Integer> buckets(int shard) {
+        int[] a = current();
+        List<Integer> ret = new ArrayList<Integer>();
+        for (int b = 0; b < a.length; b++) {
+            if (a[b] == shard)
+                ret.add(b);
+        }
+        return ret;
+    }
+
+    /**
+     * Run an operation with every connection taken from the given shard.
+     */
+    public static <T> T on(int shard, Supplier<T> operation) {
+        Integer old = DB.SHARD.get();
+        DB.SHARD.set(shard);
+        try {
+            return operation.get();
+        } finally {
+            if (old == null)
+                DB.SHARD.remove();
+            else
+                DB.SHARD.set(old);
+        }
+    }
+
+    /**
+     * Run an operation on every shard in parallel.
+     *
+     * @return results in shard order
+     */
+    public static <T> List<T> onAll(final Function<Integer, T> operation) {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int s = 0; s < DB.shardCount(); s++) {
+            final int shard = s;
+            futures.add(executor().submit(() -> on(shard, () -> operation.apply(shard))));
+        }
+        List<T> ret = new ArrayList<T>();
+        try {
+            for (Future<T> f : futures) {
+                ret.add(f.get());
+            }
+        } catch (Exception e) {
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+            throw new IllegalStateException(e);
+        }
+        return ret;
+    }
+
+    /**
+     * Move a bucket to another shard. The rows of the bucket are copied to
+     * the new shard and the bucket is reassigned under a new version. The
+     * move then waits until every node has picked up the new version, copies
+     * the rows written to the old shard in the meantime again and deletes
+     * the bucket from the old shard.
+     * <p>
+     * With several nodes: run moves from one node at a time, and pause
+     * deletes to the bucket while it moves, as they are not carried over.
+     * Nodes see the new assignment within a second, so writes taking longer
+     * than the move's grace period can still reach the old shard after it
+     * was emptied.
+     *
+     * @param bucket
+     * @param shard
+     */
+    public static synchronized void moveBucket(int bucket, int shard) {
+        int from = current()[bucket];
+        if (from == shard)
+            return;
+        if (shard < 0 || shard >= DB.shardCount())
+            throw new IllegalArgumentException("No shard " + shard);
+        List<Metadata> tables = new ArrayList<Metadata>();
+        for (Metadata m : DB.getTables()) {
+            if (m.getShardKey() != null)
+                tables.add(m);
+        }
+        try {
+            long copied = 0;
+            for (Metadata m : tables) {
+                copied += copy(m, bucket, from, shard);
+            }
+            long moved = Math.max(System.currentTimeMillis(), version + 1);
+            on(0, () -> Table.get("_shards").columns("bucket", "shard", "moved").values(bucket, shard, moved)
+                    .overwrite("shard", "moved").add());
+            int[] a = assignment().clone();
+            a[bucket] = shard;
+            assignment = a;
+            version = moved;
+            // every node rechecks within RECHECK_MILLIS, give in-flight writes as long again
+            Thread.sleep(2 * RECHECK_MILLIS);
+            for (Metadata m : tables) {
+                copy(m, bucket, from, shard);
+                delete(m, bucket, from);
+            }
+            LOG.info("Moved bucket " + bucket + " from shard " + from + " to " + shard + " rows=" + copied);
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted moving bucket " + bucket, e);
+        }
+    }
+
+    /**
+     * Merge the rows read from each shard: combine aggregate columns per
+     * group, then sort by the ORDER BY terms, columns or aggregate
+     * expressions.
+     */
+    static List<Row> merge(List<List<Row>> parts, String[] orderBy, List<String> names, List<String> functions,
+                           String groupBy) {
+        List<Row> rows = new ArrayList<Row>();
+        for (List<Row> part : parts) {
+            rows.addAll(part);
+        }
+        if (functions != null && !StringUtils.join(functions, "").isEmpty())
+            rows = aggregate(rows, names, functions, groupBy);
+        Comparator<Row> order = null;
+        for (String term : orderBy) {
+            String expression = term.trim();
+            boolean descending = false;
+            int space = expression.lastIndexOf(' ');
+            if (space != -1) {
+                String direction = expression.substring(space + 1);
+                if (direction.equalsIgnoreCase("DESC") || direction.equalsIgnoreCase("ASC")) {
+                    descending = direction.equalsIgnoreCase("DESC");
+                    expression = expression.substring(0, space).trim();
+                }
+            }
+            final String key = expression;
+            final boolean desc = descending;
+            Comparator<Row> c = (a, b) -> {
+                int cmp = compare(valueOf(a, key), valueOf(b, key));
+                return desc ? -cmp : cmp;
+            };
+            order = (order == null) ? c : order.thenComparing(c);
+        }
+        if (order != null)
+            Collections.sort(rows, order);
+        return rows;
+    }
+
+    /**
+     * Value of a column written as `name`, or of a computed expression such
+     * as COUNT(`id`).
+     */
+    private static Object valueOf(Row r, String expression) {
+        if (expression.length() > 2 && expression.startsWith("`") && expression.endsWith("`")
+                && expression.indexOf('`', 1) == expression.length() - 1) {
+            String column = expression.substring(1, expression.length() - 1);
+            return r.value(r.tableOf(column) + "." + column);
+        }
+        return r.value(expression);
+    }
+
+    private static List<Row> aggregate(List<Row> rows, List<String> names, List<String> functions, String groupBy) {
+        LinkedHashMap<Object, Row> groups = new LinkedHashMap<Object, Row>();
+        String group = (groupBy == null) ? null : "`" + groupBy.replace("`", "") + "`";
+        for (Row r : rows) {
+            Object key = (group == null) ? "" : String.valueOf(valueOf(r, group));
+            Row merged = groups.get(key);
+            if (merged == null) {
+                groups.put(key, r);
+                continue;
+            }
+            for (int c = 0; c < functions.size(); c++) {
+                String fn = functions.get(c);
+                if (fn.isEmpty())
+                    continue;
+                String expression = fn + "(`" + names.get(c) + "`)";
+                merged.value(expression, combine(fn, merged.value(expression), r.value(expression)));
+            }
+        }
+        return new ArrayList<Row>(groups.values());
+    }
+
+    private static Object combine(String fn, Object a, Object b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (fn.equals("MIN"))
+            return compare(a, b) <= 0 ? a : b;
+        if (fn.equals("MAX"))
+            return compare(a, b) >= 0 ? a : b;
+        if (fn.equals("SUM") || fn.equals("COUNT")) {
+            if (a instanceof Double || a instanceof Float)
+                return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+            if (a instanceof BigDecimal)
+                return ((BigDecimal) a).add(new BigDecimal(b.toString()));
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        }
+        throw new IllegalStateException(fn + " can't be combined across shards, select SUM and COUNT instead");
+    }
+
+    /**
+     * Compare two values the way MySQL sorts them, NULL first.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object a, Object b) {
+        if (a == null || b == null)
+            return (a == null) ? ((b == null) ? 0 : -1) : 1;
+        if (a instanceof Number && b instanceof Number)
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+        if (a instanceof Comparable && a.getClass().isInstance(b))
+            return ((Comparable) a).compareTo(b);
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static long copy(Metadata m, int bucket, int from, int to) throws SQLException {
+        String key = m.getShardKey();
+        Connection source = DB.getConnection(from);
+        Connection target = DB.getConnection(to);
+        try {
+            PreparedStatement select = source.prepareStatement("SELECT * FROM `" + m.name + "` WHERE CRC32(`" + key
+                    + "`) % " + BUCKETS + "=?");
+            select.setInt(1, bucket);
+            select.setFetchSize(DB.dialect().streamingFetchSize());
+            ResultSet results = select.executeQuery();
+            ResultSetMetaData meta = results.getMetaData();
+            List<String> columns = new ArrayList<String>();
+            List<Integer> ordinals = new ArrayList<Integer>();
+            for (int c = 1; c <= meta.getColumnCount(); c++) {
+                Column column = m.getColumn(meta.getColumnName(c));
+                if (column != null && column.isGenerated())
+                    continue;
+                columns.add("`" + meta.getColumnName(c) + "`");
+                ordinals.add(c);
+            }
+            PreparedStatement insert = target.prepareStatement("REPLACE INTO `" + m.name + "`(" + StringUtils.join
+                    (columns, ",") + ") VALUES (" + StringUtils.join(Collections.nCopies(columns.size(), "?"), ",")
+                    + ")");
+            long count = 0;
+            while (results.next()) {
+                for (int c = 1; c <= columns.size(); c++) {
+                    insert.setObject(c, results.getObject(ordinals.get(c - 1)));
+                }
+                insert.addBatch();
+                if (++count % COPY_BATCH == 0)
+                    insert.executeBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+            select.close();
+            return count;
+        } finally {
+            try {
+                source.close();
+            } catch (Exception e) {
+            }
+            try {
+                target.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private static void delete(Metadata m, int bucket, int shard) throws SQLException {
+        Connection con = DB.getConnection(shard);
+        try {
+            DB.updateQuery(con, "DELETE FROM `" + m.name + "` WHERE CRC32(`" + m.getShardKey() + "`) % " + BUCKETS
+                    + "=?", bucket);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Assignment, reloaded when another node has moved a bucket since it was
+     * last checked.
+     */
+    private static int[] current() {
+        int[] a = assignment();
+        long now = System.currentTimeMillis();
+        if (now - checkedAt < RECHECK_MILLIS || !RECHECK.tryLock())
+            return a;
+        try {
+            checkedAt = now;
+            Object latest = on(0, () -> {
+                try {
+                    return DB.singleItemQuery("SELECT MAX(`moved`) FROM `_shards`");
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            if (latest != null && ((Number) latest).longValue() != version) {
+                synchronized (Shards.class) {
+                    assignment = load();
+                }
+            }
+            return assignment;
+        } catch (Exception e) {
+            LOG.error("Couldn't check the shard assignment", e);
+            return a;
+        } finally {
+            RECHECK.unlock();
+        }
+    }
+
+    /**
+     * Bucket to shard assignment, created on first use by spreading the
+     * buckets evenly over the shards there are at that time.
+     */
+    private static int[] assignment() {
+        int[] a = assignment;
+        if (a != null)
+            return a;
+        synchronized (Shards.class) {
+            if (assignment != null)
+                return assignment;
+            assignment = load();
+            checkedAt = System.currentTimeMillis();
+            return assignment;
+        }
+    }
+
+    private static int[] load() {
+        return on(0, () -> {
+            Table.get("_shards").columns(Column.integer("bucket"), Column.integer("shard"), Column.bigInteger("moved"))
+                    .primary("bucket").create();
+            int[] loaded = new int[BUCKETS];
+            long latest = 0;
+            List<Row> rows = Table.get("_shards").rows();
+            if (rows.size() == BUCKETS) {
+                for (Row r : rows) {
+                    loaded[r.columnAsInt("bucket")] = r.columnAsInt("shard");
+                    latest = Math.max(latest, r.columnAsLong("moved"));
+                }
+            } else {
+                for (int b = 0; b < BUCKETS; b++) {
+                    loaded[b] = b % DB.shardCount();
+                    Table.get("_shards").columns("bucket", "shard").values(b, loaded[b]).overwrite("shard").add();
+                }
+            }
+            version = latest;
+            return loaded;
+        });
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (background == null) {
+            background = Executors.newCachedThreadPool();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdown();
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+        return background;
+    }
+
+    /**
+     * Forget the loaded assignment when the databases are initialized again.
+     */
+    static synchronized void reset() {
+        assignment = null;
+        version = 0;
+        checkedAt = 0;
+    }
+}
@@ -12,5 +12,6 @@ public enum SimpleType {
 	DATETIME,
 	TIMESTAMP,
 	REFERENCE,
-	BOOL
+	BOOL,
+	JSON
 }
@@ -0,0 +1,474 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.crispy.log.Log;
+import com.crispy.utils.IJSONConvertible;
+
+/**
+ * Log of statements slower than a threshold, grouped by the shape
+ * {@link QueryStats} gives them. The first slow run of a shape, and one
+ * every few minutes after that, is explained on a separate connection in
+ * the background and the plan is kept with the shape.
+ * <p>
+ * {@link #advise(int)} looks at the WHERE and ORDER BY columns of frequent
+ * slow single-table statements whose plan scans or sorts, and suggests a
+ * composite index when no existing index or primary key starts with those
+ * columns: equality columns first, then one range column or the sort
+ * columns. With {@link #autoCreate(boolean)} the suggestions are created
+ * with ALTER TABLE ... ADD INDEX. Created indexes are recorded in the
+ * table's metadata, so {@link Table#create()} keeps them although the code
+ * doesn't declare them.
+ */
+public class SlowQueries {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final long EXPLAIN_EVERY = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_SHAPES = 1000;
+    private static final Pattern FROM = Pattern.compile("\\bFROM\\s+`?(\\w+)`?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONDITION = Pattern.compile("(?:`?\\w+`?\\.)?`?(\\w+)`?\\s*(<=>|>=|<=|!=|<>|=|<|>"
+            + "|\\s(?:NOT\\s+)?IN\\s*\\(|\\sLIKE\\s|\\sBETWEEN\\s|\\sIS\\s+NULL)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CLAUSES = Pattern.compile("\\s(WHERE|GROUP BY|ORDER BY|LIMIT|FOR UPDATE|LOCK IN)\\s",
+            Pattern.CASE_INSENSITIVE);
+    private static final ConcurrentHashMap<String, Slow> SLOW = new ConcurrentHashMap<String, Slow>();
+    private static volatile long thresholdNanos = -1;
+    private static volatile boolean autoCreate;
+    private static ExecutorService background;
+    private static Thread explainer;
+
+    private SlowQueries() {
+    }
+
+    /**
+     * Log statements taking longer than the given time. Off until set.
+     */
+    public static void threshold(long duration, TimeUnit unit) {
+        thresholdNanos = unit.toNanos(duration);
+    }
+
+    public static void disable() {
+        thresholdNanos = -1;
+    }
+
+    public static boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    /**
+     * Create the indexes {@link #advise(int)} suggests as soon as a slow
+     * shape has been seen ten times.
+     */
+    public static void autoCreate(boolean create) {
+        autoCreate = create;
+    }
+
+    /**
+     * Slow shapes seen, most frequent first.
+     */
+    public static List<Slow> entries() {
+        List<Slow> ret = new ArrayList<Slow>(SLOW.values());
+        ret.sort((a, b) -> Long.compare(b.count.sum(), a.count.sum()));
+        return ret;
+    }
+
+    public static void reset() {
+        SLOW.clear();
+    }
+
+    public static JSONArray toJSON() {
+        JSONArray ret = new JSONArray();
+        for (Slow s : entries()) {
+            ret.put(s.toJSONObject());
+        }
+        return ret;
+    }
+
+    static boolean isSlow(long nanos) {
+        long threshold = thresholdNanos;
+        return threshold >= 0 && nanos >= threshold && Thread.currentThread() != explainer;
+    }
+
+    /**
+     * Record a slow run and queue an EXPLAIN if the shape has no recent plan.
+     */
+    static void slow(String shape, String sql, Object[] parameters, long nanos) {
+        Slow s = SLOW.get(shape);
+        if (s == null) {
+            if (SLOW.size() >= MAX_SHAPES)
+                return;
+            s = SLOW.computeIfAbsent(shape, Slow::new);
+            LOG.warn("Slow query " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms: " + shape);
+        }
+        s.count.increment();
+        s.totalNanos.add(nanos);
+        s.sql = sql;
+        long now = System.currentTimeMillis();
+        synchronized (s) {
+            if (s.explaining || now - s.explainedAt < EXPLAIN_EVERY)
+                return;
+            s.explaining = true;
+        }
+        executor().execute(new Explain(s, sql, parameters, DB.SHARD.get()));
+        if (autoCreate && s.count.sum() >= 10) {
+            executor().execute(() -> {
+                for (Advice a : advise(10)) {
+                    create(a);
+                }
+            });
+        }
+    }
+
+    /**
+     * Indexes that would help the slow shapes seen at least minCount times.
+     */
+    public static List<Advice> advise(int minCount) {
+        List<Advice> ret = new ArrayList<Advice>();
+        Set<String> seen = new HashSet<String>();
+        for (Slow s : entries()) {
+            if (s.count.sum() < minCount || !s.scans())
+                continue;
+            Advice a = advise(s);
+            if (a != null && seen.add(a.table + ":" + a.columns))
+                ret.add(a);
+        }
+        return ret;
+    }
+
+    /**
+     * Add a suggested index to its table, on every shard if the table is
+     * sharded. Only the index is added, the rest of the table is left alone.
+     */
+    public static synchronized void create(Advice a) {
+        Metadata m = DB.getMetadata(a.table);
+        if (m == null || covered(m, a.equality, a.tail))
+            return;
+        Index index = new Index(a.name(), a.columns.toArray(new String[0]));
+        LOG.info("Creating index " + a.name() + " on " + a.table + " for " + a.shape);
+        if (m.getShardKey() != null && DB.shardCount() > 1 && DB.SHARD.get() == null) {
+            for (int s = 0; s < DB.shardCount(); s++) {
+                Shards.on(s, () -> {
+                    addIndex(a.table, index);
+                    return null;
+                });
+            }
+        } else {
+            addIndex(a.table, index);
+        }
+    }
+
+    private static void addIndex(String table, Index index) {
+        try {
+            DB.getMetadata(table).addAdvisedIndex(index.name);
+            DB.updateQuery("ALTER TABLE `" + table + "` ADD " + index.createDefinition());
+            DB.loadMetadata(table);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void explain(Slow s, String sql, Object[] parameters, Integer shard) {
+        explainer = Thread.currentThread();
+        String verb = sql.trim().split("\\s+")[0].toUpperCase(Locale.ROOT);
+        if (!(verb.equals("SELECT") || verb.equals("UPDATE") || verb.equals("DELETE"))) {
+            finish(s, null);
+            return;
+        }
+        Connection con = DB.getConnection(shard == null ? 0 : shard);
+        JSONArray plan = null;
+        try {
+            PreparedStatement pstmt = con.prepareStatement("EXPLAIN " + sql);
+            for (int p = 0; p < parameters.length; p++) {
+                pstmt.setObject(p + 1, parameters[p]);
+            }
+            ResultSet results = pstmt.executeQuery();
+            ResultSetMetaData meta = results.getMetaData();
+            plan = new JSONArray();
+            while (results.next()) {
+                JSONObject row = new JSONObject();
+                for (int c = 1; c <= meta.getColumnCount(); c++) {
+                    Object value = results.getObject(c);
+                    if (value != null)
+                        row.put(meta.getColumnLabel(c), value.toString());
+                }
+                plan.put(row);
+            }
+            pstmt.close();
+        } catch (Throwable t) {
+            LOG.debug("Couldn't explain " + s.shape + " : " + t.getMessage());
+        } finally {
+            try {
+                con.close();
+            } catch (Throwable t) {
+            }
+            finish(s, plan);
+        }
+    }
+
+    private static void finish(Slow s, JSONArray plan) {
+        synchronized (s) {
+            s.plan = plan;
+            s.explainedAt = System.currentTimeMillis();
+            s.explaining = false;
+        }
+    }
+
+    private static Advice advise(Slow s) {
+        String sql = s.shape;
+        if (sql.toUpperCase(Locale.ROOT).contains(" JOIN "))
+            return null;
+        Matcher from = FROM.matcher(sql);
+        if (!from.find())
+            return null;
+        Metadata m = DB.getMetadata(from.group(1));
+        if (m == null)
+            return null;
+
+        String where = clause(sql, "WHERE");
+        String orderBy = clause(sql, "ORDER BY");
+        LinkedHashSet<String> equality = new LinkedHashSet<String>();
+        String range = null;
+        if (where != null) {
+            Matcher c = CONDITION.matcher(where);
+            while (c.find()) {
+                String column = c.group(1);
+                if (!m.containsColumn(column))
+                    continue;
+                String op = c.group(2).trim().toUpperCase(Locale.ROOT);
+                if (op.equals("=") || op.equals("<=>") || op.startsWith("IN") || op.startsWith("IS"))
+                    equality.add(column);
+                else if (range == null && !op.equals("!=") && !op.equals("<>") && !op.startsWith("NOT"))
+                    range = column;
+            }
+        }
+        List<String> tail = new ArrayList<String>();
+        if (range != null && !equality.contains(range)) {
+            tail.add(range);
+        } else if (orderBy != null) {
+            for (String term : orderBy.split(",")) {
+                String column = term.trim().split("\\s+")[0].replace("`", "");
+                column = column.substring(column.lastIndexOf('.') + 1);
+                if (!m.containsColumn(column) || equality.contains(column))
+                    break;
+                tail.add(column);
+            }
+        }
+        if (equality.isEmpty() && tail.isEmpty())
+            return null;
+        if (covered(m, equality, tail))
+            return null;
+        return new Advice(m.name, s.shape, s.count.sum(), new ArrayList<String>(equality), tail);
+    }
+
+    /**
+     * Text of a clause up to the next clause, or null.
+     */
+    private static String clause(String sql, String name) {
+        Matcher c = CLAUSES.matcher(sql);
+        int start = -1;
+        while (c.find()) {
+            if (start != -1)
+                return sql.substring(start, c.start());
+            if (c.group(1).equalsIgnoreCase(name))
+                start = c.end();
+        }
+        return (start == -1) ? null : sql.substring(start);
+    }
+
+    /**
+     * True if the primary key or an index starts with the equality columns,
+     * in any order, followed by the tail columns.
+     */
+    private static boolean covered(Metadata m, Set<String> equality, List<String> tail) {
+        List<Index> indexes = new ArrayList<Index>(m.indexes);
+        if (m.primary != null)
+            indexes.add(m.primary);
+        for (Index i : indexes) {
+            int n = equality.size();
+            if (i.columns.size() < n + tail.size())
+                continue;
+            if (!new HashSet<String>(i.columns.subList(0, n)).equals(equality))
+                continue;
+            if (i.columns.subList(n, n + tail.size()).equals(tail))
+                return true;
+        }
+        return false;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (background == null) {
+            // A dropped explain must clear its flag, or the shape is never
+            // explained again
+            background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>
+                    (100), (r, executor) -> {
+                if (r instanceof Explain) {
+                    Slow s = ((Explain) r).slow;
+                    synchronized (s) {
+                        s.explaining = false;
+                    }
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        background.shutdownNow();
+                    } catch (Throwable t) {
+                    }
+                }
+            }));
+        }
+        return background;
+    }
+
+    private static class Explain implements Runnable {
+        private final Slow slow;
+        private final String sql;
+        private final Object[] parameters;
+        private final Integer shard;
+
+        Explain(Slow slow, String sql, Object[] parameters, Integer shard) {
+            this.slow = slow;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.shard = shard;
+        }
+
+        @Override
+        public void run() {
+            explain(slow, sql, parameters, shard);
+        }
+    }
+
+    /**
+     * A slow statement shape with its last captured plan.
+     */
+    public static class Slow implements IJSONConvertible {
+        private final String shape;
+        private final LongAdder count;
+        private final LongAdder totalNanos;
+        private volatile String sql;
+        private volatile JSONArray plan;
+        private long explainedAt;
+        private boolean explaining;
+
+        Slow(String shape) {
+            this.shape = shape;
+            this.count = new LongAdder();
+            this.totalNanos = new LongAdder();
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public JSONArray getPlan() {
+            return plan;
+        }
+
+        /**
+         * True if the plan reads a whole table or index, or sorts. Shapes
+         * not explained yet count as scans.
+         */
+        boolean scans() {
+            JSONArray p = plan;
+            if (p == null)
+                return true;
+            for (int r = 0; r < p.length(); r++) {
+                JSONObject row = p.getJSONObject(r);
+                String type = row.optString("type", "");
+                if (type.equals("ALL") || type.equals("index") || !row.has("key") || row.optString("Extra", "")
+                        .contains("filesort"))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public JSONObject toJSONObject() {
+            JSONObject o = new JSONObject();
+            o.put("sql", shape);
+            o.put("count", count.sum());
+            o.put("meanMs", TimeUnit.NANOSECONDS.toMillis(totalNanos.sum() / Math.max(1, count.sum())));
+            o.put("example", sql);
+            if (plan != null)
+                o.put("plan", plan);
+            return o;
+        }
+    }
+
+    /**
+     * A suggested composite index.
+     */
+    public static class Advice implements IJSONConvertible {
+        private final String table;
+        private final String shape;
+        private final long count;
+        private final LinkedHashSet<String> equality;
+        private final List<String> tail;
+        private final List<String> columns;
+
+        Advice(String table, String shape, long count, List<String> equality, List<String> tail) {
+            this.table = table;
+            this.shape = shape;
+            this.count = count;
+            this.equality = new LinkedHashSet<String>(equality);
+            this.tail = tail;
+            this.columns = new ArrayList<String>(equality);
+            this.columns.addAll(tail);
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        String name() {
+            String name = "ix_" + StringUtils.join(columns, "_");
+            return (name.length() > 64) ? name.substring(0, 64) : name;
+        }
+
+        @Override
+        public JSONObject toJSONObject() {
+            JSONObject o = new JSONObject();
+            o.put("table", table);
+            o.put("columns", new JSONArray(columns));
+            o.put("sql", shape);
+            o.put("count", count);
+            o.put("ddl", "ALTER TABLE `" + table + "` ADD INDEX `" + name() + "` (`" + StringUtils.join(columns,
+                    "`,`") + "`)");
+            return o;
+        }
+
+        @Override
+        public String toString() {
+            return table + " (" + StringUtils.join(columns, ",") + ")";
+        }
+    }
+}
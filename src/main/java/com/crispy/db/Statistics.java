@@ -0,0 +1,198 @@
+package com.crispy.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.crispy.log.Log;
+
+/**
+ * Approximate row counts and column cardinalities read from the table
+ * statistics MySQL keeps in information_schema. Values are cached in memory
+ * and refreshed periodically in the background, so callers never trigger a
+ * full table scan.
+ */
+public class Statistics {
+    private static final Log LOG = Log.get("jappy.db");
+    private static final Statistics INSTANCE = new Statistics();
+    private static final long KEY_RANGE_TTL = TimeUnit.SECONDS.toMillis(30);
+
+    private final ConcurrentHashMap<String, TableStats> tables;
+    private final ConcurrentHashMap<String, long[]> keyRanges;
+    private final ScheduledExecutorService background;
+    private volatile long refreshMillis;
+
+    private Statistics() {
+        tables = new ConcurrentHashMap<String, TableStats>();
+        keyRanges = new ConcurrentHashMap<String, long[]>();
+        refreshMillis = TimeUnit.MINUTES.toMillis(10);
+        background = Executors.newSingleThreadScheduledExecutor();
+        background.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshAll();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    background.shutdown();
+                } catch (Throwable t) {
+                }
+            }
+        }));
+    }
+
+    /**
+     * How long cached statistics are served before being reloaded.
+     */
+    public static void refreshInterval(long duration, TimeUnit unit) {
+        INSTANCE.refreshMillis = unit.toMillis(duration);
+    }
+
+    /**
+     * Estimated number of rows in the table.
+     */
+    public static long approxCount(String table) {
+        return INSTANCE.stats(table).rows;
+    }
+
+    /**
+     * Estimated number of distinct values in the column, from the cardinality
+     * of an index starting with it.
+     *
+     * @return -1 if no index starts with the column, so the estimate is
+     * unknown
+     */
+    public static long approxDistinct(String table, String column) {
+        Long cardinality = INSTANCE.stats(table).cardinality.get(column.toLowerCase());
+        return (cardinality == null) ? -1 : cardinality;
+    }
+
+    /**
+     * Smallest and largest value of an integer primary key column. Both are
+     * index endpoint lookups, and the result is cached for a short while so
+     * hot paths like random sampling don't pay for them on every call.
+     *
+     * @return {min, max}, or null if the table is empty
+     */
+    static long[] keyRange(String table, String column) {
+        String key = table + "." + column;
+        long[] range = INSTANCE.keyRanges.get(key);
+        long now = System.currentTimeMillis();
+        if (range == null || now - range[2] > KEY_RANGE_TTL) {
+            range = loadKeyRange(table, column);
+            if (range == null)
+                return null;
+            INSTANCE.keyRanges.put(key, range);
+        }
+        return new long[]{range[0], range[1]};
+    }
+
+    /**
+     * Run ANALYZE TABLE so InnoDB resamples its statistics, then reload them.
+     */
+    public static void analyze(String table) {
+        try {
+            DB.updateQuery("ANALYZE TABLE `" + table + "`");
+            INSTANCE.tables.put(table, load(table));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private TableStats stats(String table) {
+        TableStats stats = tables.get(table);
+        if (stats == null) {
+            stats = load(table);
+            tables.put(table, stats);
+        }
+        return stats;
+    }
+
+    private void refreshAll() {
+        long now = System.currentTimeMillis();
+        for (String table : tables.keySet()) {
+            TableStats stats = tables.get(table);
+            if (stats == null || now - stats.loadedAt < refreshMillis)
+                continue;
+            try {
+                tables.put(table, load(table));
+            } catch (Throwable t) {
+                LOG.warn("Couldn't refresh statistics for " + table + " : " + t.getMessage());
+            }
+        }
+    }
+
+    private static TableStats load(String table) {
+        Connection con = DB.getConnection();
+        try {
+            TableStats stats = new TableStats();
+            PreparedStatement pstmt = con.prepareStatement("SELECT `TABLE_ROWS` FROM information_schema.`TABLES` " +
+                    "WHERE `TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=?");
+            pstmt.setString(1, table);
+            ResultSet results = pstmt.executeQuery();
+            if (results.next())
+                stats.rows = results.getLong(1);
+            pstmt.close();
+
+            pstmt = con.prepareStatement("SELECT `COLUMN_NAME`, MAX(`CARDINALITY`) FROM information_schema" +
+                    ".`STATISTICS` WHERE `TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=? AND `SEQ_IN_INDEX`=1 GROUP BY " +
+                    "`COLUMN_NAME`");
+            pstmt.setString(1, table);
+            results = pstmt.executeQuery();
+            while (results.next()) {
+                long cardinality = results.getLong(2);
+                if (!results.wasNull())
+                    stats.cardinality.put(results.getString(1).toLowerCase(), cardinality);
+            }
+            pstmt.close();
+            stats.loadedAt = System.currentTimeMillis();
+            return stats;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private static long[] loadKeyRange(String table, String column) {
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = con.prepareStatement("SELECT MIN(`" + column + "`), MAX(`" + column + "`) " +
+                    "FROM `" + table + "`");
+            ResultSet results = pstmt.executeQuery();
+            long[] range = null;
+            if (results.next()) {
+                long min = results.getLong(1);
+                if (!results.wasNull())
+                    range = new long[]{min, results.getLong(2), System.currentTimeMillis()};
+            }
+            pstmt.close();
+            return range;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private static class TableStats {
+        long rows;
+        HashMap<String, Long> cardinality = new HashMap<String, Long>();
+        long loadedAt;
+    }
+}
@@ -1,7 +1,8 @@
 package com.crispy.db;
 
 import java.io.File;
-import java.lang.reflect.Constructor;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -10,13 +11,17 @@ import java.sql.Statement;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import com.crispy.server.Params;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -26,6 +31,8 @@ import com.crispy.log.Log;
 
 public class Table {
     private static final Log LOG = Log.get("jappy.db");
+    // Keys of a local search checked against the other conditions per query
+    private static final int SEARCH_PAGE = 1000;
     private JoinType joinType;
     private ArrayList<Table> joins;
     private boolean random;
@@ -51,6 +58,7 @@ public class Table {
     private String[] orderBy;
     private JSONObject comment;
     private boolean ignore;
+    private boolean replace;
     private int start;
     private boolean ignoreNull;
     private String groupBy;
@@ -58,9 +66,21 @@ public class Table {
     private String functionColumn;
     private long genId;
     private TreeSet<String> distincts;
+    private boolean calcFoundRows;
+    // Select the number of rows the query finds, ignoring the limit
+    private boolean countFound;
+    private Partition partition;
+    private long onlineRows;
+    private int scanChunkSize;
+    private RowStore rowStore;
+    private String relevance;
+    private SearchMatch search;
+    private boolean fromRollups;
 
     private Table(String name) {
         deleteOldColumns = false;
+        onlineRows = -1;
+        scanChunkSize = 10000;
 
         random = false;
         unique = false;
@@ -250,6 +270,47 @@ public class Table {
         return this;
     }
 
+    /**
+     * Range partition the table on a date column when it is created.
+     *
+     * @param p
+     * @return
+     */
+    public Table partition(Partition p) {
+        this.partition = p;
+        return this;
+    }
+
+    /**
+     * Let create() rebuild the table online when it has to modify columns or
+     * change the primary key of a table with at least minRows rows. The table
+     * stays writable while rows are copied into a shadow table, instead of
+     * being locked for the whole ALTER. See {@link OnlineMigration}.
+     *
+     * @param minRows
+     * @return
+     */
+    public Table online(long minRows) {
+        this.onlineRows = minRows;
+        return this;
+    }
+
+    /**
+     * Remove old rows by dropping every partition that lies entirely before
+     * the given date. Much cheaper than deleting the rows one by one.
+     *
+     * @param date
+     * @return number of partitions dropped
+     */
+    public int dropPartitionsBefore(LocalDate date) {
+        try {
+            return Partition.dropBefore(name, date);
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
     public Column columnByName(String name) {
         for (Column c : newColumns) {
             if (c.name.equals(name))
@@ -258,30 +319,70 @@ public class Table {
         return null;
     }
 
+    /**
+     * Spread the rows of this table across all shards by the value of a
+     * column. The table is created on every shard. See {@link Shards}.
+     *
+     * @param column
+     * @return
+     */
+    public Table shardKey(String column) {
+        comment.put("shard-key", column);
+        return this;
+    }
+
     public void create() {
+        Metadata existing = DB.getMetadata(name);
+        boolean sharded = comment.has("shard-key") || (existing != null && existing.getShardKey() != null);
+        if (sharded && DB.shardCount() > 1 && DB.SHARD.get() == null) {
+            for (int s = 0; s < DB.shardCount(); s++) {
+                Shards.on(s, () -> {
+                    create();
+                    return null;
+                });
+            }
+            return;
+        }
+        OnlineMigration migration = null;
         try {
             LOG.debug("create " + name);
             DB.loadMetadata(name);
             // If table does not exist.
             Metadata m = DB.getMetadata(name);
+            String target = name;
+            if (partition != null && newPrimaryKey != null && !newPrimaryKey.hasColumn(partition.column)) {
+                newPrimaryKey.columns.add(partition.column);
+            }
             if (m == null) {
                 List<String> defs = new ArrayList<String>();
                 for (Column column : newColumns) {
-                    defs.addAll(Arrays.asList(column.createDefinitions()));
+                    defs.addAll(Arrays.asList(column.createDefinitions(partition == null)));
+                }
+                if (partition != null && newPrimaryKey != null && newPrimaryKey.isAuto) {
+                    defs.add("PRIMARY KEY " + newPrimaryKey.createDefinition());
                 }
-                DB.updateQuery("CREATE TABLE `" + name + "` (" + StringUtils.join(defs, ',') + ")");
+                String partitionDef = "";
+                if (partition != null) {
+                    partitionDef = " " + partition.createDefinition(Column.findByName(newColumns, partition.column));
+                }
+                DB.updateQuery("CREATE TABLE `" + name + "` (" + StringUtils.join(defs, ',') + ")" + partitionDef);
                 if (!name.equals("_metadata")) {
                     Table.get("_metadata").columns("table", "metadata").values(name, comment.toString()).overwrite
 							("metadata").add();
                 }
             } else {
+                migration = onlineMigration(m);
+                if (migration != null) {
+                    migration.prepare();
+                    target = migration.shadow;
+                }
                 for (Column column : newColumns) {
                     Column oldColumn = Column.findByName(m.columns, column.name);
                     if (oldColumn == null) {
-                        DB.updateQuery("ALTER TABLE `" + name + "` ADD COLUMN " + column.createDefinitions());
+                        DB.updateQuery("ALTER TABLE `" + target + "` ADD COLUMN " + column.createDefinitions());
                     } else {
                         if (!oldColumn.equals(column)) {
-                            DB.updateQuery("ALTER TABLE `" + name + "` MODIFY COLUMN " + column.createDefinitions());
+                            DB.updateQuery("ALTER TABLE `" + target + "` MODIFY COLUMN " + column.createDefinitions());
                         }
                     }
                 }
@@ -290,7 +391,7 @@ public class Table {
                     for (Column oldColumn : m.columns) {
                         Column newColumn = Column.findByName(newColumns, oldColumn.name);
                         if (newColumn == null) {
-                            DB.updateQuery("ALTER TABLE `" + name + "` DROP COLUMN `" + oldColumn.name + "`");
+                            DB.updateQuery("ALTER TABLE `" + target + "` DROP COLUMN `" + oldColumn.name + "`");
                         }
                     }
                 }
@@ -313,10 +414,10 @@ public class Table {
             for (Index i : newIndexes) {
                 Index oldIndex = (m == null) ? null : m.getIndex(i.name);
                 if (oldIndex == null) {
-                    DB.updateQuery("ALTER TABLE `" + name + "` ADD " + i.createDefinition());
+                    DB.updateQuery("ALTER TABLE `" + target + "` ADD " + i.createDefinition());
                 } else if (!oldIndex.equals(i)) {
-                    DB.updateQuery("ALTER TABLE `" + name + "` DROP INDEX `" + oldIndex.name + "`");
-                    DB.updateQuery("ALTER TABLE `" + name + "` ADD " + i.createDefinition());
+                    DB.updateQuery("ALTER TABLE `" + target + "` DROP INDEX `" + oldIndex.name + "`");
+                    DB.updateQuery("ALTER TABLE `" + target + "` ADD " + i.createDefinition());
                     LOG.info("CREATING NEW INDEX " + i.createDefinition());
                 }
             }
@@ -324,8 +425,8 @@ public class Table {
             if (m != null) {
                 for (Index i : m.indexes) {
                     Index newIndex = Index.findByName(newIndexes, i.name);
-                    if (newIndex == null) {
-                        DB.updateQuery("ALTER TABLE `" + name + "` DROP INDEX `" + i.name + "`");
+                    if (newIndex == null && !m.isAdvisedIndex(i.name)) {
+                        DB.updateQuery("ALTER TABLE `" + target + "` DROP INDEX `" + i.name + "`");
                     }
                 }
             }
@@ -361,31 +462,83 @@ public class Table {
                 Index oldPrimary = (m == null) ? null : m.primary;
                 if (oldPrimary == null) {
                     if (!newPrimaryKey.isAuto)
-                        DB.updateQuery("ALTER TABLE `" + name + "` ADD PRIMARY KEY " + newPrimaryKey.createDefinition
-								());
+                        addPrimaryKey(target);
                 } else if (!oldPrimary.equals(newPrimaryKey)) {
-                    DB.updateQuery("ALTER TABLE `" + name + "` DROP PRIMARY KEY");
-                    if (!newPrimaryKey.isAuto)
-                        DB.updateQuery("ALTER TABLE `" + name + "` ADD PRIMARY KEY " + newPrimaryKey.createDefinition
-								());
+                    if (partition != null) {
+                        // Auto increment columns must stay part of a key, so swap in one statement.
+                        DB.updateQuery("ALTER TABLE `" + target + "` DROP PRIMARY KEY, ADD PRIMARY KEY " +
+                                newPrimaryKey.createDefinition());
+                    } else {
+                        DB.updateQuery("ALTER TABLE `" + target + "` DROP PRIMARY KEY");
+                        if (!newPrimaryKey.isAuto)
+                            addPrimaryKey(target);
+                    }
                 }
             } else {
                 if (m != null) {
                     if (m.primary != null) {
-                        DB.updateQuery("ALTER TABLE `" + name + "` DROP PRIMARY KEY");
+                        DB.updateQuery("ALTER TABLE `" + target + "` DROP PRIMARY KEY");
                     }
                 }
             }
 
+            if (migration != null) {
+                List<String> copied = new ArrayList<String>();
+                for (Column c : m.columns) {
+                    Column kept = Column.findByName(newColumns, c.name);
+                    if (c.generated != null || (kept != null && kept.generated != null))
+                        continue;
+                    if (!deleteOldColumns || kept != null)
+                        copied.add(c.name);
+                }
+                migration.run(copied);
+                migration = null;
+            }
+
+            if (partition != null) {
+                if (m != null && !Partition.isPartitioned(name)) {
+                    DB.updateQuery("ALTER TABLE `" + name + "` " + partition.createDefinition(Column.findByName
+                            (newColumns, partition.column)));
+                }
+                Partition.maintain(name, partition);
+            }
+
             // Reload and reorder metadata
             DB.loadMetadata(name).reorderAndRetain(newColumns);
+            if (partition != null) {
+                partition.createAhead(name);
+            }
         } catch (Throwable t) {
             LOG.error(t.getMessage(), t);
+            if (migration != null)
+                migration.abort();
             throw new IllegalStateException(t);
         }
 
     }
 
+    /**
+     * An online migration if one was asked for and the pending changes
+     * would rebuild a large table, null to alter the table in place.
+     */
+    private OnlineMigration onlineMigration(Metadata m) throws SQLException {
+        if (onlineRows < 0 || (newConstraints != null && newConstraints.size() > 0))
+            return null;
+        boolean rebuild = newPrimaryKey != null && m.primary != null && !m.primary.equals(newPrimaryKey);
+        for (Column column : newColumns) {
+            Column oldColumn = Column.findByName(m.columns, column.name);
+            if (oldColumn != null && !oldColumn.equals(column))
+                rebuild = true;
+        }
+        if (!rebuild || Statistics.approxCount(name) < onlineRows)
+            return null;
+        if (!OnlineMigration.supported(name, m)) {
+            LOG.warn("Can't migrate " + name + " online, altering in place");
+            return null;
+        }
+        return new OnlineMigration(name);
+    }
+
     public Table increment(String... columns) {
         if (this.increments == null) {
             this.increments = new ArrayList<Table.UpdateExp>();
@@ -444,6 +597,17 @@ public class Table {
         return this;
     }
 
+    /**
+     * Replace existing rows on duplicate keys in
+     * {@link #bulkLoad(InputStream, DataFormat)}.
+     *
+     * @return
+     */
+    public Table replace() {
+        replace = true;
+        return this;
+    }
+
     public Table ignoreNull() {
         ignoreNull = true;
         return this;
@@ -455,56 +619,160 @@ public class Table {
     }
 
     public void update() {
+        Integer shard = routing();
+        if (shard != null) {
+            Function<Integer, Object> write = s -> {
+                update();
+                return null;
+            };
+            if (shard == -1)
+                Shards.onAll(write);
+            else
+                Shards.on(shard, () -> write.apply(shard));
+            return;
+        }
         Connection con = DB.getConnection();
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("UPDATE");
-            if (ignore) {
-                sb.append(" IGNORE");
+            LOG.debug("update=" + updateSql());
+            executeWrite(con, false);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                con.close();
+            } catch (Exception e) {
             }
-            sb.append(" `" + name + "` SET ");
-            ArrayList<String> updates = new ArrayList<String>();
-            if (columnNames != null) {
-                for (int c = 0; c < columnNames.size(); c++) {
-                    if (!ignoreNull || values.get(c) != null)
-                        updates.add("`" + columnNames.get(c) + "`=?");
-                }
+        }
+    }
+
+    private String updateSql() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPDATE");
+        if (ignore) {
+            sb.append(" IGNORE");
+        }
+        sb.append(" `" + name + "` SET ");
+        ArrayList<String> updates = new ArrayList<String>();
+        if (columnNames != null) {
+            for (int c = 0; c < columnNames.size(); c++) {
+                if (!ignoreNull || values.get(c) != null)
+                    updates.add("`" + columnNames.get(c) + "`=?");
             }
-            if (increments != null) {
-                for (UpdateExp ue : increments) {
-                    updates.add(String.format("`%s`=`%s`+?", ue.column, ue.column));
-                }
+        }
+        if (increments != null) {
+            for (UpdateExp ue : increments) {
+                updates.add(String.format("`%s`=`%s`+?", ue.column, ue.column));
             }
-            sb.append(StringUtils.join(updates, ','));
-
-            whereStatement(sb);
-            LOG.debug("update=" + sb.toString());
-            PreparedStatement pstmt = con.prepareStatement(sb.toString());
-            int c = 1;
+        }
+        sb.append(StringUtils.join(updates, ','));
+        whereStatement(sb);
+        return sb.toString();
+    }
 
-            if (columnNames != null) {
-                for (int v = 0; v < values.size(); v++) {
-                    if (!ignoreNull || values.get(v) != null)
-                        pstmt.setObject(c++, values.get(v));
-                }
+    private int updateValues(PreparedStatement pstmt) throws SQLException {
+        int c = 1;
+        if (columnNames != null) {
+            for (int v = 0; v < values.size(); v++) {
+                if (!ignoreNull || values.get(v) != null)
+                    pstmt.setObject(c++, values.get(v));
             }
-            if (increments != null) {
-                for (UpdateExp ue : increments) {
-                    pstmt.setLong(c++, ue.amount);
-                }
+        }
+        if (increments != null) {
+            for (UpdateExp ue : increments) {
+                pstmt.setLong(c++, ue.amount);
             }
+        }
+        return c;
+    }
+
+    /**
+     * Delete the matching rows in bounded chunks on a background thread.
+     * Progress is saved under the given job name so the job resumes where it
+     * left off if the process dies. Configure and {@link ChunkedJob#start()}
+     * the returned job.
+     *
+     * @param jobName
+     * @return
+     */
+    public ChunkedJob deleteInChunks(String jobName) {
+        return new ChunkedJob(jobName, this, true);
+    }
+
+    /**
+     * Same as {@link #deleteInChunks(String)} for an update built with
+     * columns()/values()/increment().
+     *
+     * @param jobName
+     * @return
+     */
+    public ChunkedJob updateInChunks(String jobName) {
+        return new ChunkedJob(jobName, this, false);
+    }
 
-            whereValues(pstmt, c);
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The single column primary key chunked operations walk over.
+     */
+    String chunkKey() {
+        Metadata m = DB.getMetadata(name);
+        if (m == null)
+            throw new IllegalStateException("Missing table " + name);
+        if (m.primary == null || m.primary.columns.size() != 1)
+            throw new IllegalStateException("Chunked operations need a single column primary key on " + name);
+        return m.primary.getColumn(0);
+    }
 
-            pstmt.executeUpdate();
+    /**
+     * Next n primary key values matching the where clause, after the given
+     * key (or from the start if after is null).
+     */
+    List<Object> nextKeys(Connection con, Object after, int n) throws SQLException {
+        String key = chunkKey();
+        WhereExp range = new WhereExp();
+        range.exp = "`" + name + "`.`" + key + "`>?";
+        range.values = new Object[]{after};
+        if (after != null)
+            where.add(range);
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("SELECT `" + key + "` FROM `" + name + "`");
+            whereStatement(sb);
+            sb.append(" ORDER BY `" + key + "` LIMIT " + n);
+            PreparedStatement pstmt = con.prepareStatement(sb.toString());
+            whereValues(pstmt, 1);
+            ResultSet results = pstmt.executeQuery();
+            List<Object> ret = new ArrayList<Object>();
+            while (results.next()) {
+                ret.add(results.getObject(1));
+            }
             pstmt.close();
-        } catch (SQLException e) {
-            throw new IllegalStateException(e);
+            return ret;
         } finally {
-            try {
-                con.close();
-            } catch (Exception e) {
-            }
+            where.remove(range);
+        }
+    }
+
+    /**
+     * Run this table's delete or update restricted to the primary key range
+     * [from, to], inside the caller's transaction on con. Change events are
+     * added to the list, to be published once the caller commits.
+     *
+     * @return number of rows affected
+     */
+    int executeRange(Connection con, boolean delete, Object from, Object to, List<ChangeEvent> events) throws
+            SQLException {
+        String key = chunkKey();
+        WhereExp range = new WhereExp();
+        range.exp = "`" + name + "`.`" + key + "`>=? AND `" + name + "`.`" + key + "`<=?";
+        range.values = new Object[]{from, to};
+        where.add(range);
+        try {
+            return executeWrite(con, delete, events);
+        } finally {
+            where.remove(range);
         }
     }
 
@@ -523,6 +791,9 @@ public class Table {
     }
 
     public Table add() {
+        String shardKey = shardKey();
+        if (shardKey != null)
+            return Shards.on(Shards.shardOf(valueForColumn(shardKey)), this::add);
         Connection con = DB.getConnection();
         try {
             Metadata myMetadata = DB.getMetadata(name);
@@ -533,7 +804,7 @@ public class Table {
             } else {
                 myColumnNames = new ArrayList<String>();
                 for (Column c : myMetadata.getColumns()) {
-                    if (c.autoIncrement)
+                    if (c.autoIncrement || c.generated != null)
                         continue;
                     myColumnNames.add(c.name);
                 }
@@ -576,7 +847,25 @@ public class Table {
             }
 
             LOG.trace(sb.toString());
-            pstmt.executeUpdate();
+            Map<String, Object> existing = null;
+            int count;
+            if (overwriteColumns != null && overwriteColumns.size() > 0 && ChangeFeed.hasListeners(name) &&
+                    myMetadata.primary != null) {
+                con.setAutoCommit(false);
+                try {
+                    existing = ChangeFeed.lockExisting(con, name, myMetadata.primary.columns, myMetadata.uniqueKeys(),
+                            written(myColumnNames));
+                    count = pstmt.executeUpdate();
+                    con.commit();
+                } catch (SQLException e) {
+                    con.rollback();
+                    throw e;
+                } finally {
+                    con.setAutoCommit(true);
+                }
+            } else {
+                count = pstmt.executeUpdate();
+            }
 
             genId = -1;
 
@@ -600,6 +889,7 @@ public class Table {
             }
 
             pstmt.close();
+            publishAdd(myMetadata, myColumnNames, count, existing);
             return this;
         } catch (SQLException e) {
             throw new IllegalStateException(e.getMessage(), e);
@@ -625,20 +915,21 @@ public class Table {
     }
 
     /**
-     * Create a SELECT statement for a join query.
+     * Create a SELECT query for a join.
      *
-     * @param con
      * @param count
      * @return
-     * @throws SQLException
      */
-    private PreparedStatement createJoinSelectstatement(Connection con, boolean count) throws SQLException {
+    private String joinSelectSql(boolean count) {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
 
         if (unique) {
             sb.append("DISTINCT ");
         }
+        if (calcFoundRows) {
+            sb.append("SQL_CALC_FOUND_ROWS ");
+        }
 
         // Let's first flatify the tables.
         ArrayList<Table> flatJoins = joinTableList();
@@ -734,13 +1025,7 @@ public class Table {
             }
         }
 
-        LOG.trace(sb.toString());
-        PreparedStatement pstmt = con.prepareStatement(sb.toString());
-        int c = 1;
-        for (Table t : flatJoins) {
-            c = t.whereValues(pstmt, c);
-        }
-        return pstmt;
+        return sb.toString();
     }
 
     @Override
@@ -749,13 +1034,97 @@ public class Table {
     }
 
     private PreparedStatement createSelectStatement(Connection con, boolean count) throws SQLException {
+        if (search != null)
+            return searchStatement(con, count);
+        String sql = selectSql(count);
+        LOG.trace(sql);
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        selectValues(pstmt, 1);
+        return pstmt;
+    }
+
+    /**
+     * Select for a query answered from a {@link SearchIndex}. The ranked
+     * keys are checked against the other conditions a page at a time, until
+     * enough rows match for the requested page or maxMatches is reached.
+     * Counts and {@link #page(int, int)} check keys up to maxMatches, so
+     * the total covers every match. Without an explicit order the rows come
+     * back by relevance.
+     */
+    private PreparedStatement searchStatement(Connection con, boolean count) throws SQLException {
+        int wanted = search.max;
+        if (!count && !calcFoundRows && !countFound && orderBy.length == 0 && limit != -1)
+            wanted = Math.min(wanted, Math.max(start, 0) + limit);
+        List<Long> matched = new ArrayList<Long>();
+        for (int from = 0; from < search.keys.size() && matched.size() < wanted; from += SEARCH_PAGE) {
+            List<Long> page = search.keys.subList(from, Math.min(from + SEARCH_PAGE, search.keys.size()));
+            search.restrict(name, page);
+            StringBuilder sb = new StringBuilder();
+            sb.append("SELECT `" + search.column + "` FROM `" + name + "`");
+            whereStatement(sb);
+            PreparedStatement pstmt = con.prepareStatement(sb.toString());
+            whereValues(pstmt, 1);
+            ResultSet results = pstmt.executeQuery();
+            Set<Long> found = new HashSet<Long>();
+            while (results.next()) {
+                found.add(results.getLong(1));
+            }
+            pstmt.close();
+            for (Long key : page) {
+                if (matched.size() < wanted && found.contains(key))
+                    matched.add(key);
+            }
+        }
+        search.restrict(name, matched);
+        if (!count && !matched.isEmpty()) {
+            StringBuilder rank = new StringBuilder("CASE `" + search.column + "`");
+            for (int i = 0; i < matched.size(); i++) {
+                rank.append(" WHEN ? THEN " + i);
+            }
+            relevance = rank.append(" END").toString();
+        }
+        try {
+            String sql = selectSql(count);
+            LOG.trace(sql);
+            PreparedStatement pstmt = con.prepareStatement(sql);
+            int ctr = selectValues(pstmt, 1);
+            if (relevance != null && orderBy.length == 0 && joins.size() == 0) {
+                for (Long key : matched) {
+                    pstmt.setLong(ctr++, key);
+                }
+            }
+            return pstmt;
+        } finally {
+            relevance = null;
+            search.restrict(name, search.keys);
+        }
+    }
+
+    /**
+     * SQL of the SELECT this table would run. Placeholders are filled by
+     * {@link #selectValues(PreparedStatement, int)}.
+     */
+    String selectSql(boolean count) {
+        if (countFound && !count) {
+            countFound = false;
+            int oldLimit = limit;
+            limit = -1;
+            try {
+                return "SELECT COUNT(*) FROM (" + selectSql(false) + ") AS `found`";
+            } finally {
+                countFound = true;
+                limit = oldLimit;
+            }
+        }
         if (joins.size() > 0)
-            return createJoinSelectstatement(con, count);
+            return joinSelectSql(count);
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
 
         if (unique)
             sb.append("DISTINCT ");
+        if (calcFoundRows)
+            sb.append("SQL_CALC_FOUND_ROWS ");
 
         if (columnNames != null) {
             ArrayList<String> names = new ArrayList<String>();
@@ -787,7 +1156,10 @@ public class Table {
         if (orderBy.length > 0) {
             sb.append(" ORDER BY " + StringUtils.join(orderBy, ","));
         }
-        if (orderBy.length == 0 && random) {
+        if (orderBy.length == 0 && relevance != null) {
+            sb.append(" ORDER BY " + relevance);
+        }
+        if (orderBy.length == 0 && relevance == null && random) {
             sb.append(" ORDER BY RAND()");
         }
         if (limit != -1) {
@@ -797,15 +1169,86 @@ public class Table {
                 sb.append(" LIMIT " + limit);
             }
         }
+        return sb.toString();
+    }
 
-        LOG.trace(sb.toString());
-        PreparedStatement pstmt = con.prepareStatement(sb.toString());
-        int c = 1;
-        whereValues(pstmt, c);
-        return pstmt;
+    /**
+     * Select with an extra condition in front of the where clause. The
+     * parameters of the condition come first and are bound by the caller.
+     */
+    String selectSql(String condition) {
+        if (condition == null)
+            return selectSql(false);
+        WhereExp exp = new WhereExp();
+        exp.exp = condition;
+        exp.values = new Object[0];
+        where.add(0, exp);
+        try {
+            return selectSql(false);
+        } finally {
+            where.remove(exp);
+        }
+    }
+
+    /**
+     * Select of the single primary key value that lies offset rows into the
+     * keys matching the where clause, plus an optional extra condition bound
+     * by the caller.
+     */
+    String keySql(String condition, int offset) {
+        String key = chunkKey();
+        WhereExp exp = new WhereExp();
+        exp.exp = condition;
+        exp.values = new Object[0];
+        if (condition != null)
+            where.add(0, exp);
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("SELECT `" + key + "` FROM `" + name + "`");
+            whereStatement(sb);
+            sb.append(" ORDER BY `" + key + "` LIMIT 1 OFFSET " + offset);
+            return sb.toString();
+        } finally {
+            where.remove(exp);
+        }
+    }
+
+    int selectValues(PreparedStatement pstmt, int ctr) throws SQLException {
+        if (joins.size() > 0) {
+            for (Table t : joinTableList()) {
+                ctr = t.whereValues(pstmt, ctr);
+            }
+            return ctr;
+        }
+        return whereValues(pstmt, ctr);
     }
 
     public Row row() {
+        if (rowStore != null) {
+            Object key = equalityValue(rowStore.getKeyColumn());
+            if (key instanceof Number)
+                return rowStore.get(((Number) key).longValue());
+        }
+        List<Row> rolled = fromRollup();
+        if (rolled != null)
+            return rolled.isEmpty() ? null : rolled.get(0);
+        Integer shard = routing();
+        if (shard != null && shard != -1)
+            return Shards.on(shard, this::row);
+        if (shard != null) {
+            int oldLimit = limit;
+            limit = 1;
+            try {
+                List<Row> rows = scatterRows();
+                return rows.isEmpty() ? null : rows.get(0);
+            } finally {
+                limit = oldLimit;
+            }
+        }
+        if (canSample()) {
+            List<Row> sample = sample(1);
+            return sample.isEmpty() ? null : sample.get(0);
+        }
         Connection con = DB.getConnection();
         try {
             PreparedStatement pstmt = createSelectStatement(con, false);
@@ -832,7 +1275,7 @@ public class Table {
         Connection con = DB.getConnection();
         try {
             PreparedStatement pstmt = createSelectStatement(con, false);
-            pstmt.setFetchSize(Integer.MIN_VALUE);
+            pstmt.setFetchSize(DB.dialect().streamingFetchSize());
             ResultSet results = pstmt.executeQuery();
             while (results.next()) {
                 callback.row(new Row(results));
@@ -849,58 +1292,389 @@ public class Table {
         }
     }
 
-    public void lock() {
-        Connection con = DB.getConnection();
+    /**
+     * Load rows from CSV or NDJSON input with LOAD DATA LOCAL INFILE, much
+     * faster than adding them one by one. Values go through the column
+     * converters and validators on a pool of threads; records that fail are
+     * skipped and listed in the result. The columns default to the CSV
+     * header or the keys of the first JSON object.
+     * <p>
+     * Rows with duplicate keys are skipped with {@link #ignore()} or replace
+     * the existing rows with {@link #replace()}. MySQL skips them by default
+     * for LOCAL loads, with a warning. Sharded tables can't be loaded this
+     * way.
+     *
+     * @param in
+     * @param format
+     * @return
+     */
+    public LoadResult bulkLoad(InputStream in, DataFormat format) {
+        if (shardKey() != null)
+            throw new IllegalStateException("bulkLoad() can't split rows across the shards of " + name);
         try {
-            PreparedStatement pstmt = con.prepareStatement("LOCK TABLE ?");
-            pstmt.setString(1, name);
-            pstmt.executeQuery();
-        } catch (Throwable t) {
-            LOG.error(t.getMessage(), t);
-        } finally {
-            try {
-                con.close();
-            } catch (Throwable t) {
-            }
+            return new BulkLoader(name, format, columnNames, replace ? "REPLACE" : (ignore ? "IGNORE" : ""),
+                    validators).load(in);
+        } catch (Exception e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
         }
     }
 
-    public void unlock() {
-        Connection con = DB.getConnection();
-        try {
-            PreparedStatement pstmt = con.prepareStatement("UNLOCK TABLE ?");
-            pstmt.setString(1, name);
-            pstmt.executeQuery();
-        } catch (Throwable t) {
-            LOG.error(t.getMessage(), t);
-        } finally {
-            try {
-                con.close();
-            } catch (Throwable t) {
-            }
-        }
+    /**
+     * Serve {@link #row()} lookups by primary key from an off-heap row store,
+     * loading missing rows from the database into it.
+     *
+     * @param store
+     * @return
+     */
+    public Table through(RowStore store) {
+        this.rowStore = store;
+        return this;
     }
 
-    public String[] strings() {
-        if (columnNames.size() != 1)
-            throw new IllegalArgumentException("Only one column can be returned as array");
-        List<Row> rows = rows();
-        String[] ret = new String[rows.size()];
-        for (int i = 0; i < rows.size(); i++) {
-            ret[i] = rows.get(i).columnAsString(columnNames.get(0));
+    private void addPrimaryKey(String target) throws SQLException {
+        for (String sql : DB.dialect().addPrimaryKey(target, newPrimaryKey)) {
+            DB.updateQuery(sql);
         }
-        return ret;
-    }
-
-    public JSONObject rowJSON() {
-        return transform.transform(Row.rowToJSON(row()));
     }
 
-    public JSONArray rowsJSON() {
+    /**
+     * Value the column is compared to if the where clause is nothing but
+     * column = value, otherwise null.
+     */
+    private Object equalityValue(String column) {
+        if (where.size() != 1 || joins.size() > 0 || columnNames != null)
+            return null;
+        WhereExp exp = where.get(0);
+        if (exp.op != WhereOp.EQUALS || !column.equals(exp.column))
+            return null;
+        return exp.values[0];
+    }
+
+    /**
+     * In-memory copy of this table, refreshed in the background, for small
+     * lookup tables read on most requests. The copy is loaded on the first
+     * call and shared afterwards.
+     *
+     * @return
+     */
+    public Replica replicate() {
+        return Replica.of(name);
+    }
+
+    /**
+     * Export the rows matching the where clause. Configure the returned
+     * export and write it with {@link Export#to(OutputStream)} or
+     * {@link Export#toDirectory(File)}.
+     *
+     * @param format
+     * @return
+     */
+    public Export export(DataFormat format) {
+        if (joins.size() > 0)
+            throw new IllegalStateException("Exports don't support joins");
+        return new Export(this, format);
+    }
+
+    /**
+     * Export the rows matching the where clause to a stream, using the
+     * default export settings.
+     *
+     * @param out
+     * @param format
+     * @return number of rows written
+     */
+    public long export(OutputStream out, DataFormat format) {
+        return export(format).to(out);
+    }
+
+    /**
+     * Number of rows read per primary key range by
+     * {@link #parallelScan(int, RowCallback)}.
+     *
+     * @param size
+     * @return
+     */
+    public Table scanChunkSize(int size) {
+        this.scanChunkSize = size;
+        return this;
+    }
+
+    /**
+     * Like {@link #rows(RowCallback)}, but splits the table into primary key
+     * ranges that are read concurrently on parallelism connections. The
+     * callback runs on a pool of parallelism threads, gets rows in no
+     * particular order and must be thread safe. Returns once every row has
+     * been processed.
+     *
+     * @param parallelism
+     * @param callback
+     */
+    public void parallelScan(int parallelism, RowCallback callback) {
+        if (joins.size() > 0)
+            throw new IllegalStateException("Parallel scans don't support joins");
+        new ParallelScan(this, parallelism, scanChunkSize).run(callback);
+    }
+
+    /**
+     * Takes the {@link Locks named lock} of this table. It is advisory: only
+     * code locking the same table is kept out.
+     */
+    public void lock() {
+        Locks.lock(lockName());
+    }
+
+    public boolean tryLock(long timeout, TimeUnit unit) {
+        return Locks.tryLock(lockName(), timeout, unit);
+    }
+
+    public void unlock() {
+        Locks.unlock(lockName());
+    }
+
+    private String lockName() {
+        return "table." + name;
+    }
+
+    /**
+     * Random picks can be served by seeking to random primary key values
+     * instead of sorting the whole filtered table with ORDER BY RAND(). This
+     * needs a single integer primary key, a plain (non aggregate) select and
+     * no conditions other than on the key: a seek past rows another condition
+     * filters out lands on the next match, skewing the picks towards it.
+     */
+    private boolean canSample() {
+        if (!random || orderBy.length > 0 || joins.size() > 0 || groupBy != null || unique || start != -1
+                || functionName != null)
+            return false;
+        if (columnFunctions != null) {
+            for (String fn : columnFunctions) {
+                if (fn.length() > 0)
+                    return false;
+            }
+        }
+        String key = samplingKey();
+        if (key == null)
+            return false;
+        for (WhereExp exp : where) {
+            if (!key.equals(exp.column))
+                return false;
+        }
+        return true;
+    }
+
+    private String samplingKey() {
+        Metadata m = DB.getMetadata(name);
+        if (m == null || m.primary == null || m.primary.columns.size() != 1)
+            return null;
+        Column c = m.getColumn(m.primary.getColumn(0));
+        if (c == null || !c.type.endsWith("INT"))
+            return null;
+        return c.name;
+    }
+
+    /**
+     * Pick up to n random rows matching the where clause. Each pick is an
+     * index seek for the first matching key at or after a random key
+     * (wrapping around to the last key before it), so the cost is O(n) seeks
+     * rather than O(table). The picked rows are then read with one IN query.
+     * A row's chance of being picked is proportional to the key gap before
+     * it, so picks are only uniform on densely numbered keys. Comparisons on
+     * the key narrow the range the random keys are drawn from. If not enough
+     * distinct keys turn up, this falls back to ORDER BY RAND().
+     */
+    private List<Row> sample(int n) {
+        String key = samplingKey();
+        long[] range = Statistics.keyRange(name, key);
+        if (range == null)
+            return new ArrayList<Row>();
+        for (WhereExp exp : where) {
+            if (exp.op == null || !(exp.values[0] instanceof Number))
+                continue;
+            long v = ((Number) exp.values[0]).longValue();
+            switch (exp.op) {
+                case GREATER_THAN:
+                    v++;
+                case GREATER_THAN_EQUALS:
+                case EQUALS:
+                    range[0] = Math.max(range[0], v);
+                    break;
+                default:
+                    break;
+            }
+            switch (exp.op) {
+                case LESS_THAN:
+                    v--;
+                case LESS_THAN_EQUALS:
+                case EQUALS:
+                    range[1] = Math.min(range[1], v);
+                    break;
+                default:
+                    break;
+            }
+        }
+        // The cached range may predate the keys the conditions ask for
+        if (range[0] > range[1]) {
+            random = false;
+            try {
+                return orderByRandom(n);
+            } finally {
+                random = true;
+            }
+        }
+
+        LinkedHashSet<Object> picked = new LinkedHashSet<Object>();
+        boolean empty = false;
+        int oldLimit = limit;
+        String[] oldOrderBy = orderBy;
+        ArrayList<String> oldColumnNames = columnNames;
+        ArrayList<String> oldColumnFunctions = columnFunctions;
+        WhereExp seek = new WhereExp();
+        seek.values = new Object[1];
+        where.add(seek);
+        Connection con = DB.getConnection();
+        try {
+            limit = 1;
+            columnNames = new ArrayList<String>(Collections.singletonList(key));
+            columnFunctions = new ArrayList<String>(Collections.singletonList(""));
+            seek.exp = "`" + name + "`.`" + key + "`>=?";
+            orderBy = new String[]{"`" + key + "` ASC"};
+            PreparedStatement up = con.prepareStatement(selectSql(false));
+            seek.exp = "`" + name + "`.`" + key + "`<?";
+            orderBy = new String[]{"`" + key + "` DESC"};
+            PreparedStatement down = con.prepareStatement(selectSql(false));
+
+            int attempts = 0;
+            while (picked.size() < n && attempts++ < 3 * n + 5) {
+                seek.values[0] = ThreadLocalRandom.current().nextLong(range[0], range[1] + 1);
+                Object k = probe(up);
+                if (k == null)
+                    k = probe(down);
+                if (k == null) {
+                    empty = true;
+                    break;
+                }
+                picked.add(k);
+            }
+            up.close();
+            down.close();
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new IllegalStateException(t);
+        } finally {
+            where.remove(seek);
+            limit = oldLimit;
+            orderBy = oldOrderBy;
+            columnNames = oldColumnNames;
+            columnFunctions = oldColumnFunctions;
+            try {
+                con.close();
+            } catch (Throwable t) {
+            }
+        }
+
+        if (picked.size() < n && !empty) {
+            random = false;
+            try {
+                return orderByRandom(n);
+            } finally {
+                random = true;
+            }
+        }
+        if (picked.isEmpty())
+            return new ArrayList<Row>();
+        List<Row> ret = pickedRows(key, picked);
+        Collections.shuffle(ret, ThreadLocalRandom.current());
+        return ret;
+    }
+
+    /**
+     * First key returned by a seek statement, null if it found nothing.
+     */
+    private Object probe(PreparedStatement pstmt) throws SQLException {
+        selectValues(pstmt, 1);
+        ResultSet results = pstmt.executeQuery();
+        Object ret = null;
+        if (results.next())
+            ret = results.getObject(1);
+        results.close();
+        return ret;
+    }
+
+    private List<Row> pickedRows(String key, Set<Object> keys) {
+        WhereExp in = new WhereExp();
+        in.exp = "`" + name + "`.`" + key + "` IN (" + StringUtils.join(Collections.nCopies(keys.size(), "?"), ',')
+                + ")";
+        in.values = keys.toArray();
+        int oldLimit = limit;
+        limit = -1;
+        random = false;
+        where.add(in);
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = createSelectStatement(con, false);
+            ResultSet results = pstmt.executeQuery();
+            List<Row> ret = new ArrayList<Row>();
+            while (results.next()) {
+                ret.add(new Row(results));
+            }
+            pstmt.close();
+            return ret;
+        } catch (SQLException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        } finally {
+            where.remove(in);
+            limit = oldLimit;
+            random = true;
+            try {
+                con.close();
+            } catch (Throwable t) {
+            }
+        }
+    }
+
+    private List<Row> orderByRandom(int n) {
+        int oldLimit = limit;
+        String[] oldOrderBy = orderBy;
+        limit = n;
+        orderBy = new String[]{"RAND()"};
+        try {
+            return rows();
+        } finally {
+            limit = oldLimit;
+            orderBy = oldOrderBy;
+        }
+    }
+
+    public String[] strings() {
+        if (columnNames.size() != 1)
+            throw new IllegalArgumentException("Only one column can be returned as array");
+        List<Row> rows = rows();
+        String[] ret = new String[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            ret[i] = rows.get(i).columnAsString(columnNames.get(0));
+        }
+        return ret;
+    }
+
+    public JSONObject rowJSON() {
+        return transform.transform(Row.rowToJSON(row()));
+    }
+
+    public JSONArray rowsJSON() {
         return Row.rowsToJSON(rows(), transform);
     }
 
     public List<Row> rows() {
+        List<Row> rolled = fromRollup();
+        if (rolled != null)
+            return rolled;
+        Integer shard = routing();
+        if (shard != null)
+            return (shard == -1) ? scatterRows() : Shards.on(shard, this::rows);
+        if (limit != -1 && canSample())
+            return sample(limit);
         Connection con = DB.getConnection();
         try {
             PreparedStatement pstmt = createSelectStatement(con, false);
@@ -924,19 +1698,192 @@ public class Table {
         }
     }
 
+    /**
+     * Maintain a rollup of this table into the named summary table. Set it
+     * up and {@link Rollup#create()} it.
+     *
+     * @param rollup
+     * @return
+     */
+    public Rollup rollup(String rollup) {
+        return new Rollup(name, rollup);
+    }
+
+    /**
+     * Answer this aggregate select from a matching {@link Rollup} if there is
+     * one. Rollups don't reflect updates and deletes made since they were
+     * last rebuilt.
+     */
+    public Table fromRollups() {
+        this.fromRollups = true;
+        return this;
+    }
+
+    /**
+     * Rows of this aggregate select read from a rollup of the table, or null
+     * if no rollup matches it.
+     */
+    private List<Row> fromRollup() {
+        if (!fromRollups || columnFunctions == null || joins.size() > 0 || unique || random || calcFoundRows || functionName != null)
+            return null;
+        for (Rollup r : Rollup.forTable(name)) {
+            List<Row> rows = r.answer(columnNames, columnFunctions, groupBy, where, orderBy, start, limit);
+            if (rows != null)
+                return rows;
+        }
+        return null;
+    }
+
+    /**
+     * Shard key column of this table, or null if it isn't sharded or the
+     * current thread is already bound to a shard.
+     */
+    private String shardKey() {
+        if (DB.shardCount() < 2 || DB.SHARD.get() != null || joins.size() > 0)
+            return null;
+        Metadata m = DB.getMetadata(name);
+        return (m == null) ? null : m.getShardKey();
+    }
+
+    /**
+     * Whether {@link DB#batch(Table...)} can send this query with the
+     * others. Sharded queries and local searches need their own statements.
+     */
+    boolean batchable() {
+        return routing() == null && search == null;
+    }
+
+    /**
+     * Shard holding the rows matched by the where clause, -1 if they can be
+     * on any shard, or null if no routing is needed.
+     */
+    Integer routing() {
+        String key = shardKey();
+        if (key == null)
+            return null;
+        for (WhereExp exp : where) {
+            if (exp.op == WhereOp.EQUALS && key.equals(exp.column))
+                return Shards.shardOf(exp.values[0]);
+        }
+        return -1;
+    }
+
+    /**
+     * Read the matching rows from every shard and merge them. Each shard
+     * returns up to start + limit rows, or all its groups for a grouped
+     * select, and the page is cut from the merged rows.
+     */
+    private List<Row> scatterRows() {
+        final Table query = cloneQuery();
+        if (groupBy != null) {
+            query.start = -1;
+            query.limit = -1;
+        } else if (limit != -1) {
+            query.limit = Math.max(start, 0) + limit;
+            query.start = -1;
+        }
+        List<List<Row>> parts = Shards.onAll(s -> query.cloneQuery().rows());
+        List<Row> rows = Shards.merge(parts, orderBy, columnNames, columnFunctions, groupBy);
+        int from = Math.min(rows.size(), Math.max(start, 0));
+        int to = (limit == -1) ? rows.size() : Math.min(rows.size(), from + limit);
+        return new ArrayList<Row>(rows.subList(from, to));
+    }
+
+    /**
+     * Copy of this query with its own lists, so shards can run it from
+     * several threads.
+     */
+    private Table cloneQuery() {
+        Table t = new Table(name);
+        t.random = random;
+        t.unique = unique;
+        t.joinType = joinType;
+        t.joins = new ArrayList<Table>(joins);
+        t.where = new ArrayList<WhereExp>(where);
+        t.columnNames = (columnNames == null) ? null : new ArrayList<String>(columnNames);
+        t.columnFunctions = (columnFunctions == null) ? null : new ArrayList<String>(columnFunctions);
+        t.transform = transform;
+        t.limit = limit;
+        t.start = start;
+        t.orderBy = orderBy.clone();
+        t.groupBy = groupBy;
+        t.functionName = functionName;
+        t.functionColumn = functionColumn;
+        t.distincts = (distincts == null) ? null : new TreeSet<String>(distincts);
+        t.calcFoundRows = calcFoundRows;
+        t.partition = partition;
+        t.scanChunkSize = scanChunkSize;
+        t.relevance = relevance;
+        if (search != null) {
+            t.search = new SearchMatch(search.column, search.keys, search.max);
+            t.search.exp = WhereExp.in(name, search.column, search.keys.toArray());
+            t.where.set(t.where.indexOf(search.exp), t.search.exp);
+        }
+        t.fromRollups = fromRollups;
+        return t;
+    }
+
+    /**
+     * Rows mapped to instances of a class with a {@link RowMapper}: through
+     * a constructor taking the ResultSet, a constructor or record whose
+     * parameters are named after the columns, or fields and setters.
+     *
+     * @param c
+     * @return
+     */
     public <T> List<T> customRows(Class<T> c) {
         Connection con = DB.getConnection();
         try {
             PreparedStatement pstmt = createSelectStatement(con, false);
+            List<T> ret = RowMapper.mapAll(c, pstmt.executeQuery());
+            pstmt.close();
+            return ret;
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new IllegalStateException(t);
+        } finally {
+            try {
+                con.close();
+            } catch (Throwable t) {
+            }
+        }
+    }
 
-            List<T> ret = new ArrayList<T>();
+    /**
+     * First row mapped to an instance of a class, or null.
+     *
+     * @param c
+     * @return
+     */
+    public <T> T customRow(Class<T> c) {
+        int oldLimit = limit;
+        limit = 1;
+        try {
+            List<T> rows = customRows(c);
+            return rows.isEmpty() ? null : rows.get(0);
+        } finally {
+            limit = oldLimit;
+        }
+    }
+
+    /**
+     * Like {@link #rows(RowCallback)}, streaming the rows mapped to
+     * instances of a class.
+     *
+     * @param c
+     * @param callback
+     */
+    public <T> void customRows(Class<T> c, Consumer<T> callback) {
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = createSelectStatement(con, false);
+            pstmt.setFetchSize(DB.dialect().streamingFetchSize());
             ResultSet results = pstmt.executeQuery();
-            Constructor<T> cons = c.getConstructor(ResultSet.class);
+            RowMapper<T> mapper = RowMapper.of(c, results.getMetaData());
             while (results.next()) {
-                ret.add(cons.newInstance(results));
+                callback.accept(mapper.map(results));
             }
             pstmt.close();
-            return ret;
         } catch (Throwable t) {
             LOG.error(t.getMessage(), t);
             throw new IllegalStateException(t);
@@ -1011,10 +1958,39 @@ public class Table {
         if (mode == null) {
             mode = MatchMode.IN_NATURAL_LANGUAGE_MODE;
         }
+        SearchIndex index = SearchIndex.find(name, columns);
+        if (index != null) {
+            List<Long> keys = index.search(query, mode);
+            if (keys.isEmpty()) {
+                WhereExp none = new WhereExp();
+                none.exp = "FALSE";
+                none.values = new Object[0];
+                where.add(none);
+            } else {
+                search = new SearchMatch(index.getKeyColumn(), keys, index.getMaxMatches());
+                search.exp = WhereExp.in(name, search.column, keys.toArray());
+                where.add(search.exp);
+            }
+            return this;
+        }
         where.add(WhereExp.matchAgainst(name, columns, new String[]{query}, mode));
         return this;
     }
 
+    /**
+     * Open a local full-text index of the given columns, built on first use
+     * and kept in the directory. While it is open,
+     * {@link #search(String[], String, MatchMode)} on the same columns is
+     * answered from it instead of MATCH ... AGAINST.
+     *
+     * @param directory
+     * @param columns
+     * @return
+     */
+    public SearchIndex searchIndex(File directory, String... columns) {
+        return SearchIndex.open(name, directory, columns);
+    }
+
     public Table where(String column, Object value, WhereOp op) {
         Metadata m = DB.getMetadata(name);
         if (m == null)
@@ -1036,6 +2012,62 @@ public class Table {
         return this;
     }
 
+    public Table whereJson(String column, String path, Object value) {
+        return whereJson(column, path, value, WhereOp.EQUALS);
+    }
+
+    /**
+     * Compare the value at a path of a JSON column, in MySQL. If the table
+     * has a {@link Column#jsonPath(String, String, String, String)} column
+     * for the path, the condition is on that column so its index can be
+     * used, otherwise on JSON_EXTRACT of the path.
+     *
+     * @param column
+     * @param path   like $.user.id; a leading $. may be left out
+     * @param value  compared as text when it is a String, as JSON otherwise
+     * @param op
+     * @return
+     */
+    public Table whereJson(String column, String path, Object value, WhereOp op) {
+        Metadata m = DB.getMetadata(name);
+        if (m == null)
+            throw new IllegalStateException("No table exists for " + name);
+        Column c = Column.findByName(m.columns, column);
+        if (c == null) {
+            throw new IllegalStateException("No column exists for " + column + " in table " + name);
+        }
+        path = Column.jsonPath(path);
+        String quoted = "'" + StringEscapeUtils.escapeSql(path) + "'";
+        for (Column g : m.columns) {
+            if (g.generated != null && (g.generated.equals(Column.jsonExpression("`" + column + "`", quoted, true))
+                    || g.generated.equals(Column.jsonExpression("`" + column + "`", quoted, false))))
+                return where(g.name, value, op);
+        }
+        if (value == null)
+            throw new IllegalArgumentException("Null value not supported with JSON paths");
+        where.add(WhereExp.json(name, column, path, op, value));
+        return this;
+    }
+
+    /**
+     * Rows whose JSON column contains a value at a path, for instance an
+     * element of an array. The value is JSON: a JSONObject, JSONArray,
+     * number, boolean or String.
+     *
+     * @param column
+     * @param path
+     * @param value
+     * @return
+     */
+    public Table jsonContains(String column, String path, Object value) {
+        WhereExp exp = new WhereExp();
+        exp.exp = "JSON_CONTAINS(`" + name + "`.`" + column + "`,?,?)";
+        exp.values = new Object[]{(value instanceof String) ? JSONObject.quote((String) value) : String.valueOf
+                (value), Column.jsonPath(path)};
+        where.add(exp);
+        return this;
+    }
+
     public double average(String column) {
         functionName = "AVG";
         functionColumn = column;
@@ -1079,6 +2111,17 @@ public class Table {
     }
 
     public long count() {
+        Integer shard = routing();
+        if (shard != null && shard != -1)
+            return Shards.on(shard, this::count);
+        if (shard != null) {
+            long total = 0;
+            final Table query = cloneQuery();
+            for (long c : Shards.onAll(s -> query.cloneQuery().count())) {
+                total += c;
+            }
+            return total;
+        }
         Connection con = DB.getConnection();
         try {
             PreparedStatement pstmt = createSelectStatement(con, true);
@@ -1097,6 +2140,141 @@ public class Table {
         }
     }
 
+    /**
+     * Fetch one page of rows along with the total number of matching rows.
+     * On MySQL the total comes from FOUND_ROWS() on the same connection, so
+     * the WHERE clause is evaluated only once; other databases count the
+     * same select without its limit in a second query. On a sharded table
+     * the where clause must pin the shard key to a value.
+     *
+     * @param start offset of the first row
+     * @param size  maximum number of rows in the page
+     * @return
+     */
+    public Page page(int start, int size) {
+        Integer shard = routing();
+        if (shard != null && shard != -1)
+            return Shards.on(shard, () -> page(start, size));
+        if (shard != null)
+            throw new IllegalStateException("page() on sharded table " + name + " needs a condition on its shard key");
+        this.start = start;
+        this.limit = size;
+        boolean foundRows = DB.dialect().foundRows();
+        this.calcFoundRows = foundRows;
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = createSelectStatement(con, false);
+            List<Row> rows = new ArrayList<Row>();
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                rows.add(new Row(results));
+            }
+            pstmt.close();
+
+            long total = 0;
+            if (foundRows) {
+                Statement s = con.createStatement();
+                results = s.executeQuery("SELECT FOUND_ROWS()");
+                if (results.next())
+                    total = results.getLong(1);
+                s.close();
+            } else {
+                countFound = true;
+                pstmt = createSelectStatement(con, false);
+                results = pstmt.executeQuery();
+                if (results.next())
+                    total = results.getLong(1);
+                pstmt.close();
+            }
+            return new Page(rows, total, false);
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new IllegalStateException(t);
+        } finally {
+            calcFoundRows = false;
+            countFound = false;
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Like {@link #page(int, int)} but the total is the optimizer's row
+     * estimate from EXPLAIN. Meant for huge tables where an exact count is
+     * too expensive and a rough page count is good enough.
+     *
+     * @param start offset of the first row
+     * @param size  maximum number of rows in the page
+     * @return
+     */
+    public Page approximatePage(int start, int size) {
+        this.start = start;
+        this.limit = size;
+        List<Row> rows = rows();
+        long total = approxCount();
+        if (total == -1)
+            return new Page(rows, count(), false);
+        return new Page(rows, Math.max(total, start + rows.size()), true);
+    }
+
+    /**
+     * Estimated number of rows matching this query. Unfiltered tables are
+     * answered from cached table statistics, filtered ones from the EXPLAIN
+     * row estimate. Returns -1 if no estimate is available.
+     *
+     * @return
+     */
+    public long approxCount() {
+        if (where.size() == 0 && joins.size() == 0)
+            return Statistics.approxCount(name);
+        return estimateCount();
+    }
+
+    /**
+     * Estimated number of distinct values in a column of this table, -1 if
+     * the column isn't the first column of an index.
+     *
+     * @param column
+     * @return
+     */
+    public long approxDistinct(String column) {
+        return Statistics.approxDistinct(name, column);
+    }
+
+    /**
+     * Optimizer estimate of rows matched by the current where clause, or -1
+     * if EXPLAIN didn't give one.
+     */
+    private long estimateCount() {
+        int oldLimit = limit;
+        limit = -1;
+        Connection con = DB.getConnection();
+        try {
+            PreparedStatement pstmt = con.prepareStatement("EXPLAIN " + selectSql(true));
+            selectValues(pstmt, 1);
+            ResultSet results = pstmt.executeQuery();
+            long estimate = -1;
+            while (results.next()) {
+                long rows = results.getLong("rows");
+                if (!results.wasNull())
+                    estimate = Math.max(estimate, rows);
+            }
+            pstmt.close();
+            return estimate;
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new IllegalStateException(t);
+        } finally {
+            limit = oldLimit;
+            try {
+                con.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
     public Table limit(int l) {
         limit = l;
         return this;
@@ -1110,6 +2288,9 @@ public class Table {
      * @return
      */
     public Table afterDate(String column, Object o) {
+        LocalDate d = asLocalDate(o);
+        if (d != null)
+            return dateRange(column, d.plusDays(1), null);
         WhereExp exp = new WhereExp();
         exp.exp = "(DATE(`" + column + "`)>?)";
         exp.values = new Object[]{o};
@@ -1125,6 +2306,9 @@ public class Table {
      * @return
      */
     public Table onOrAfterDate(String column, Object o) {
+        LocalDate d = asLocalDate(o);
+        if (d != null)
+            return dateRange(column, d, null);
         WhereExp exp = new WhereExp();
         exp.exp = "(DATE(`" + column + "`)>=?)";
         exp.values = new Object[]{o};
@@ -1133,22 +2317,17 @@ public class Table {
     }
 
     public Table betweenDates(String column, LocalDate start, LocalDate end) {
-        WhereExp exp = new WhereExp();
-        exp.exp = "(DATE(`" + column + "`)>=? AND DATE(`" + column + "`)<=?)";
-        exp.values = new Object[]{start, end};
-        where.add(exp);
-        return this;
+        return dateRange(column, start, end.plusDays(1));
     }
 
     public Table onDate(String column, LocalDate d) {
-        WhereExp exp = new WhereExp();
-        exp.exp = "(DATE(`" + column + "`)=?)";
-        exp.values = new Object[]{d};
-        where.add(exp);
-        return this;
+        return dateRange(column, d, d.plusDays(1));
     }
 
     public Table beforeDate(String column, Object o) {
+        LocalDate d = asLocalDate(o);
+        if (d != null)
+            return dateRange(column, null, d);
         WhereExp exp = new WhereExp();
         exp.exp = "(DATE(`" + column + "`)<?)";
         exp.values = new Object[]{o};
@@ -1157,6 +2336,9 @@ public class Table {
     }
 
     public Table onOrBeforeDate(String column, Object o) {
+        LocalDate d = asLocalDate(o);
+        if (d != null)
+            return dateRange(column, null, d.plusDays(1));
         WhereExp exp = new WhereExp();
         exp.exp = "(DATE(`" + column + "`)<=?)";
         exp.values = new Object[]{o};
@@ -1164,6 +2346,44 @@ public class Table {
         return this;
     }
 
+    /**
+     * Half open range [from, to) on the bare column. Unlike DATE(column) this
+     * lets MySQL use indexes and prune partitions. Either end may be null.
+     */
+    private Table dateRange(String column, LocalDate from, LocalDate to) {
+        List<String> conditions = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        if (from != null) {
+            conditions.add("`" + column + "`>=?");
+            values.add(java.sql.Date.valueOf(from));
+        }
+        if (to != null) {
+            conditions.add("`" + column + "`<?");
+            values.add(java.sql.Date.valueOf(to));
+        }
+        WhereExp exp = new WhereExp();
+        exp.exp = "(" + StringUtils.join(conditions, " AND ") + ")";
+        exp.column = column;
+        exp.values = values.toArray();
+        where.add(exp);
+        return this;
+    }
+
+    private static LocalDate asLocalDate(Object o) {
+        if (o instanceof LocalDate)
+            return (LocalDate) o;
+        if (o instanceof java.sql.Date)
+            return ((java.sql.Date) o).toLocalDate();
+        if (o instanceof String) {
+            try {
+                return LocalDate.parse((String) o);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     public void drop(boolean ignore) {
         try {
             DB.updateQuery("DROP TABLE `" + name + "`");
@@ -1185,16 +2405,21 @@ public class Table {
     }
 
     public void delete() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("DELETE FROM `" + name + "`");
-        whereStatement(sb);
+        Integer shard = routing();
+        if (shard != null) {
+            Function<Integer, Object> write = s -> {
+                delete();
+                return null;
+            };
+            if (shard == -1)
+                Shards.onAll(write);
+            else
+                Shards.on(shard, () -> write.apply(shard));
+            return;
+        }
         Connection con = DB.getConnection();
         try {
-            PreparedStatement pstmt = con.prepareStatement(sb.toString());
-            int c = 1;
-            whereValues(pstmt, c);
-            pstmt.executeUpdate();
-            pstmt.close();
+            executeWrite(con, true);
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
             throw new IllegalStateException(e);
@@ -1206,15 +2431,108 @@ public class Table {
         }
     }
 
-    private void whereStatement(StringBuilder sb) {
-        if (where.size() > 0) {
-            sb.append(" WHERE ");
-            ArrayList<String> items = new ArrayList<String>();
+    private int executeWrite(Connection con, boolean delete) throws SQLException {
+        return executeWrite(con, delete, null);
+    }
+
+    /**
+     * Run this table's delete or update. While the table has change
+     * listeners, the primary keys of the matching rows are locked and read
+     * first in the same transaction, and an event is published for each.
+     * <p>
+     * With an events list the caller already has a transaction open on con:
+     * the write joins it and the events are added to the list instead of
+     * published.
+     *
+     * @return number of rows affected
+     */
+    private int executeWrite(Connection con, boolean delete, List<ChangeEvent> events) throws SQLException {
+        PreparedStatement pstmt;
+        if (delete) {
+            pstmt = con.prepareStatement(deleteSql());
+            whereValues(pstmt, 1);
+        } else {
+            pstmt = con.prepareStatement(updateSql());
+            whereValues(pstmt, updateValues(pstmt));
+        }
+        try {
+            Metadata m = DB.getMetadata(name);
+            if (!ChangeFeed.hasListeners(name) || m == null || m.primary == null)
+                return pstmt.executeUpdate();
+            Map<String, Object> written = new HashMap<String, Object>();
+            if (!delete && columnNames != null) {
+                for (int c = 0; c < columnNames.size(); c++) {
+                    if (!ignoreNull || values.get(c) != null)
+                        written.put(columnNames.get(c), values.get(c));
+                }
+            }
+            List<Object> params = new ArrayList<Object>();
             for (WhereExp exp : where) {
-                items.add(exp.exp);
+                params.addAll(Arrays.asList(exp.values));
             }
-            sb.append(StringUtils.join(items, " AND "));
+            return ChangeFeed.write(con, name, m.primary.columns, whereCondition(), params.toArray(), pstmt, delete ?
+                    ChangeEvent.Type.DELETE : ChangeEvent.Type.UPDATE, written, events);
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /**
+     * Publish the row written by add(). MySQL reports 1 for a new row, 2
+     * for a row updated through ON DUPLICATE KEY UPDATE and 0 when nothing
+     * changed, but with found rows an update writing the same values also
+     * counts 1, so upserts pass the key of the row they hit. Like update(),
+     * an upsert hitting a row publishes an update even if nothing changed.
+     *
+     * @param existing key of the row an upsert updated, null otherwise
+     */
+    private void publishAdd(Metadata m, List<String> columns, int count, Map<String, Object> existing) {
+        if ((count == 0 && existing == null) || !ChangeFeed.hasListeners(name))
+            return;
+        Map<String, Object> written = written(columns);
+        Map<String, Object> key = existing;
+        if (key == null) {
+            key = new HashMap<String, Object>();
+            if (genId != -1) {
+                key.put(m.getAutoGeneratedColumn(), genId);
+            } else if (m.primary != null) {
+                for (String column : m.primary.columns) {
+                    key.put(column, written.get(column));
+                }
+            }
+        }
+        ChangeFeed.publish(new ChangeEvent(name, (existing == null && count == 1) ? ChangeEvent.Type.INSERT :
+                ChangeEvent.Type.UPDATE, key, written));
+    }
+
+    private Map<String, Object> written(List<String> columns) {
+        Map<String, Object> written = new HashMap<String, Object>();
+        for (String column : columns) {
+            written.put(column, valueForColumn(column));
         }
+        return written;
+    }
+
+    private String deleteSql() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DELETE FROM `" + name + "`");
+        whereStatement(sb);
+        return sb.toString();
+    }
+
+    private void whereStatement(StringBuilder sb) {
+        if (where.size() > 0)
+            sb.append(" WHERE " + whereCondition());
+    }
+
+    private String whereCondition() {
+        if (where.size() == 0)
+            return null;
+        ArrayList<String> items = new ArrayList<String>();
+        for (WhereExp exp : where) {
+            items.add(exp.exp);
+        }
+        return StringUtils.join(items, " AND ");
     }
 
     private int whereValues(PreparedStatement pstmt, int ctr) throws SQLException {
@@ -1362,20 +2680,67 @@ public class Table {
         long amount;
     }
 
+    /**
+     * Keys matched by a {@link SearchIndex}, most relevant first, and the
+     * condition in the where clause that holds them. The condition lists
+     * every key, selects narrow it to the matching page while they run.
+     */
+    private static class SearchMatch {
+        final String column;
+        final List<Long> keys;
+        final int max;
+        WhereExp exp;
+
+        SearchMatch(String column, List<Long> keys, int max) {
+            this.column = column;
+            this.keys = keys;
+            this.max = max;
+        }
+
+        void restrict(String table, List<Long> to) {
+            if (to.isEmpty()) {
+                exp.exp = "FALSE";
+                exp.values = new Object[0];
+                return;
+            }
+            WhereExp in = WhereExp.in(table, column, to.toArray());
+            exp.exp = in.exp;
+            exp.values = in.values;
+        }
+    }
+
     static class WhereExp {
         String exp;
         Object values[];
+        // Set for conditions on a single column; op only for comparisons
+        String column;
+        WhereOp op;
 
         static WhereExp operator(String table, WhereOp op, String column, Object value) {
             WhereExp where = new WhereExp();
             where.exp = "`" + table + "`.`" + column + "`" + op.sqlOp() + "?";
+            where.column = column;
+            where.op = op;
             where.values = new Object[1];
             where.values[0] = value;
             return where;
         }
 
+        /**
+         * Comparison of the value at a JSON path. Strings compare with the
+         * unquoted value, anything else with the JSON value.
+         */
+        static WhereExp json(String table, String column, String path, WhereOp op, Object value) {
+            WhereExp where = new WhereExp();
+            where.exp = Column.jsonExpression("`" + table + "`.`" + column + "`", "?", value instanceof String) + op
+                    .sqlOp() + "?";
+            where.values = new Object[]{path, value};
+            return where;
+        }
+
         static WhereExp or(String table, String column, Object value[]) {
             WhereExp where = new WhereExp();
+            where.column = column;
             where.exp = "(" + StringUtils.join(Collections.nCopies(value.length, table + ".`" + column + "`=?"), " OR" +
 					" ") + ")";
             where.values = new Object[value.length];
@@ -1387,6 +2752,7 @@ public class Table {
 
         static WhereExp in(String table, String column, Object value[]) {
             WhereExp where = new WhereExp();
+            where.column = column;
             where.exp = table + ".`" + column + "` IN (" + StringUtils.join(Collections.nCopies(value.length, "?"),
 					",") + ")";
             where.values = new Object[value.length];
@@ -1398,6 +2764,7 @@ public class Table {
 
         static WhereExp notIn(String table, String column, Object value[]) {
             WhereExp where = new WhereExp();
+            where.column = column;
             where.exp = table + ".`" + column + "` NOT IN (" + StringUtils.join(Collections.nCopies(value.length,
 					"?"), ",") + ")";
             where.values = new Object[value.length];
@@ -30,6 +30,17 @@ public class Value {
         return new Value(o, c);
     }
 
+    /**
+     * A column value as used for a map key. INT and BIGINT columns come back
+     * as Integer and Long, so smaller integers are widened to Long and equal
+     * keys from either match.
+     */
+    static Object key(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        return value;
+    }
+
     public long asLong() {
         if (o == null)
             return 0;
@@ -0,0 +1,152 @@
+package com.crispy;
+
+import com.crispy.db.*;
+import com.crispy.db.Index.IndexType;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the db layer on an in-memory H2 database, no MySQL server needed.
+ */
+public class EmbeddedTests {
+
+    @BeforeClass
+    public static void initDB() {
+        DB.initEmbedded("tests_embedded");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        DB.updateQuery("DROP TABLE IF EXISTS child");
+        DB.updateQuery("DROP TABLE IF EXISTS test");
+    }
+
+    @Test
+    public void testCreateIsStable() {
+        for (int i = 0; i < 2; i++) {
+            Table.get("test").columns(Column.bigInteger("id", true),
+                    Column.text("name", 100, "none"),
+                    Column.mediumtext("bio"),
+                    Column.bool("active", true),
+                    Column.timestamp("created", true))
+                    .indexes(Index.create("u_name", IndexType.UNIQUE, "name")).create();
+        }
+        Metadata m = DB.getMetadata("test");
+        assertEquals("VARCHAR(100)", m.getColumn("name").getType());
+        assertEquals("none", m.getColumn("name").getDefault());
+        assertEquals("MEDIUMTEXT", m.getColumn("bio").getType());
+        assertNotNull(m.getIndex("u_name"));
+    }
+
+    @Test
+    public void testRows() {
+        Table.get("test").columns(Column.bigInteger("id", true),
+                Column.text("name", 100),
+                Column.integer("score")).create();
+        Table.get("child").columns(Column.bigInteger("id", true),
+                Column.bigInteger("test_id")).constraints(Constraint.create("test_id", "test", "id")).create();
+
+        long id = Table.get("test").columns("name", "score").values("a", 1).add().generatedId();
+        Table.get("test").columns("name", "score").values("b", 2).add();
+        Table.get("test").columns("id", "name", "score").values(id, "a", 5).overwrite("score").add();
+        Table.get("child").columns("test_id").values(id).add();
+
+        assertEquals(2, Table.get("test").count());
+        assertEquals(5, Table.get("test").where("name", "a").row().columnAsLong("score"));
+        assertEquals(1, Table.get("test").join(Table.get("child")).rows().size());
+        List<List<Row>> batch = DB.batch(Table.get("test"), Table.get("child"));
+        assertEquals(2, batch.get(0).size());
+        assertEquals(1, batch.get(1).size());
+    }
+
+    @Test
+    public void testUpsertEvents() throws InterruptedException {
+        Table.get("test").columns(Column.bigInteger("id", true),
+                Column.text("name", 100),
+                Column.integer("score"))
+                .indexes(Index.create("u_name", IndexType.UNIQUE, "name")).create();
+
+        List<ChangeEvent> events = new CopyOnWriteArrayList<ChangeEvent>();
+        CountDownLatch latch = new CountDownLatch(2);
+        ChangeListener listener = batch -> {
+            for (ChangeEvent e : batch) {
+                events.add(e);
+                latch.countDown();
+            }
+        };
+        ChangeFeed.listen("test", listener);
+        try {
+            long id = Table.get("test").columns("name", "score").values("a", 1).overwrite("score").add()
+                    .generatedId();
+            Table.get("test").columns("name", "score").values("a", 1).overwrite("score").add();
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(ChangeEvent.Type.INSERT, events.get(0).getType());
+            assertEquals(ChangeEvent.Type.UPDATE, events.get(1).getType());
+            assertEquals(id, ((Number) events.get(1).getKey().get("id")).longValue());
+            assertEquals(1, Table.get("test").count());
+        } finally {
+            ChangeFeed.unlisten("test", listener);
+        }
+    }
+
+    @Test
+    public void testPage() {
+        Table.get("test").columns(Column.bigInteger("id", true),
+                Column.integer("score")).create();
+        for (int i = 0; i < 25; i++) {
+            Table.get("test").columns("score").values(i).add();
+        }
+        Page page = Table.get("test").where("score", 5, Table.WhereOp.GREATER_THAN_EQUALS).ascending("score")
+                .page(10, 4);
+        assertEquals(20, page.getTotal());
+        assertEquals(4, page.getRows().size());
+        assertEquals(15, page.getRows().get(0).columnAsLong("score"));
+        assertFalse(page.isApproximate());
+
+        page = Table.get("test").columns("score").ascending("score").page(20, 10);
+        assertEquals(25, page.getTotal());
+        assertEquals(5, page.getRows().size());
+    }
+
+    @Test
+    public void testStreamingRows() {
+        Table.get("test").columns(Column.bigInteger("id", true),
+                Column.integer("score")).create();
+        for (int i = 0; i < 10; i++) {
+            Table.get("test").columns("score").values(i).add();
+        }
+        List<Row> rows = new ArrayList<Row>();
+        Table.get("test").rows(rows::add);
+        assertEquals(10, rows.size());
+    }
+
+    @Test
+    public void testLocks() throws Exception {
+        Table test = Table.get("test");
+        test.lock();
+        test.lock();
+        assertTrue(Locks.isHeldByCurrentThread("table.test"));
+        assertFalse(CompletableFuture.supplyAsync(() -> test.tryLock(10, TimeUnit.MILLISECONDS)).get());
+        test.unlock();
+        assertFalse(CompletableFuture.supplyAsync(() -> Locks.tryLock("table.test")).get());
+        test.unlock();
+        assertTrue(CompletableFuture.supplyAsync(() -> {
+            boolean taken = Locks.tryLock("table.test");
+            Locks.unlock("table.test");
+            return taken;
+        }).get());
+        assertTrue(Locks.waitTimes().max() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+}
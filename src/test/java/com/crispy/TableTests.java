@@ -14,6 +14,8 @@ import java.time.chrono.ChronoLocalDate;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -39,7 +41,9 @@ public class TableTests {
 
     @After
     public void tearDown() throws SQLException {
-        DB.updateQuery("DROP TABLE test");
+        DB.updateQuery("DROP TABLE IF EXISTS test_link");
+        DB.updateQuery("DROP TABLE IF EXISTS test");
+        DB.updateQuery("DROP TABLE IF EXISTS test_parent");
     }
 
     @Test
@@ -103,4 +107,78 @@ public class TableTests {
 			assertEquals(4950, r.sum("score").asLong());
 		}
 	}
+
+	@Test
+	public void testRelations() throws SQLException {
+		Table.get("test_parent").columns(Column.bigInteger("id", true),
+				Column.text("name", 100)).create();
+		Table.get("test").columns(Column.bigInteger("id", true),
+				Column.bigInteger("parent_id")).constraints(Constraint.create("parent_id", "test_parent", "id")).create();
+
+		for (int p = 0; p < 3; p++) {
+			long id = Table.get("test_parent").columns("name").values("parent_" + p).add().generatedId();
+			for (int c = 0; c <= p; c++) {
+				Table.get("test").columns("parent_id").values(id).add();
+			}
+		}
+
+		List<Row> children = Table.get("test").rows();
+		Relations.loadParents(children, "parent_id");
+		for (Row r : children) {
+			assertEquals(r.columnAsLong("parent_id"), r.parent("parent_id").columnAsLong("id"));
+		}
+
+		List<Row> parents = Table.get("test_parent").ascending("id").rows();
+		Relations.loadChildren(parents, "test");
+		for (int p = 0; p < 3; p++) {
+			assertEquals(p + 1, parents.get(p).children("test").size());
+		}
+
+		Table.get("test_link").columns(Column.bigInteger("id", true), Column.bigInteger("owner_id"),
+				Column.bigInteger("editor_id")).constraints(Constraint.create("owner_id", "test_parent", "id"),
+				Constraint.create("editor_id", "test_parent", "id")).create();
+		Table.get("test_link").columns("owner_id", "editor_id").values(parents.get(0).columnAsLong("id"),
+				parents.get(1).columnAsLong("id")).add();
+		try {
+			Relations.loadChildren(parents, "test_link");
+			fail("Picked one of two constraints");
+		} catch (IllegalArgumentException e) {
+		}
+		Relations.loadChildren(parents, "test_link", "editor_id");
+		assertEquals(0, parents.get(0).children("test_link").size());
+		assertEquals(1, parents.get(1).children("test_link").size());
+	}
+
+	@Test
+	public void testChangeFeed() throws InterruptedException {
+		Table.get("test").columns(Column.bigInteger("id", true),
+				Column.bigInteger("score")).create();
+
+		final List<ChangeEvent> events = new CopyOnWriteArrayList<ChangeEvent>();
+		final CountDownLatch latch = new CountDownLatch(3);
+		ChangeListener listener = new ChangeListener() {
+			@Override
+			public void changed(List<ChangeEvent> batch) {
+				for (ChangeEvent e : batch) {
+					events.add(e);
+					latch.countDown();
+				}
+			}
+		};
+		ChangeFeed.listen("test", listener);
+		try {
+			long id = Table.get("test").columns("score").values(1).add().generatedId();
+			Table.get("test").columns("score").values(2).where("id", id).update();
+			Table.get("test").where("id", id).delete();
+
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(ChangeEvent.Type.INSERT, events.get(0).getType());
+			assertEquals(ChangeEvent.Type.UPDATE, events.get(1).getType());
+			assertEquals(2L, ((Number) events.get(1).getValues().get("score")).longValue());
+			assertEquals(ChangeEvent.Type.DELETE, events.get(2).getType());
+			assertEquals(id, ((Number) events.get(2).getKey().get("id")).longValue());
+		} finally {
+			ChangeFeed.unlisten("test", listener);
+		}
+	}
 }
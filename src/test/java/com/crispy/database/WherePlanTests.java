@@ -0,0 +1,108 @@
+package com.crispy.database;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * The in-memory side of {@link WherePlan}, no MySQL server needed. Rows come
+ * from a plain H2 connection.
+ */
+public class WherePlanTests {
+    private static Connection con;
+    private static Row row;
+
+    @BeforeClass
+    public static void initRow() throws SQLException {
+        con = DriverManager.getConnection("jdbc:h2:mem:where_plan");
+        ResultSet results = con.createStatement().executeQuery("SELECT 'Hello' AS \"name\", CAST(5 AS BIGINT) AS " +
+                "\"score\", CAST(NULL AS VARCHAR) AS \"other\"");
+        results.next();
+        row = new Row(results);
+    }
+
+    @AfterClass
+    public static void close() throws SQLException {
+        con.close();
+    }
+
+    private static WherePlan.Term term(WhereOp op, String column, SimpleType type, Object... values) {
+        return new WherePlan.Term(op, null, column, type, values, null, null);
+    }
+
+    @Test
+    public void testEvaluate() {
+        assertTrue(term(WhereOp.EQUALS, "name", SimpleType.TEXT, "hello").test(row));
+        assertTrue(term(WhereOp.IN, "score", SimpleType.INTEGER, 3L, 5L).test(row));
+        assertFalse(term(WhereOp.NOT_IN, "score", SimpleType.INTEGER, 3L, 5L).test(row));
+        assertFalse(term(WhereOp.GREATER_THAN, "score", SimpleType.INTEGER, 6L).test(row));
+        assertTrue(term(WhereOp.LESS_THAN_EQUALS, "score", SimpleType.INTEGER, 5L).test(row));
+        assertTrue(new WherePlan.Term(WhereOp.IS_NULL, null, "other", null, null, null, null).test(row));
+
+        WherePlan.Term like = term(WhereOp.LIKE, "name", SimpleType.TEXT, "he%");
+        WherePlan.Term gt = term(WhereOp.GREATER_THAN, "score", SimpleType.INTEGER, 6L);
+        assertFalse(new WherePlan.Term(WhereOp.AND, new WherePlan.Term[]{like, gt}).test(row));
+        assertTrue(new WherePlan.Term(WhereOp.OR, new WherePlan.Term[]{like, gt}).test(row));
+    }
+
+    @Test
+    public void testNullComparisons() {
+        assertFalse(term(WhereOp.EQUALS, "other", SimpleType.TEXT, "x").test(row));
+        assertFalse(term(WhereOp.NOT_EQUALS, "other", SimpleType.TEXT, "x").test(row));
+        assertFalse(term(WhereOp.NOT_IN, "score", SimpleType.INTEGER, 3L, null).test(row));
+    }
+
+    @Test
+    public void testLike() {
+        assertTrue(WherePlan.Term.like("he%").matcher("Hello").matches());
+        assertTrue(WherePlan.Term.like("h_llo").matcher("HELLO").matches());
+        assertFalse(WherePlan.Term.like("h_llo").matcher("hllo").matches());
+        assertTrue(WherePlan.Term.like("100\\%").matcher("100%").matches());
+        assertFalse(WherePlan.Term.like("100\\%").matcher("1000").matches());
+        assertFalse(WherePlan.Term.like("a.b").matcher("axb").matches());
+        assertTrue(WherePlan.Term.like("%line%").matcher("two\nlines").matches());
+    }
+
+    @Test
+    public void testInList() {
+        assertEquals("1=0", WherePlan.in("`id`", WhereOp.IN, 0));
+        assertEquals("1=1", WherePlan.in("`id`", WhereOp.NOT_IN, 0));
+        assertEquals("`id` IN (?,?,?)", WherePlan.in("`id`", WhereOp.IN, 3));
+
+        String notIn = WherePlan.in("`id`", WhereOp.NOT_IN, 2500);
+        assertEquals(1, count(notIn, "`id` NOT IN ("));
+        assertEquals(2500, count(notIn, "?"));
+    }
+
+    @Test
+    public void testRejectsAggregates() {
+        WherePlan plan = Where.and(Where.isNull().column("other")).compile("t");
+        assertTrue(plan.isEvaluable());
+        assertTrue(plan.test(row));
+
+        plan = Where.and(Where.isNull().column("other"), Where.isNull().column("score").function("SUM"))
+                .compile("t");
+        assertFalse(plan.isEvaluable());
+        try {
+            plan.filter(new Rows());
+            fail("SUM was evaluated in memory");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("SUM"));
+        }
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i != -1; i = s.indexOf(part, i + part.length())) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,66 @@
+package com.crispy.db;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The primitive key to offset index behind {@link RowStore}.
+ */
+public class LongIndexTests {
+
+    @Test
+    public void testPutGetRemove() {
+        LongIndex index = new LongIndex(4);
+        index.put(1, 10);
+        index.put(2, 20);
+        index.put(1, 11);
+        assertEquals(2, index.size());
+        assertEquals(11, index.get(1));
+        assertEquals(20, index.get(2));
+        assertEquals(-1, index.get(3));
+        index.remove(1);
+        index.remove(3);
+        assertEquals(1, index.size());
+        assertEquals(-1, index.get(1));
+        assertEquals(20, index.get(2));
+    }
+
+    /**
+     * Dense keys in a small table collide and wrap around the end of the
+     * arrays, so removes have to shift the entries after them back for the
+     * rest to stay reachable.
+     */
+    @Test
+    public void testRemoveKeepsProbeSequences() {
+        Random random = new Random(42);
+        LongIndex index = new LongIndex(16);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (int op = 0; op < 20000; op++) {
+            long key = random.nextInt(64) - 8;
+            if (random.nextInt(3) == 0) {
+                index.remove(key);
+                expected.remove(key);
+            } else {
+                index.put(key, op);
+                expected.put(key, (long) op);
+            }
+            if (op % 97 == 0) {
+                for (long k = -8; k < 56; k++) {
+                    Long v = expected.get(k);
+                    assertEquals("key " + k + " after op " + op, v == null ? -1 : v, index.get(k));
+                }
+            }
+        }
+        assertEquals(expected.size(), index.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFreeKeyRejected() {
+        new LongIndex(4).put(Long.MIN_VALUE, 1);
+    }
+}
@@ -0,0 +1,121 @@
+package com.crispy.db;
+
+import org.junit.Test;
+
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of change events into deltas and rewriting of selects for a
+ * rollup, no database needed.
+ */
+public class RollupTests {
+
+    private static Rollup rollup() {
+        return new Rollup("events", "events_daily").time("at", Rollup.Granularity.DAY).dimensions("country").sum
+                ("amount");
+    }
+
+    private static ChangeEvent event(ChangeEvent.Type type, String at, String country, Object amount) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("at", at == null ? null : Date.valueOf(at));
+        values.put("country", country);
+        values.put("amount", amount);
+        return new ChangeEvent("events", type, Collections.<String, Object>emptyMap(), values);
+    }
+
+    private static Table.WhereExp notNull(String column) {
+        Table.WhereExp exp = new Table.WhereExp();
+        exp.exp = "!ISNULL(`" + column + "`)";
+        exp.values = new Object[0];
+        return exp;
+    }
+
+    private static List<Table.WhereExp> covered(Table.WhereExp... more) {
+        List<Table.WhereExp> where = new java.util.ArrayList<Table.WhereExp>();
+        where.add(notNull("at"));
+        where.add(notNull("country"));
+        where.addAll(Arrays.asList(more));
+        return where;
+    }
+
+    @Test
+    public void testDeltasMergeInserts() {
+        LinkedHashMap<List<Object>, Object[]> deltas = rollup().deltas(Arrays.asList(
+                event(ChangeEvent.Type.INSERT, "2014-03-01", "in", 5),
+                event(ChangeEvent.Type.INSERT, "2014-03-01", "in", null),
+                event(ChangeEvent.Type.INSERT, "2014-03-01", "us", 2.5),
+                event(ChangeEvent.Type.INSERT, "2014-03-02", "in", 1)));
+        assertEquals(3, deltas.size());
+        Object[] in = deltas.get(Arrays.<Object>asList(Date.valueOf("2014-03-01"), "in"));
+        assertArrayEquals(new Object[]{2L, 5.0, 1L}, in);
+        Object[] us = deltas.get(Arrays.<Object>asList(Date.valueOf("2014-03-01"), "us"));
+        assertArrayEquals(new Object[]{1L, 2.5, 1L}, us);
+    }
+
+    @Test
+    public void testDeltasSkipOtherRows() {
+        LinkedHashMap<List<Object>, Object[]> deltas = rollup().deltas(Arrays.asList(
+                event(ChangeEvent.Type.UPDATE, "2014-03-01", "in", 5),
+                event(ChangeEvent.Type.DELETE, "2014-03-01", "in", 5),
+                event(ChangeEvent.Type.INSERT, "2014-03-01", null, 5)));
+        assertTrue(deltas.isEmpty());
+    }
+
+    @Test
+    public void testRewriteAggregates() {
+        Rollup.Rewrite query = rollup().rewrite(Arrays.asList("country", "amount", "amount", "id"),
+                Arrays.asList("", "SUM", "AVG", "COUNT"), "country", covered(), new String[]{"`country` ASC"}, -1,
+                10);
+        assertNull(query);
+        query = rollup().rewrite(Arrays.asList("country", "amount", "amount", "country"),
+                Arrays.asList("", "SUM", "AVG", "COUNT"), "country", covered(), new String[]{"`country` ASC"}, -1,
+                10);
+        assertEquals("SELECT `country`,SUM(`sum_amount`),SUM(`sum_amount`)/SUM(`n_amount`),SUM(`cnt`) FROM " +
+                "`events_daily` WHERE !ISNULL(`period`) AND !ISNULL(`country`) GROUP BY `country` ORDER BY " +
+                "`country` ASC LIMIT 10", query.sql);
+        assertTrue(query.values.isEmpty());
+    }
+
+    @Test
+    public void testRewriteNeedsNotNullCoverage() {
+        List<Table.WhereExp> where = Arrays.asList(notNull("at"));
+        assertNull(rollup().rewrite(Arrays.asList("amount"), Arrays.asList("SUM"), null, where, new String[0], -1,
+                -1));
+    }
+
+    @Test
+    public void testRewriteTimeRange() {
+        Table.WhereExp from = Table.WhereExp.operator("events", Table.WhereOp.GREATER_THAN_EQUALS, "at", Date
+                .valueOf("2014-03-01"));
+        Table.WhereExp to = Table.WhereExp.operator("events", Table.WhereOp.LESS_THAN, "at", Date.valueOf
+                ("2014-04-01"));
+        Table.WhereExp country = Table.WhereExp.operator("events", Table.WhereOp.EQUALS, "country", "in");
+        Rollup.Rewrite query = rollup().rewrite(Arrays.asList("amount"), Arrays.asList("SUM"), null, covered(from,
+                to, country), new String[0], -1, -1);
+        assertEquals("SELECT SUM(`sum_amount`) FROM `events_daily` WHERE !ISNULL(`period`) AND !ISNULL(`country`)" +
+                " AND `period`>=? AND `period`<? AND `country`=?", query.sql);
+        assertEquals(Arrays.<Object>asList(Date.valueOf("2014-03-01"), Date.valueOf("2014-04-01"), "in"), query
+                .values);
+    }
+
+    @Test
+    public void testConditionRejectsPartialPeriods() {
+        Rollup rollup = rollup();
+        assertNull(rollup.condition(Table.WhereExp.operator("events", Table.WhereOp.GREATER_THAN_EQUALS, "at",
+                java.sql.Timestamp.valueOf("2014-03-01 12:00:00"))));
+        assertNull(rollup.condition(Table.WhereExp.operator("events", Table.WhereOp.GREATER_THAN, "at", Date
+                .valueOf("2014-03-01"))));
+        assertNull(rollup.condition(Table.WhereExp.operator("events", Table.WhereOp.EQUALS, "amount", 5)));
+        assertEquals("`country`=?", rollup.condition(Table.WhereExp.operator("events", Table.WhereOp.EQUALS,
+                "country", "in")));
+        assertEquals("!ISNULL(`period`)", rollup.condition(notNull("at")));
+    }
+}
@@ -0,0 +1,159 @@
+package com.crispy.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Storage, eviction and recovery of a {@link RowStore} file and the
+ * {@link RowCodec} encoding, no database needed.
+ */
+public class RowStoreTests {
+    private static final String[] NAMES = {"id", "name"};
+    private static final String[] TYPES = {"BIGINT", "VARCHAR"};
+    // Two segments of 1024 bytes, each holding 8 rows of item()
+    private static final long MAX_BYTES = 2048;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("rowstore", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private RowStore open() throws Exception {
+        return new RowStore("items", "id", NAMES, TYPES, file, MAX_BYTES);
+    }
+
+    private static Row item(long id, String name) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("id", id);
+        values.put("name", String.format("%-100s", name));
+        return new Row("items", values);
+    }
+
+    private static String name(RowStore store, long id) {
+        Row r = store.getIfPresent(id);
+        return r == null ? null : ((String) r.value("items.name")).trim();
+    }
+
+    @Test
+    public void testTombstonesSurviveReopen() throws Exception {
+        RowStore store = open();
+        store.put(item(1, "a"));
+        store.put(item(2, "b"));
+        store.invalidate(1);
+        assertNull(store.getIfPresent(1));
+        assertEquals("b", name(store, 2));
+        store.close();
+
+        store = open();
+        assertEquals(1, store.size());
+        assertNull(store.getIfPresent(1));
+        assertEquals("b", name(store, 2));
+        store.close();
+    }
+
+    @Test
+    public void testWraparoundEvictsOldestSegment() throws Exception {
+        RowStore store = open();
+        for (long id = 100; id < 108; id++) {
+            store.put(item(id, "first"));
+        }
+        for (long id = 200; id < 208; id++) {
+            store.put(item(id, "second"));
+        }
+        assertEquals(16, store.size());
+        store.put(item(300, "third"));
+        assertEquals(9, store.size());
+        for (long id = 100; id < 108; id++) {
+            assertNull(store.getIfPresent(id));
+        }
+        assertEquals("second", name(store, 200));
+        assertEquals("third", name(store, 300));
+        store.close();
+    }
+
+    /**
+     * A row rewritten after the log wrapped lives in a lower numbered
+     * segment than its older copy, so recovery has to replay segments in
+     * the order they were written.
+     */
+    @Test
+    public void testRecoveryReplaysOldestSegmentFirst() throws Exception {
+        RowStore store = open();
+        for (long id = 100; id < 108; id++) {
+            store.put(item(id, "filler"));
+        }
+        store.put(item(5, "old"));
+        store.put(item(6, "kept"));
+        for (long id = 200; id < 206; id++) {
+            store.put(item(id, "filler"));
+        }
+        store.put(item(5, "new"));
+        store.invalidate(6);
+        assertEquals("new", name(store, 5));
+        store.close();
+
+        store = open();
+        assertEquals("new", name(store, 5));
+        assertNull(store.getIfPresent(6));
+        assertNull(store.getIfPresent(100));
+        assertEquals("filler", name(store, 200));
+        assertEquals(7, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testCodecRoundTrip() throws Exception {
+        String[] types = {"INT", "BIGINT", "FLOAT", "BOOL", "DATETIME", "BLOB", "TEXT", "DATE"};
+        LocalDateTime at = LocalDateTime.of(2014, 3, 1, 12, 30);
+        Object[] first = {7, 8L, 1.5f, true, at, new byte[]{1, 2, 3}, "héllo", null};
+        Object[] second = {null, 9L, null, false, Timestamp.valueOf(at), new byte[0], "", null};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RowCodec.encode(out, types, first);
+        RowCodec.encode(out, types, second);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object[] a = RowCodec.decode(in, types);
+        Object[] b = RowCodec.decode(in, types);
+        assertEquals(7, a[0]);
+        assertEquals(8L, a[1]);
+        assertEquals(1.5f, a[2]);
+        assertEquals(true, a[3]);
+        assertEquals(Timestamp.valueOf(at), a[4]);
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) a[5]);
+        assertEquals("héllo", a[6]);
+        assertNull(a[7]);
+        assertNull(b[0]);
+        assertEquals(9L, b[1]);
+        assertEquals(Timestamp.valueOf(at), b[4]);
+        assertArrayEquals(new byte[0], (byte[]) b[5]);
+        assertEquals("", b[6]);
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCodecRejectsUnknownTemporal() throws Exception {
+        RowCodec.encode(new DataOutputStream(new ByteArrayOutputStream()), new String[]{"DATETIME"}, new
+                Object[]{"2014-03-01"});
+    }
+}
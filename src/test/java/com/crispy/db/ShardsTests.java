@@ -0,0 +1,56 @@
+package com.crispy.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of rows read from several shards, no database needed.
+ */
+public class ShardsTests {
+
+    private static Row group(String country, long count) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("country", country);
+        Row r = new Row("users", values);
+        r.value("COUNT(`id`)", count);
+        return r;
+    }
+
+    private static Row user(long id) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("id", id);
+        return new Row("users", values);
+    }
+
+    @Test
+    public void testMergeCombinesGroups() {
+        List<List<Row>> parts = new ArrayList<List<Row>>();
+        parts.add(Arrays.asList(group("in", 3), group("us", 1)));
+        parts.add(Arrays.asList(group("us", 4), group("uk", 2)));
+        List<Row> rows = Shards.merge(parts, new String[]{"COUNT(`id`) DESC"}, Arrays.asList("country", "id"),
+                Arrays.asList("", "COUNT"), "country");
+        assertEquals(3, rows.size());
+        assertEquals("us", rows.get(0).value("users.country"));
+        assertEquals(5L, rows.get(0).value("COUNT(`id`)"));
+        assertEquals("in", rows.get(1).value("users.country"));
+        assertEquals("uk", rows.get(2).value("users.country"));
+    }
+
+    @Test
+    public void testMergeSortsColumns() {
+        List<List<Row>> parts = new ArrayList<List<Row>>();
+        parts.add(Arrays.asList(user(1), user(5)));
+        parts.add(Arrays.asList(user(3), user(4)));
+        List<Row> rows = Shards.merge(parts, new String[]{"`id` DESC"}, null, null, null);
+        assertEquals(5L, rows.get(0).value("users.id"));
+        assertEquals(4L, rows.get(1).value("users.id"));
+        assertEquals(1L, rows.get(3).value("users.id"));
+    }
+}